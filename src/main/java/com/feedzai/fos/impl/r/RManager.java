@@ -36,7 +36,13 @@ import com.feedzai.fos.common.validation.NotBlank;
 import com.feedzai.fos.common.validation.NotNull;
 import com.feedzai.fos.impl.r.config.RManagerConfig;
 import com.feedzai.fos.impl.r.config.RModelConfig;
+import com.feedzai.fos.impl.r.metrics.MetricsReporter;
+import com.feedzai.fos.impl.r.metrics.RMetrics;
 import com.feedzai.fos.impl.r.rserve.FosRserve;
+import com.feedzai.fos.impl.r.rserve.FosRserveConnector;
+import com.feedzai.fos.impl.r.rserve.FosRserveEndpoint;
+import com.feedzai.fos.impl.r.rserve.FosRservePool;
+import com.feedzai.fos.impl.r.rserve.RserveSupervisor;
 import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
@@ -49,7 +55,9 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -71,8 +79,16 @@ public class RManager implements Manager {
     /** R Manager logger */
     private final static Logger logger = LoggerFactory.getLogger(RManager.class);
 
-    /** Handle for the RServer daemon */
-    private final FosRserve rserve;
+    /** Pool of RServer sessions of each shard, by shard name */
+    private final Map<String, FosRservePool> pools = new LinkedHashMap<>();
+    /** Pool of RServer sessions dedicated to training, so that trainings never hold scoring sessions */
+    private final FosRservePool trainingPool;
+    /** Supervisor of the managed RServe processes (null if RServe is externally managed) */
+    private final RserveSupervisor supervisor;
+    /** Snapshot of the R workspace (null if disabled) */
+    private final RWorkspaceSnapshot snapshot;
+    /** Metrics shared by every pool */
+    private final RMetrics metrics;
     /** Map that stores RModel configurations for each configured model */
     private Map<UUID, RModelConfig> modelConfigs = new HashMap<>();
 
@@ -94,14 +110,115 @@ public class RManager implements Manager {
      * <p/> If a model fails, a log is produced but loading other models will continue (no exception is thrown).
      *
      * @param rManagerConfig the manager configuration
+     * @throws FOSException if the manager could not be started, in which case the RServe processes and sessions
+     * started so far are closed
      */
     public RManager(RManagerConfig rManagerConfig) throws FOSException {
         checkNotNull(rManagerConfig, "Manager config cannot be null");
 
         this.rManagerConfig = rManagerConfig;
-        this.rserve = new FosRserve();
+        int processes = rManagerConfig.getProcesses();
+        int shards = rManagerConfig.getShards();
+        if (shards < 1 || (processes > 0 && shards > processes)) {
+            throw new FOSException(RManagerConfig.SHARDS + " must be between 1 and " + RManagerConfig.PROCESSES);
+        }
+
+        FosRserveConnector connector;
+        if (processes > 0) {
+            this.supervisor = new RserveSupervisor(rManagerConfig.getExecutable(),
+                                                   rManagerConfig.getHost(),
+                                                   rManagerConfig.getPort(),
+                                                   processes,
+                                                   rManagerConfig.getHealthCheckInterval(),
+                                                   rManagerConfig.isDirectProtocol());
+            connector = supervisor;
+        } else {
+            this.supervisor = null;
+            connector = new FosRserveEndpoint(rManagerConfig.getHost(), rManagerConfig.getPort(), rManagerConfig.isDirectProtocol());
+        }
+        // nothing may leak from here on: the managed processes, the pools and their standby threads
+        FosRservePool training = null;
+        RScorer scorer = null;
+        try {
+            this.metrics = new RMetrics(createMetricsReporter(rManagerConfig.getMetricsReporter()));
+            for (int i = 0; i != shards; ++i) {
+                FosRserveConnector shard;
+                int shardProcesses = (processes - i + shards - 1) / shards;
+                if (shards == 1) {
+                    shard = connector;
+                } else if (supervisor != null) {
+                    // the processes are split between the shards
+                    shard = supervisor.shard(i, shards);
+                } else {
+                    shard = new FosRserveEndpoint(rManagerConfig.getHost(), rManagerConfig.getPort() + i, rManagerConfig.isDirectProtocol());
+                }
+                // at least one session per managed process, otherwise some processes would be idle
+                pools.put("shard-" + i, new FosRservePool(shard,
+                                                          Math.max(rManagerConfig.getPoolSize(), shardProcesses),
+                                                          rManagerConfig.getStandby(),
+                                                          metrics));
+            }
+            // training sessions have no models registered: they only run the training scripts
+            training = new FosRservePool(connector, rManagerConfig.getTrainingPoolSize(), 0, metrics);
+
+            if (rManagerConfig.getSnapshot() != null && shards > 1) {
+                logger.warn("R workspace snapshots are not supported with {} shards, {} is ignored", shards, RManagerConfig.SNAPSHOT);
+                this.snapshot = null;
+            } else if (rManagerConfig.getSnapshot() != null && rManagerConfig.getMemoryBudget() > 0) {
+                // restoring a snapshot loads every model, regardless of the budget
+                logger.warn("R workspace snapshots are not supported with a memory budget, {} is ignored", RManagerConfig.SNAPSHOT);
+                this.snapshot = null;
+            } else {
+                this.snapshot = rManagerConfig.getSnapshot() != null ? new RWorkspaceSnapshot(new File(rManagerConfig.getSnapshot())) : null;
+            }
+            scorer = new RScorer(new ArrayList<>(pools.values()), snapshot, defaultLibraries.toArray(new String[]{}));
+            if (rManagerConfig.getCacheSize() > 0) {
+                scorer.enableScoreCache(rManagerConfig.getCacheSize(), rManagerConfig.getCacheTtl());
+            }
+            if (rManagerConfig.getBatchSize() > 1) {
+                scorer.enableMicroBatching(rManagerConfig.getBatchSize(), rManagerConfig.getBatchWait());
+            }
+            if (rManagerConfig.getMemoryBudget() > 0) {
+                scorer.enableLazyLoading(rManagerConfig.getMemoryBudget() * 1024 * 1024);
+            }
+        } catch (FOSException | RuntimeException e) {
+            if (scorer != null) {
+                try {
+                    scorer.close();
+                } catch (FOSException closeFailure) {
+                    logger.warn("Unable to close the R scorer", closeFailure);
+                }
+            }
+            if (training != null) {
+                training.close();
+            }
+            for (FosRservePool pool : pools.values()) {
+                pool.close();
+            }
+            if (supervisor != null) {
+                supervisor.close();
+            }
+            throw e;
+        }
+        this.trainingPool = training;
+        this.rScorer = scorer;
+    }
 
-        this.rScorer = new RScorer(rserve, defaultLibraries.toArray(new String[]{}));
+    /**
+     * Instantiates the configured metrics reporter
+     * @param className class of the reporter (empty to not publish metrics)
+     * @return the reporter
+     * @throws FOSException if the reporter could not be instantiated
+     */
+    private static MetricsReporter createMetricsReporter(String className) throws FOSException {
+        if (className == null || className.trim().isEmpty()) {
+            return MetricsReporter.NONE;
+        }
+        try {
+            return Class.forName(className.trim()).asSubclass(MetricsReporter.class).newInstance();
+        } catch (Exception e) {
+            throw new FOSException("Unable to create metrics reporter '" + className + "'", e);
+        }
     }
 
     @Override
@@ -153,9 +270,13 @@ public class RManager implements Manager {
         rScorer.removeModel(modelId);
 
         // delete the header & model  file (or else it will be picked up on the next restart)
-        rModelConfig.getHeader().delete();
+        // models added through the manager have no header
+        if (rModelConfig.getHeader() != null) {
+            rModelConfig.getHeader().delete();
+        }
         rModelConfig.getModel().delete();
         rModelConfig.getPMMLModel().delete();
+        new File(rModelConfig.getModel().getAbsolutePath() + RScorer.FOREST_SUFFIX).delete();
     }
 
     @Override
@@ -203,8 +324,11 @@ public class RManager implements Manager {
         return rScorer;
     }
 
+    /**
+     * Trains a model in a training session and adds it. Only adding the trained model blocks the manager.
+     */
     @Override
-    public synchronized UUID trainAndAdd(ModelConfig config, List<Object[]> instances) throws FOSException {
+    public UUID trainAndAdd(ModelConfig config, List<Object[]> instances) throws FOSException {
         try {
             File instanceFile = writeInstancesToTempFile(instances, config.getAttributes());
             config.setProperty(RModelConfig.MODEL_SAVE_PATH, instanceFile.getParent());
@@ -257,8 +381,11 @@ public class RManager implements Manager {
         return instanceFile;
     }
 
+    /**
+     * Trains a model in a training session and adds it. Only adding the trained model blocks the manager.
+     */
     @Override
-    public synchronized UUID trainAndAddFile(ModelConfig config, String path) throws FOSException {
+    public UUID trainAndAddFile(ModelConfig config, String path) throws FOSException {
         trainFile(config, path);
 
         ModelDescriptor trainedModelDescriptor = new ModelDescriptor(ModelDescriptor.Format.BINARY, path + "." + RModelConfig.MODEL_FILE_EXTENSION);
@@ -325,6 +452,8 @@ public class RManager implements Manager {
         String trainArguments = config.getProperty(RModelConfig.TRAIN_FUNCTION_ARGUMENTS);
         String trainScript = null;
 
+        // the whole training must run in the same R session, waiting for one if the concurrent trainings limit is reached
+        FosRserve rserve = trainingPool.borrow();
         try {
             if (trainFile != null)  {
                 trainScript = Files.toString(new File(trainFile), Charsets.UTF_8);
@@ -365,12 +494,44 @@ public class RManager implements Manager {
 
         } catch(Throwable e) {
             throw new FOSException(e);
+        } finally {
+            // training data and models can be large, don't keep them in the idle session
+            try {
+                rserve.reset();
+                trainingPool.release(rserve);
+            } catch (FOSException e) {
+                logger.warn("Unable to clean training R session, discarding it", e);
+                trainingPool.invalidate(rserve);
+            }
         }
 
     }
 
     /**
-     * Deletes the temporary PMML file of a model if it exists.
+     * Saves the R workspace with every configured model to the snapshot file, so that the next manager
+     * started with the same configuration doesn't need to load the models again.
+     *
+     * @throws FOSException if snapshots are disabled or the snapshot could not be written
+     */
+    public synchronized void saveSnapshot() throws FOSException {
+        if (snapshot == null) {
+            throw new FOSException("R workspace snapshots are disabled, set " + RManagerConfig.SNAPSHOT);
+        }
+
+        // snapshots are only enabled with a single shard
+        FosRservePool pool = pools.values().iterator().next();
+        FosRserve rserve = pool.borrow();
+        try {
+            snapshot.save(rserve, defaultLibraries);
+        } finally {
+            pool.release(rserve);
+        }
+    }
+
+    /**
+     * Deletes the temporary PMML file of a model if it exists and saves the R workspace snapshot if enabled.
+     * The scorer is closed before the RServe pools, so its models and metrics are removed and its batcher threads
+     * are stopped.
      *
      * @throws FOSException When there are IO problems reading a model's configuration.
      */
@@ -383,6 +544,71 @@ public class RManager implements Manager {
                 tempPMMLFile.delete();
             }
         }
+
+        if (snapshot != null) {
+            try {
+                saveSnapshot();
+            } catch (FOSException e) {
+                logger.warn("Unable to save the R workspace snapshot", e);
+            }
+        }
+
+        try {
+            rScorer.close();
+        } catch (FOSException e) {
+            logger.warn("Unable to close the R scorer", e);
+        }
+
+        trainingPool.close();
+        for (FosRservePool pool : pools.values()) {
+            pool.close();
+        }
+        if (supervisor != null) {
+            supervisor.close();
+        }
+    }
+
+    /**
+     * Adds a shard of RServe sessions. The models it now owns, about its share of them, are loaded in it and then
+     * removed from their previous shards.
+     *
+     * @param name shard name
+     * @param connector connects the sessions of the shard
+     * @throws FOSException if the moved models could not be loaded in the new shard
+     */
+    public synchronized void addShard(String name, FosRserveConnector connector) throws FOSException {
+        checkNotNull(name, "Shard name cannot be null");
+        checkNotNull(connector, "Connector cannot be null");
+        if (pools.containsKey(name)) {
+            throw new FOSException("Shard " + name + " already exists");
+        }
+
+        FosRservePool pool = new FosRservePool(connector, rManagerConfig.getPoolSize(), rManagerConfig.getStandby(), metrics);
+        try {
+            rScorer.addShard(name, pool);
+        } catch (FOSException | RuntimeException e) {
+            pool.close();
+            throw e;
+        }
+        pools.put(name, pool);
+    }
+
+    /**
+     * Removes a shard of RServe sessions, moving its models to the remaining shards, and closes its sessions.
+     *
+     * @param name shard name
+     * @throws FOSException if the shard is unknown or the moved models could not be loaded in the remaining shards
+     */
+    public synchronized void removeShard(String name) throws FOSException {
+        if (!pools.containsKey(name)) {
+            throw new FOSException("Unknown shard " + name);
+        }
+        if (pools.size() == 1) {
+            throw new FOSException("The last shard cannot be removed");
+        }
+
+        rScorer.removeShard(name).close();
+        pools.remove(name);
     }
 
     @Override
@@ -398,6 +624,21 @@ public class RManager implements Manager {
         }
     }
 
+    /**
+     * Exports the forest of a R randomForest model in the FOS binary forest format, which can be memory mapped
+     * and scored in the JVM with {@link com.feedzai.fos.impl.r.forest.BinaryForest}.
+     *
+     * @param uuid UUID of the model
+     * @param filePath path of the exported forest
+     * @throws FOSException if the model is unknown, is not a randomForest or the forest could not be written
+     */
+    public void exportForest(UUID uuid, String filePath) throws FOSException {
+        if (!modelConfigs.containsKey(uuid)) {
+            throw new FOSException("Unknown model with UUID " + uuid);
+        }
+        rScorer.exportForest(uuid, new File(filePath));
+    }
+
     @Override
     public void saveAsPMML(UUID uuid, String filePath, boolean compress) throws FOSException {
         if (modelConfigs.containsKey(uuid)) {
@@ -407,7 +648,7 @@ public class RManager implements Manager {
 
             // If the PMML hasn't already been exported, generate it first.
             if (!source.exists()) {
-                rserve.eval(rScorer.getSaveAsPMMLFunctionCall(uuid));
+                rScorer.eval(uuid, rScorer.getSaveAsPMMLFunctionCall(uuid));
             }
 
             try {
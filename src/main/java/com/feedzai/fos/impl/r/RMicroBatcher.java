@@ -0,0 +1,383 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r;
+
+import com.feedzai.fos.api.FOSException;
+import com.feedzai.fos.impl.r.rserve.FosRSessionLostException;
+import com.feedzai.fos.impl.r.metrics.ModelMetrics;
+import com.feedzai.fos.impl.r.metrics.RMetrics;
+import com.google.common.base.Objects;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Coalesces concurrent single instance scores of the same model into vectorized batch scores.
+ * <p/>
+ * Batching is adaptive: when no batch of a model is being scored a request is scored right away, without waiting.
+ * Requests that arrive while a batch is being scored are queued and scored together as soon as that batch
+ * completes, when {@code maxBatchSize} requests are queued or when the oldest one has waited {@code maxWaitMicros},
+ * whichever happens first. Under low load latency is that of a single score, under high load each R call scores
+ * many instances.
+ * <p/>
+ * If a batch fails with a R error its requests are scored one by one, so a bad instance only fails its own request.
+ * If its session was lost instead, e.g. because the model timed out, the whole batch fails right away: scoring its
+ * requests again would make each of them wait for the model timeout and abandon another session.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+class RMicroBatcher {
+    /**
+     * Maximum number of batches scored at the same time by the worker threads. Batches are scored in R, so the
+     * workers mostly wait for RServe.
+     */
+    private static final int MAX_WORKERS = 2 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Scorer of the batches
+     */
+    private final RScorer scorer;
+
+    /**
+     * Metrics where the queue depth of each model is published
+     */
+    private final RMetrics metrics;
+
+    /**
+     * Maximum number of instances scored in the same call
+     */
+    private final int maxBatchSize;
+
+    /**
+     * Maximum time in microseconds a queued request waits for its batch to be dispatched
+     */
+    private final long maxWaitMicros;
+
+    /**
+     * Request queue of each model
+     */
+    private final ConcurrentMap<UUID, ModelQueue> queues = new ConcurrentHashMap<>();
+
+    /**
+     * Dispatches batches whose maximum wait expired
+     */
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Scores batches dispatched by the timer or by a completed batch
+     */
+    private final ExecutorService workers;
+
+    /**
+     * Creates a new micro batcher
+     * @param scorer scorer of the batches
+     * @param metrics metrics where the queue depth of each model is published
+     * @param maxBatchSize maximum number of instances scored in the same call
+     * @param maxWaitMicros maximum time in microseconds a queued request waits for its batch to be dispatched
+     */
+    RMicroBatcher(RScorer scorer, RMetrics metrics, int maxBatchSize, long maxWaitMicros) {
+        checkNotNull(scorer, "Scorer cannot be null");
+        checkNotNull(metrics, "Metrics cannot be null");
+        checkArgument(maxBatchSize > 0, "Maximum batch size must be positive");
+        checkArgument(maxWaitMicros >= 0, "Maximum wait cannot be negative");
+
+        this.scorer = scorer;
+        this.metrics = metrics;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitMicros = maxWaitMicros;
+        this.timer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("fos-r-batch-timer-%d").build());
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("fos-r-batch-%d").build());
+        workers.allowCoreThreadTimeOut(true);
+        this.workers = workers;
+    }
+
+    /**
+     * Scores an instance as part of a batch, waiting for its result
+     * @param modelId UUID of the model to score
+     * @param scorable instance to score
+     * @return the scores
+     * @throws FOSException if the batch scoring failed
+     */
+    double[] score(UUID modelId, Object[] scorable) throws FOSException {
+        ModelQueue queue = queues.get(modelId);
+        if (queue == null) {
+            ModelQueue created = new ModelQueue(modelId);
+            queue = queues.putIfAbsent(modelId, created);
+            if (queue == null) {
+                queue = created;
+            }
+        }
+
+        Request request = new Request(scorable);
+        List<Request> batch = queue.offer(request);
+        if (batch != null) {
+            // score in the caller thread, no hand off
+            queue.run(batch);
+        }
+
+        try {
+            return request.result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof FOSException) {
+                throw (FOSException) e.getCause();
+            }
+            throw new FOSException("Unable to score batch.", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FOSException("Interrupted while waiting for the batch score.", e);
+        }
+    }
+
+    /**
+     * Discards the queue of a removed model
+     * @param modelId UUID of the model
+     */
+    void remove(UUID modelId) {
+        queues.remove(modelId);
+    }
+
+    /**
+     * Stops the batcher threads
+     */
+    void close() {
+        timer.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("maxBatchSize", maxBatchSize)
+                .add("maxWaitMicros", maxWaitMicros)
+                .toString();
+    }
+
+    /**
+     * A pending single instance score
+     */
+    private static final class Request {
+        private final Object[] scorable;
+        private final SettableFuture<double[]> result = SettableFuture.create();
+
+        private Request(Object[] scorable) {
+            this.scorable = scorable;
+        }
+    }
+
+    /**
+     * Queued requests of a model. Guarded by this.
+     */
+    private final class ModelQueue {
+        private final UUID modelId;
+        private final ModelMetrics modelMetrics;
+        private final List<Request> pending = new ArrayList<>();
+        private int running = 0;
+        private ScheduledFuture<?> deadline;
+
+        private ModelQueue(UUID modelId) {
+            this.modelId = modelId;
+            this.modelMetrics = metrics.model(modelId);
+        }
+
+        /**
+         * Queues a request
+         * @param request request to queue
+         * @return a batch that the caller must score right away, or null if the request was queued
+         */
+        private synchronized List<Request> offer(Request request) {
+            pending.add(request);
+            modelMetrics.setQueued(pending.size());
+
+            if (running == 0 || pending.size() >= maxBatchSize) {
+                return take();
+            }
+
+            if (deadline == null) {
+                deadline = schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        dispatch();
+                    }
+                });
+            }
+            return null;
+        }
+
+        /**
+         * Takes the next batch of pending requests. Must be called with the lock held.
+         * @return the batch
+         */
+        private List<Request> take() {
+            if (deadline != null) {
+                deadline.cancel(false);
+                deadline = null;
+            }
+
+            int size = Math.min(pending.size(), maxBatchSize);
+            List<Request> batch = new ArrayList<>(pending.subList(0, size));
+            pending.subList(0, size).clear();
+            modelMetrics.setQueued(pending.size());
+            running++;
+            return batch;
+        }
+
+        /**
+         * Takes the pending requests and scores them in a worker thread
+         */
+        private void dispatch() {
+            final List<Request> batch;
+            synchronized (this) {
+                deadline = null;
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = take();
+            }
+
+            try {
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        ModelQueue.this.run(batch);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                fail(batch, new FOSException("Micro batcher is closed.", e));
+                completed();
+            }
+        }
+
+        /**
+         * Scores a batch and hands out the results
+         * @param batch requests to score
+         */
+        private void run(List<Request> batch) {
+            try {
+                List<Object[]> scorables = new ArrayList<>(batch.size());
+                for (Request request : batch) {
+                    scorables.add(request.scorable);
+                }
+
+                List<double[]> scores;
+                try {
+                    scores = scorer.scoreInstances(modelId, scorables);
+                } catch (Exception e) {
+                    if (batch.size() == 1 || e instanceof FosRSessionLostException) {
+                        throw e;
+                    }
+                    runEach(batch);
+                    return;
+                }
+                for (int i = 0; i != batch.size(); ++i) {
+                    batch.get(i).result.set(scores.get(i));
+                }
+            } catch (Throwable e) {
+                fail(batch, e);
+            } finally {
+                completed();
+            }
+        }
+
+        /**
+         * Scores each request of a failed batch on its own, so that only the requests that fail get an error.
+         * Once a session is lost the remaining requests fail with it.
+         *
+         * @param batch requests to score
+         */
+        private void runEach(List<Request> batch) {
+            for (int i = 0; i != batch.size(); ++i) {
+                Request request = batch.get(i);
+                try {
+                    List<Object[]> scorables = new ArrayList<>(1);
+                    scorables.add(request.scorable);
+                    request.result.set(scorer.scoreInstances(modelId, scorables).get(0));
+                } catch (FosRSessionLostException e) {
+                    fail(batch.subList(i, batch.size()), e);
+                    return;
+                } catch (Throwable e) {
+                    request.result.setException(e);
+                }
+            }
+        }
+
+        /**
+         * Records the completion of a batch, dispatching the requests queued meanwhile
+         */
+        private void completed() {
+            boolean more;
+            synchronized (this) {
+                running--;
+                more = !pending.isEmpty();
+            }
+            if (more) {
+                dispatch();
+            }
+        }
+
+        /**
+         * Schedules a dispatch after the maximum wait
+         * @param dispatch dispatch task
+         * @return the scheduled dispatch, or null if the batcher is closed
+         */
+        private ScheduledFuture<?> schedule(Runnable dispatch) {
+            try {
+                return timer.schedule(dispatch, maxWaitMicros, TimeUnit.MICROSECONDS);
+            } catch (RejectedExecutionException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Fails every request of a batch
+     * @param batch failed requests
+     * @param cause failure
+     */
+    private static void fail(List<Request> batch, Throwable cause) {
+        for (Request request : batch) {
+            request.result.setException(cause);
+        }
+    }
+}
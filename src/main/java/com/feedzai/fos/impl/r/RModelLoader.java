@@ -0,0 +1,297 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r;
+
+import com.feedzai.fos.api.FOSException;
+import com.feedzai.fos.impl.r.config.RModelConfig;
+import com.google.common.base.Objects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Loads models into R on their first score and unloads the least recently scored ones when the R memory used by
+ * the loaded models exceeds a budget.
+ * <p/>
+ * The memory of a model is the {@code object.size} of the objects in its environment, measured once loaded in one
+ * session. Every session of the model shard holds the same environment, so the budget applies to each session, not to
+ * the sum over them. Models are pinned while they are being scored, so a model is never unloaded under a running
+ * score. Unloaded models are loaded again on their next score.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+class RModelLoader {
+    /**
+     * Loader logger
+     */
+    private static final Logger logger = LoggerFactory.getLogger(RModelLoader.class);
+
+    /**
+     * Loads, measures and unloads the models
+     */
+    private final RScorer scorer;
+
+    /**
+     * Maximum R memory, in bytes, used by the loaded models
+     */
+    private final long memoryBudget;
+
+    /**
+     * Configuration of every registered model
+     */
+    private final Map<UUID, RModelConfig> configs = new HashMap<>();
+
+    /**
+     * Memory used by each loaded model, least recently scored first
+     */
+    private final LinkedHashMap<UUID, Long> loaded = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Number of running scores of each pinned model
+     */
+    private final Map<UUID, Integer> pins = new HashMap<>();
+
+    /**
+     * Serializes the loads of each model, so that loading a model doesn't block the scores of the others
+     */
+    private final ConcurrentMap<UUID, Object> loading = new ConcurrentHashMap<>();
+
+    /**
+     * Memory used by the loaded models, in bytes
+     */
+    private long used;
+
+    /**
+     * Creates a new model loader
+     * @param scorer loads, measures and unloads the models
+     * @param memoryBudget maximum R memory, in bytes, used by the loaded models
+     */
+    RModelLoader(RScorer scorer, long memoryBudget) {
+        checkNotNull(scorer, "Scorer cannot be null");
+        checkArgument(memoryBudget > 0, "Memory budget must be positive");
+
+        this.scorer = scorer;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Registers (or updates) a model. A new model is only loaded on its first score; an updated model is loaded
+     * again right away if it is loaded.
+     *
+     * @param config R model configuration
+     * @throws FOSException if the updated model could not be loaded
+     */
+    void register(RModelConfig config) throws FOSException {
+        UUID modelId = config.getId();
+        synchronized (lock(modelId)) {
+            boolean reload;
+            synchronized (this) {
+                configs.put(modelId, config);
+                reload = loaded.containsKey(modelId);
+            }
+            if (reload) {
+                load(modelId, config);
+            }
+        }
+    }
+
+    /**
+     * Pins a model for a score, loading it if needed. Models that were not registered in this loader are ignored.
+     * <p/>
+     * Every call must be matched by a call to {@link #release(UUID)}.
+     *
+     * @param modelId UUID of the scored model
+     * @throws FOSException if the model could not be loaded
+     */
+    void acquire(UUID modelId) throws FOSException {
+        if (pin(modelId)) {
+            return;
+        }
+
+        synchronized (lock(modelId)) {
+            if (pin(modelId)) {
+                return;
+            }
+
+            RModelConfig config;
+            synchronized (this) {
+                config = configs.get(modelId);
+            }
+            if (config == null) {
+                // unknown: scoring reports it as usual
+                return;
+            }
+
+            load(modelId, config);
+            if (!pin(modelId)) {
+                // removed while loading
+                return;
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Unpins a model after a score
+     * @param modelId UUID of the scored model
+     */
+    synchronized void release(UUID modelId) {
+        Integer count = pins.get(modelId);
+        if (count == null) {
+            return;
+        }
+        if (count == 1) {
+            pins.remove(modelId);
+        } else {
+            pins.put(modelId, count - 1);
+        }
+    }
+
+    /**
+     * Forgets a removed model. The model environment must be removed by the caller.
+     * @param modelId UUID of the model
+     */
+    synchronized void remove(UUID modelId) {
+        configs.remove(modelId);
+        Long size = loaded.remove(modelId);
+        if (size != null) {
+            used -= size;
+        }
+        loading.remove(modelId);
+    }
+
+    /**
+     * Checks if a model is loaded, without marking it as recently scored
+     * @param modelId UUID of the model
+     * @return true if the model is loaded
+     */
+    synchronized boolean isLoaded(UUID modelId) {
+        return loaded.containsKey(modelId);
+    }
+
+    /**
+     * Pins a loaded model, marking it as the most recently scored one
+     * @param modelId UUID of the model
+     * @return true if the model is loaded (and was pinned)
+     */
+    private synchronized boolean pin(UUID modelId) {
+        if (loaded.get(modelId) == null) {
+            return false;
+        }
+        Integer count = pins.get(modelId);
+        pins.put(modelId, count == null ? 1 : count + 1);
+        return true;
+    }
+
+    /**
+     * Loads a model and accounts for its memory. Must be called with the model lock held.
+     * @param modelId UUID of the model
+     * @param config R model configuration
+     * @throws FOSException if the model could not be loaded
+     */
+    private void load(UUID modelId, RModelConfig config) throws FOSException {
+        scorer.load(config);
+        long size = scorer.memoryUsed(modelId);
+        logger.debug("Model {} loaded into R ({} bytes)", modelId, size);
+
+        synchronized (this) {
+            if (!configs.containsKey(modelId)) {
+                return;
+            }
+            Long previous = loaded.put(modelId, size);
+            used += size - (previous != null ? previous : 0);
+        }
+    }
+
+    /**
+     * Unloads the least recently scored models that are not pinned until the memory used is within the budget
+     */
+    private void evict() {
+        List<UUID> evicted = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<UUID, Long> entry : loaded.entrySet()) {
+                if (used <= memoryBudget) {
+                    break;
+                }
+                if (!pins.containsKey(entry.getKey())) {
+                    evicted.add(entry.getKey());
+                    used -= entry.getValue();
+                }
+            }
+            loaded.keySet().removeAll(evicted);
+        }
+
+        for (UUID modelId : evicted) {
+            synchronized (lock(modelId)) {
+                synchronized (this) {
+                    // loaded again by a score since it was evicted
+                    if (loaded.containsKey(modelId)) {
+                        continue;
+                    }
+                }
+                logger.debug("Model {} unloaded from R, memory budget of {} bytes exceeded", modelId, memoryBudget);
+                scorer.unload(modelId);
+            }
+        }
+    }
+
+    /**
+     * Gets the lock that serializes the loads of a model
+     * @param modelId UUID of the model
+     * @return the lock
+     */
+    private Object lock(UUID modelId) {
+        Object lock = loading.get(modelId);
+        if (lock == null) {
+            Object created = new Object();
+            lock = loading.putIfAbsent(modelId, created);
+            if (lock == null) {
+                lock = created;
+            }
+        }
+        return lock;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return Objects.toStringHelper(this)
+                .add("memoryBudget", memoryBudget)
+                .add("used", used)
+                .add("registered", configs.size())
+                .add("loaded", loaded.size())
+                .toString();
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r;
+
+import com.feedzai.fos.api.Attribute;
+import com.feedzai.fos.api.CategoricalAttribute;
+import com.feedzai.fos.api.FOSException;
+import com.feedzai.fos.api.NumericAttribute;
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPGenericVector;
+import org.rosuda.REngine.REXPInteger;
+import org.rosuda.REngine.RList;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.feedzai.fos.impl.r.RScorer.rVariableName;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Scoring schema of a R model: the environment where the model lives and the type of each scored attribute.
+ * <p/>
+ * Converts scorables into typed R vectors that are sent to R with the Rserve binary protocol, which avoids
+ * generating and parsing R source code. Numeric attributes are sent as doubles and categorical attributes as
+ * integer factor codes (the 1 based position of the level in the attribute definition, NA for missing values and
+ * unknown levels), so R builds the factors without matching strings.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+class RModelSchema {
+    /**
+     * Significant digits of the numbers converted to character by R
+     */
+    private static final MathContext R_DIGITS = new MathContext(15);
+
+    /**
+     * R environment where the model lives
+     */
+    private final String environment;
+
+    /**
+     * R column names of the scored attributes
+     */
+    private final String[] names;
+
+    /**
+     * Whether each scored attribute is categorical
+     */
+    private final boolean[] categorical;
+
+    /**
+     * Index of each level of the categorical attributes, in attribute order (null for numeric attributes)
+     */
+    private final List<Map<String, Integer>> levels;
+
+    /**
+     * Creates a new schema
+     *
+     * @param environment R environment where the model lives
+     * @param attributes scored attributes (without the class attribute)
+     * @throws FOSException if an attribute type is not supported
+     */
+    RModelSchema(String environment, List<Attribute> attributes) throws FOSException {
+        checkNotNull(environment, "Environment cannot be null");
+        checkNotNull(attributes, "Attributes cannot be null");
+
+        this.environment = environment;
+        this.names = new String[attributes.size()];
+        this.categorical = new boolean[attributes.size()];
+        this.levels = new ArrayList<>(attributes.size());
+
+        for (int i = 0; i != attributes.size(); ++i) {
+            Attribute attribute = attributes.get(i);
+            names[i] = rVariableName(attribute.getName());
+
+            if (attribute instanceof CategoricalAttribute) {
+                categorical[i] = true;
+
+                Map<String, Integer> index = new HashMap<>();
+                for (String level : ((CategoricalAttribute) attribute).getCategoricalInstances()) {
+                    if (!index.containsKey(level)) {
+                        index.put(level, index.size());
+                    }
+                }
+                levels.add(index);
+            } else if (attribute instanceof NumericAttribute) {
+                levels.add(null);
+            } else {
+                throw new FOSException("Unknown attribute type");
+            }
+        }
+    }
+
+    /**
+     * Converts a scorable into a named R list with one typed vector per attribute
+     *
+     * @param scorable values to score, in attribute order
+     * @return the R list
+     * @throws FOSException if the scorable has less values than attributes
+     */
+    REXP encode(Object[] scorable) throws FOSException {
+        return encode(Collections.singletonList(scorable));
+    }
+
+    /**
+     * Converts a batch of scorables into a named R list with one typed vector per attribute, each vector holding
+     * the values of that attribute for every scorable (i.e. column-wise, as in a R data frame)
+     *
+     * @param scorables values to score, each in attribute order
+     * @return the R list
+     * @throws FOSException if a scorable has less values than attributes
+     */
+    REXP encode(List<Object[]> scorables) throws FOSException {
+        int rows = scorables.size();
+        for (Object[] scorable : scorables) {
+            if (scorable.length < names.length) {
+                throw new FOSException("Expected " + names.length + " values to score but got " + scorable.length);
+            }
+        }
+
+        REXP[] columns = new REXP[names.length];
+        for (int i = 0; i != names.length; ++i) {
+            if (categorical[i]) {
+                int[] codes = new int[rows];
+                for (int row = 0; row != rows; ++row) {
+                    int level = levelIndex(i, scorables.get(row)[i]);
+                    codes[row] = level < 0 ? REXPInteger.NA : level + 1;
+                }
+                columns[i] = new REXPInteger(codes);
+            } else {
+                double[] values = new double[rows];
+                for (int row = 0; row != rows; ++row) {
+                    values[row] = numericValue(scorables.get(row)[i]);
+                }
+                columns[i] = new REXPDouble(values);
+            }
+        }
+
+        return new REXPGenericVector(new RList(columns, names));
+    }
+
+    /**
+     * Converts a scorable into a row of doubles, for scoring in the JVM. Categorical values are converted to the
+     * index of the level in the attribute definition.
+     *
+     * @param scorable values to score, in attribute order
+     * @return the row, with NaN for missing values and unknown levels
+     * @throws FOSException if the scorable has less values than attributes
+     */
+    double[] encodeRow(Object[] scorable) throws FOSException {
+        if (scorable.length < names.length) {
+            throw new FOSException("Expected " + names.length + " values to score but got " + scorable.length);
+        }
+
+        double[] row = new double[names.length];
+        for (int i = 0; i != names.length; ++i) {
+            if (categorical[i]) {
+                int level = levelIndex(i, scorable[i]);
+                row[i] = level < 0 ? Double.NaN : level;
+            } else {
+                double value = numericValue(scorable[i]);
+                row[i] = REXPDouble.isNA(value) ? Double.NaN : value;
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Gets the instance scored to compare the forest of a model with R: the first level of every categorical
+     * attribute and 0 for every numeric attribute
+     *
+     * @return the probe instance, in attribute order
+     */
+    Object[] probe() {
+        Object[] probe = new Object[names.length];
+        for (int i = 0; i != names.length; ++i) {
+            probe[i] = 0d;
+            if (categorical[i]) {
+                for (Map.Entry<String, Integer> level : levels.get(i).entrySet()) {
+                    if (level.getValue() == 0) {
+                        probe[i] = level.getKey();
+                    }
+                }
+            }
+        }
+        return probe;
+    }
+
+    /**
+     * Gets the index of a categorical value in the levels of its attribute
+     * @param column attribute index
+     * @param value value to convert
+     * @return the level index, or -1 for missing values and unknown levels
+     */
+    private int levelIndex(int column, Object value) {
+        Integer level = value == null ? null : levels.get(column).get(levelName(value));
+        return level == null ? -1 : level;
+    }
+
+    /**
+     * Converts a categorical value to the level it names, as R's {@code as.character} does: integral numbers have
+     * no decimal part (the double 1.0 is the level "1") and other numbers keep 15 significant digits
+     * @param value value to convert (not null)
+     * @return the level name
+     */
+    static String levelName(Object value) {
+        if (value instanceof Double || value instanceof Float || value instanceof BigDecimal) {
+            double number = ((Number) value).doubleValue();
+            if (Double.isNaN(number)) {
+                return "NaN";
+            }
+            if (Double.isInfinite(number)) {
+                return number > 0 ? "Inf" : "-Inf";
+            }
+            if (number == Math.rint(number) && Math.abs(number) < 1e15) {
+                return Long.toString((long) number);
+            }
+            return new BigDecimal(number).round(R_DIGITS).stripTrailingZeros().toPlainString();
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value ? "TRUE" : "FALSE";
+        }
+        return value.toString();
+    }
+
+    /**
+     * Converts a value to a R numeric
+     * @param value value to convert
+     * @return the numeric value, or the R missing value if not numeric
+     */
+    static double numericValue(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value != null) {
+            try {
+                return Double.parseDouble(value.toString());
+            } catch (NumberFormatException e) {
+                // not a number, fall through to missing value
+            }
+        }
+        return REXPDouble.NA;
+    }
+
+    /**
+     * Checks if scorables encoded by this schema can be scored by a model with another schema,
+     * i.e. both schemas have the same columns with the same types and levels
+     *
+     * @param other other schema
+     * @return true if the encoded scorables are interchangeable
+     */
+    boolean isCompatible(RModelSchema other) {
+        return Arrays.equals(names, other.names)
+               && Arrays.equals(categorical, other.categorical)
+               && levels.equals(other.levels);
+    }
+
+    /**
+     * Gets the R environment where the model lives
+     * @return the environment name
+     */
+    String getEnvironment() {
+        return environment;
+    }
+
+    /**
+     * Gets the levels of a categorical attribute, indexed as in {@link #encodeRow(Object[])}
+     * @param column attribute index
+     * @return the level indexes, or null if the attribute is numeric
+     */
+    Map<String, Integer> getLevels(int column) {
+        return levels.get(column);
+    }
+
+    /**
+     * Gets the R column names of the scored attributes
+     * @return the column names
+     */
+    String[] getNames() {
+        return names;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Bounded cache of single instance scores, keyed by model, model generation and a 128 bit hash of the scored values.
+ * <p/>
+ * Entries are evicted by size (least recently used first) and by age. Every entry of a model must be invalidated
+ * when the model changes, which also starts a new generation of the model: a score computed by the previous
+ * version and cached after the invalidation is put under its old generation, and so never returned.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+class RScoreCache {
+    /**
+     * Hash type tags, so that e.g. the string "1" and the number 1 have different hashes
+     */
+    private static final byte NULL = 0;
+    private static final byte NUMBER = 1;
+    private static final byte OTHER = 2;
+
+    /**
+     * Source of model generations, unique across models so that a removed and added again model never reuses one
+     */
+    private static final AtomicLong GENERATIONS = new AtomicLong();
+
+    /**
+     * Backing cache
+     */
+    private final Cache<Key, double[]> cache;
+
+    /**
+     * Current generation of each invalidated model
+     */
+    private final ConcurrentMap<UUID, Long> generations = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new score cache
+     * @param maximumSize maximum number of cached scores
+     * @param expireAfterWriteMillis time in milliseconds after which a cached score expires
+     */
+    RScoreCache(long maximumSize, long expireAfterWriteMillis) {
+        checkArgument(maximumSize > 0, "Maximum size must be positive");
+        checkArgument(expireAfterWriteMillis > 0, "Expiration time must be positive");
+
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWriteMillis, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Gets the current generation of a model, which must be read before the model is scored
+     * @param modelId UUID of the model
+     * @return the generation
+     */
+    long generation(UUID modelId) {
+        Long generation = generations.get(modelId);
+        return generation != null ? generation : 0;
+    }
+
+    /**
+     * Gets a cached score
+     * @param modelId UUID of the scored model
+     * @param generation generation of the model, see {@link #generation(UUID)}
+     * @param scorable scored values
+     * @return a copy of the cached scores, or null if not cached
+     */
+    double[] get(UUID modelId, long generation, Object[] scorable) {
+        double[] scores = cache.getIfPresent(new Key(modelId, generation, scorable));
+        return scores != null ? scores.clone() : null;
+    }
+
+    /**
+     * Caches a score
+     * @param modelId UUID of the scored model
+     * @param generation generation of the model read before scoring, see {@link #generation(UUID)}
+     * @param scorable scored values
+     * @param scores scores of the values
+     */
+    void put(UUID modelId, long generation, Object[] scorable, double[] scores) {
+        cache.put(new Key(modelId, generation, scorable), scores.clone());
+    }
+
+    /**
+     * Discards every cached score of a model and starts a new generation of the model
+     * @param modelId UUID of the model
+     */
+    void invalidate(UUID modelId) {
+        generations.put(modelId, GENERATIONS.incrementAndGet());
+        discard(modelId);
+    }
+
+    /**
+     * Discards every cached score of a removed model
+     * @param modelId UUID of the model
+     */
+    void remove(UUID modelId) {
+        generations.remove(modelId);
+        discard(modelId);
+    }
+
+    /**
+     * Discards the cached scores of a model
+     * @param modelId UUID of the model
+     */
+    private void discard(UUID modelId) {
+        for (Iterator<Key> keys = cache.asMap().keySet().iterator(); keys.hasNext(); ) {
+            if (keys.next().modelId.equals(modelId)) {
+                keys.remove();
+            }
+        }
+    }
+
+    /**
+     * Gets the hit, miss and eviction counters
+     * @return the cache statistics
+     */
+    CacheStats stats() {
+        return cache.stats();
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("size", cache.size())
+                .add("stats", cache.stats())
+                .toString();
+    }
+
+    /**
+     * Cache key: the model UUID and generation and the murmur3 128 bit hash of the scored values
+     */
+    private static final class Key {
+        private final UUID modelId;
+        private final long generation;
+        private final long high;
+        private final long low;
+
+        private Key(UUID modelId, long generation, Object[] scorable) {
+            Hasher hasher = Hashing.murmur3_128().newHasher();
+            for (Object value : scorable) {
+                if (value == null) {
+                    hasher.putByte(NULL);
+                } else if (value instanceof Number) {
+                    hasher.putByte(NUMBER).putDouble(((Number) value).doubleValue());
+                } else {
+                    byte[] bytes = value.toString().getBytes(Charsets.UTF_8);
+                    hasher.putByte(OTHER).putInt(bytes.length).putBytes(bytes);
+                }
+            }
+
+            ByteBuffer hash = ByteBuffer.wrap(hasher.hash().asBytes());
+            this.modelId = modelId;
+            this.generation = generation;
+            this.high = hash.getLong();
+            this.low = hash.getLong();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return high == other.high && low == other.low && generation == other.generation
+                    && modelId.equals(other.modelId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * modelId.hashCode() + (int) (low ^ (low >>> 32));
+        }
+    }
+}
@@ -24,16 +24,33 @@ package com.feedzai.fos.impl.r;
 
 import com.feedzai.fos.api.*;
 import com.feedzai.fos.impl.r.config.RModelConfig;
+import com.feedzai.fos.impl.r.forest.BinaryForest;
+import com.feedzai.fos.impl.r.forest.Forest;
+import com.feedzai.fos.impl.r.forest.PMMLForestConverter;
+import com.feedzai.fos.impl.r.metrics.ModelMetrics;
+import com.feedzai.fos.impl.r.metrics.RMetrics;
+import com.feedzai.fos.impl.r.metrics.ScoreStage;
+import com.feedzai.fos.impl.r.rserve.FosRPreparedCall;
 import com.feedzai.fos.impl.r.rserve.FosRserve;
-import com.google.common.base.Function;
+import com.feedzai.fos.impl.r.rserve.FosRserveInitializer;
+import com.feedzai.fos.impl.r.rserve.FosRservePool;
+import com.feedzai.fos.impl.r.rserve.FosRserveScript;
 import com.google.common.base.Joiner;
-import com.google.common.collect.Lists;
+import com.google.common.cache.CacheStats;
+import org.rosuda.REngine.REXP;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 /**
  * Implementation of the Scorer API using R as the backend
@@ -54,14 +71,89 @@ public class RScorer implements Scorer {
     private static final String SAVE_AS_PMML_FUNCTION_PREFIX = "saveAsPMML";
 
     /**
-     * Reference to the backing RServe daemon
+     * Global R variable where the values to score are assigned
      */
-    private final FosRserve rserve;
+    private static final String SCORABLE_VARIABLE = ".fos.scorable";
+
+    /**
+     * Pool registration key of the libraries loaded by default
+     */
+    private static final String DEFAULT_LIBRARIES_KEY = "libraries";
+
+    /**
+     * Pool registration key of the workspace snapshot restore
+     */
+    private static final String SNAPSHOT_KEY = "snapshot";
+
+    /**
+     * Suffix of the binary forest exported next to a model file
+     */
+    static final String FOREST_SUFFIX = ".forest";
+
+    /**
+     * Shards of backing RServe sessions, each model is loaded and scored in the shard that owns it
+     */
+    private volatile RShardRing shards;
+
+    /**
+     * Held while a session of the shard that owns a model is in use, so the owner doesn't change under a score
+     */
+    private final ReadWriteLock routing = new ReentrantReadWriteLock();
+
+    /**
+     * Held while models are registered in their shards, so that moving models between shards sees every model
+     */
+    private final ReadWriteLock placement = new ReentrantReadWriteLock();
+
+    /**
+     * Setup of every model loaded in R, registered again in its new shard when it moves
+     */
+    private final Map<UUID, ModelSetup> setups = new ConcurrentHashMap<>();
+
+    /**
+     * Libraries loaded by default in every session (null if none)
+     */
+    private FosRserveScript defaultLibraries;
+
+    /**
+     * Snapshot of the R workspace (null if disabled)
+     */
+    private final RWorkspaceSnapshot snapshot;
+
+    /**
+     * Metrics of the scored models
+     */
+    private final RMetrics metrics;
+
+    /**
+     * Coalesces concurrent single instance scores (null if disabled)
+     */
+    private volatile RMicroBatcher batcher;
+
+    /**
+     * Cache of single instance scores (null if disabled)
+     */
+    private volatile RScoreCache cache;
+
+    /**
+     * Loads models on their first score and unloads them over a memory budget (null if models are loaded eagerly)
+     */
+    private volatile RModelLoader loader;
+
+    /**
+     * Models scored in the JVM
+     */
+    private final Map<UUID, ForestModel> forests = new ConcurrentHashMap<>();
 
     /**
      * Set with all the configured models
      */
-    private Set<UUID>  uuids = new HashSet<>();
+    private final Set<UUID> uuids = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+
+    /**
+     * Last version of each model, which names the R environment where that version is built
+     */
+    private final Map<UUID, Integer> versions = new HashMap<>();
 
     /**
      * Return the scorer for a given model ID
@@ -74,286 +166,1258 @@ public class RScorer implements Scorer {
     }
 
     /**
-     * Creates a RScorer instance with a backing RServe process
-     * @param rserve Backing rserve process
+     * Creates a RScorer instance with a pool of backing RServe sessions
+     * @param pool Backing rserve sessions
      */
-    public RScorer(FosRserve rserve) throws FOSException {
-        checkNotNull(rserve, "Manager config cannot be null");
-        this.rserve = rserve;
+    public RScorer(FosRservePool pool) throws FOSException {
+        this(pool, (RWorkspaceSnapshot) null);
     }
 
     /**
-     * Create a RScorer instance loading custom libraries
+     * Creates a RScorer instance with a pool of backing RServe sessions
+     * @param pool Backing rserve sessions
+     * @param snapshot Snapshot of the R workspace (null if disabled)
+     */
+    private RScorer(FosRservePool pool, RWorkspaceSnapshot snapshot) throws FOSException {
+        this(Collections.singletonList(checkNotNull(pool, "Session pool cannot be null")), snapshot);
+    }
+
+    /**
+     * Creates a RScorer instance with several shards of backing RServe sessions
+     * @param pools Backing rserve sessions of each shard
+     * @param snapshot Snapshot of the R workspace (null if disabled)
+     */
+    private RScorer(List<FosRservePool> pools, RWorkspaceSnapshot snapshot) throws FOSException {
+        checkNotNull(pools, "Session pools cannot be null");
+        checkArgument(!pools.isEmpty(), "At least one session pool is required");
+        checkArgument(snapshot == null || pools.size() == 1, "Workspace snapshots require a single shard");
+
+        Map<String, FosRservePool> named = new LinkedHashMap<>();
+        for (FosRservePool pool : pools) {
+            named.put("shard-" + named.size(), checkNotNull(pool, "Session pool cannot be null"));
+        }
+        this.shards = new RShardRing(named);
+        this.snapshot = snapshot;
+        this.metrics = pools.get(0).getMetrics();
+    }
+
+    /**
+     * Create a RScorer instance loading custom libraries in every session
      *
-     * @param rserve Backing rserve process
+     * @param pool Backing rserve sessions
      * @param rlibraries Libraries that will be loaded prior to generating the scoring function
      *
      * @throws FOSException If unable to add the relevant libraries
      */
-    public RScorer(FosRserve rserve, String... rlibraries) throws FOSException {
-        checkNotNull(rserve, "Manager config cannot be null");
-        this.rserve = rserve;
+    public RScorer(FosRservePool pool, String... rlibraries) throws FOSException {
+        this(pool, null, rlibraries);
+    }
 
+    /**
+     * Create a RScorer instance loading custom libraries in every session and restoring the model environments
+     * from a previous workspace snapshot.
+     * <p/>
+     * Models added afterwards whose model file and setup code didn't change since the snapshot was taken won't
+     * be loaded again.
+     *
+     * @param pool Backing rserve sessions
+     * @param snapshot Snapshot of the R workspace (null if disabled)
+     * @param rlibraries Libraries that will be loaded prior to generating the scoring function
+     *
+     * @throws FOSException If unable to add the relevant libraries
+     */
+    public RScorer(FosRservePool pool, RWorkspaceSnapshot snapshot, String... rlibraries) throws FOSException {
+        this(Collections.singletonList(checkNotNull(pool, "Session pool cannot be null")), snapshot, rlibraries);
+    }
+
+    /**
+     * Create a RScorer instance that spreads the models over several shards of RServe sessions, loading custom
+     * libraries in every session.
+     * <p/>
+     * Each model is loaded and scored only in the shard that owns it, placed by a consistent hash of its UUID, so
+     * every shard holds about its share of the models. A workspace snapshot can only be restored with one shard.
+     *
+     * @param pools Backing rserve sessions of each shard
+     * @param snapshot Snapshot of the R workspace (null if disabled)
+     * @param rlibraries Libraries that will be loaded prior to generating the scoring function
+     *
+     * @throws FOSException If unable to add the relevant libraries
+     */
+    public RScorer(List<FosRservePool> pools, RWorkspaceSnapshot snapshot, String... rlibraries) throws FOSException {
+        this(pools, snapshot);
+
+        List<String> commands = new ArrayList<>();
         for (String library : rlibraries) {
-            rserve.eval("library(" + library  + ")");
+            commands.add("library(" + library  + ")");
         }
+        commands.add(BinaryForest.EXPORT_FUNCTION);
+        defaultLibraries = new FosRserveScript(commands);
+        for (FosRservePool pool : pools) {
+            pool.register(DEFAULT_LIBRARIES_KEY, defaultLibraries);
+        }
+
+        FosRserveInitializer restore = snapshot != null ? snapshot.restore() : null;
+        if (restore != null) {
+            try {
+                pools.get(0).register(SNAPSHOT_KEY, restore);
+            } catch (FOSException e) {
+                logger.warn("Unable to restore R workspace snapshot, models will be loaded from scratch", e);
+                snapshot.discard();
+            }
+        }
+    }
+
+
+    /**
+     * Coalesces concurrent single instance scores of the same model into vectorized batch scores.
+     *
+     * @param maxBatchSize maximum number of instances scored in the same R call
+     * @param maxWaitMicros maximum time in microseconds a request waits for its batch to be dispatched
+     */
+    public void enableMicroBatching(int maxBatchSize, long maxWaitMicros) {
+        RMicroBatcher previous = batcher;
+        batcher = new RMicroBatcher(this, metrics, maxBatchSize, maxWaitMicros);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Caches single instance scores, so that repeated (model, instance) pairs are not scored again.
+     *
+     * @param maximumSize maximum number of cached scores
+     * @param expireAfterWriteMillis time in milliseconds after which a cached score expires
+     */
+    public void enableScoreCache(long maximumSize, long expireAfterWriteMillis) {
+        cache = new RScoreCache(maximumSize, expireAfterWriteMillis);
+    }
+
+    /**
+     * Loads models into R on their first score instead of when they are added, and unloads the least recently
+     * scored ones when the memory they use in R exceeds the budget. Unloaded models are loaded again on their next
+     * score. Must be enabled before any model is added. Not supported with a workspace snapshot, whose restore loads
+     * every model.
+     *
+     * @param memoryBudget maximum R memory, in bytes, used by the loaded models
+     */
+    public void enableLazyLoading(long memoryBudget) {
+        checkState(snapshot == null, "Lazy loading is not supported with a workspace snapshot");
+        loader = new RModelLoader(this, memoryBudget);
+    }
+
+    /**
+     * Gets the loader of the models, if lazy loading is enabled
+     * @return the loader, or null if every model is loaded when added
+     */
+    RModelLoader getLoader() {
+        return loader;
     }
 
+    /**
+     * Gets the snapshot of the R workspace
+     * @return the snapshot, or null if disabled
+     */
+    RWorkspaceSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Gets the hit, miss and eviction counters of the score cache
+     * @return the cache statistics (all zero if the cache is disabled)
+     */
+    public CacheStats getCacheStats() {
+        RScoreCache cache = this.cache;
+        return cache != null ? cache.stats() : new CacheStats(0, 0, 0, 0, 0, 0);
+    }
 
     @Override
     public final double[] score(final UUID modelId, final Object[] scorable) throws FOSException {
-        StringBuilder sb = new StringBuilder();
-        sb.append(uuid2environment(modelId))
-            .append("$score(c(");
+        ModelMetrics modelMetrics = metrics.model(modelId);
+        long start = modelMetrics.start();
+        boolean succeeded = false;
+        try {
+            double[] scores = scoreInstance(modelId, scorable);
+            succeeded = true;
+            return scores;
+        } finally {
+            modelMetrics.end(start, succeeded);
+        }
+    }
 
-        for (int i = 0; i != scorable.length - 1; ++i) {
-            appendValue(scorable[i], sb);
-            sb.append(',');
+    /**
+     * Scores a single instance, in the JVM if possible, otherwise from the cache or in R
+     * @param modelId UUID of the model to score
+     * @param scorable instance to score
+     * @return the scores
+     * @throws FOSException if the model is unknown or scoring failed
+     */
+    private double[] scoreInstance(final UUID modelId, final Object[] scorable) throws FOSException {
+        ForestModel forest = forests.get(modelId);
+        if (forest != null) {
+            double[] scores = scoreForest(forest, modelId, scorable);
+            if (scores != null) {
+                return scores;
+            }
         }
 
-        appendValue(scorable[scorable.length - 1], sb);
+        RScoreCache cache = this.cache;
+        if (cache == null) {
+            return scoreUncached(modelId, scorable);
+        }
 
-        sb.append("))");
+        // a score of the previous version of the model finished after an update is never cached as current
+        long generation = cache.generation(modelId);
+        double[] scores = cache.get(modelId, generation, scorable);
+        if (scores == null) {
+            scores = scoreUncached(modelId, scorable);
+            cache.put(modelId, generation, scorable, scores);
+        }
+        return scores;
+    }
 
-        return rserve.eval(sb.toString());
+    /**
+     * Scores a single instance in R
+     * @param modelId UUID of the model to score
+     * @param scorable instance to score
+     * @return the scores
+     * @throws FOSException if the model is unknown or scoring failed
+     */
+    private double[] scoreUncached(final UUID modelId, final Object[] scorable) throws FOSException {
+        RMicroBatcher batcher = this.batcher;
+        if (batcher != null) {
+            return batcher.score(modelId, scorable);
+        }
+
+        String rEnvironment = uuid2environment(modelId);
+
+        acquire(modelId);
+        ShardSession session = null;
+        try {
+            session = borrow(modelId);
+            FosRserve rserve = session.rserve;
+            ModelSetup setup = (ModelSetup) session.pool.applied(rserve, rEnvironment);
+            if (setup == null) {
+                throw new FOSException("Unknown model " + modelId);
+            }
+
+            // bind the typed values and call the scoring function on them
+            FosRPreparedCall call = rserve.prepare(setup.scoreCall, SCORABLE_VARIABLE);
+            ModelMetrics modelMetrics = metrics.model(modelId);
+            long start = System.nanoTime();
+            REXP argument = setup.schema.encode(scorable);
+            modelMetrics.record(ScoreStage.ENCODE, System.nanoTime() - start);
+
+            double[] scores = rserve.invokeDoubles(call, null, setup.timeout, argument);
+            modelMetrics.recordCall(rserve.getMetrics());
+            return scores;
+        } finally {
+            if (session != null) {
+                session.release();
+            }
+            release(modelId);
+        }
+    }
+
+    /**
+     * Scores an instance with several models in a single call.
+     * <p/>
+     * The instance is encoded and sent once for every distinct scoring schema and all the model scoring functions
+     * are evaluated in the same R call, so scoring with N models costs about one round trip.
+     *
+     * @param modelIds UUIDs of the models to score
+     * @param scorable instance to score
+     * @return the scores of each model, in order
+     * @throws FOSException if a model is unknown or scoring failed
+     */
+    @Override
+    public List<double[]> score(final List<UUID> modelIds, final Object[] scorable) throws FOSException {
+        if (modelIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        List<ModelMetrics> modelMetrics = new ArrayList<>(modelIds.size());
+        long[] starts = new long[modelIds.size()];
+        for (int i = 0; i != modelIds.size(); ++i) {
+            modelMetrics.add(metrics.model(modelIds.get(i)));
+            starts[i] = modelMetrics.get(i).start();
+        }
+
+        boolean succeeded = false;
+        try {
+            List<double[]> scores = scoreModels(modelIds, scorable);
+            succeeded = true;
+            return scores;
+        } finally {
+            for (int i = 0; i != modelIds.size(); ++i) {
+                modelMetrics.get(i).end(starts[i], succeeded);
+            }
+        }
+    }
+
+    /**
+     * Scores an instance with several models, in the JVM for the models that can, otherwise in a single R call for
+     * each shard that owns some of them
+     * @param modelIds UUIDs of the models to score
+     * @param scorable instance to score
+     * @return the scores of each model, in order
+     * @throws FOSException if a model is unknown or scoring failed
+     */
+    private List<double[]> scoreModels(final List<UUID> modelIds, final Object[] scorable) throws FOSException {
+        double[][] scores = new double[modelIds.size()][];
+        List<Integer> remaining = new ArrayList<>(modelIds.size());
+        for (int i = 0; i != modelIds.size(); ++i) {
+            ForestModel forest = forests.get(modelIds.get(i));
+            if (forest != null) {
+                scores[i] = scoreForest(forest, modelIds.get(i), scorable);
+            }
+            if (scores[i] == null) {
+                remaining.add(i);
+            }
+        }
+        if (remaining.size() == modelIds.size()) {
+            return scoreShards(modelIds, scorable);
+        }
+        if (remaining.isEmpty()) {
+            return Arrays.asList(scores);
+        }
+
+        List<UUID> remainingIds = new ArrayList<>(remaining.size());
+        for (int i : remaining) {
+            remainingIds.add(modelIds.get(i));
+        }
+        List<double[]> rscores = scoreShards(remainingIds, scorable);
+        for (int i = 0; i != remaining.size(); ++i) {
+            scores[remaining.get(i)] = rscores.get(i);
+        }
+        return Arrays.asList(scores);
+    }
+
+    /**
+     * Scores an instance with several models in a single R call for each shard that owns some of them
+     * @param modelIds UUIDs of the models to score
+     * @param scorable instance to score
+     * @return the scores of each model, in order
+     * @throws FOSException if a model is unknown or scoring failed
+     */
+    private List<double[]> scoreShards(final List<UUID> modelIds, final Object[] scorable) throws FOSException {
+        List<UUID> acquired = new ArrayList<>(modelIds.size());
+        Lock lock = routing.readLock();
+        boolean locked = false;
+        try {
+            for (UUID modelId : modelIds) {
+                acquire(modelId);
+                acquired.add(modelId);
+            }
+            lock.lock();
+            locked = true;
+
+            Map<FosRservePool, List<Integer>> groups = new LinkedHashMap<>();
+            for (int i = 0; i != modelIds.size(); ++i) {
+                FosRservePool pool = shards.pool(modelIds.get(i));
+                List<Integer> group = groups.get(pool);
+                if (group == null) {
+                    group = new ArrayList<>();
+                    groups.put(pool, group);
+                }
+                group.add(i);
+            }
+            if (groups.size() == 1) {
+                return scoreModels(groups.keySet().iterator().next(), modelIds, scorable);
+            }
+
+            double[][] scores = new double[modelIds.size()][];
+            for (Map.Entry<FosRservePool, List<Integer>> group : groups.entrySet()) {
+                List<UUID> groupIds = new ArrayList<>(group.getValue().size());
+                for (int i : group.getValue()) {
+                    groupIds.add(modelIds.get(i));
+                }
+
+                List<double[]> groupScores = scoreModels(group.getKey(), groupIds, scorable);
+                for (int i = 0; i != groupIds.size(); ++i) {
+                    scores[group.getValue().get(i)] = groupScores.get(i);
+                }
+            }
+            return Arrays.asList(scores);
+        } finally {
+            if (locked) {
+                lock.unlock();
+            }
+            for (UUID modelId : acquired) {
+                release(modelId);
+            }
+        }
+    }
+
+    /**
+     * Scores an instance with several models of the same shard in a single R call
+     * @param pool sessions of the shard that owns the models
+     * @param modelIds UUIDs of the models to score
+     * @param scorable instance to score
+     * @return the scores of each model, in order
+     * @throws FOSException if a model is unknown or scoring failed
+     */
+    private List<double[]> scoreModels(FosRservePool pool, List<UUID> modelIds, Object[] scorable) throws FOSException {
+        FosRserve rserve = pool.borrow();
+        try {
+            List<RModelSchema> schemas = new ArrayList<>();
+            List<String> calls = new ArrayList<>(modelIds.size());
+            long timeout = 0;
+            boolean unbounded = false;
+
+            for (UUID modelId : modelIds) {
+                ModelSetup setup = (ModelSetup) pool.applied(rserve, uuid2environment(modelId));
+                if (setup == null) {
+                    throw new FOSException("Unknown model " + modelId);
+                }
+
+                // models with the same columns share the encoded instance
+                int index = 0;
+                while (index != schemas.size() && !schemas.get(index).isCompatible(setup.schema)) {
+                    ++index;
+                }
+                if (index == schemas.size()) {
+                    schemas.add(setup.schema);
+                }
+                calls.add(setup.schema.getEnvironment() + "$score(" + scorableVariable(index) + ")");
+
+                // the call is bounded by the most permissive model timeout
+                unbounded |= setup.timeout <= 0;
+                timeout = Math.max(timeout, setup.timeout);
+            }
+
+            long start = System.nanoTime();
+            String[] parameters = new String[schemas.size()];
+            REXP[] arguments = new REXP[schemas.size()];
+            for (int i = 0; i != schemas.size(); ++i) {
+                parameters[i] = scorableVariable(i);
+                arguments[i] = schemas.get(i).encode(scorable);
+            }
+            long encoding = System.nanoTime() - start;
+
+            FosRPreparedCall call = rserve.prepare("list(" + Joiner.on(", ").join(calls) + ")", parameters);
+
+            List<double[]> scores = rserve.invokeDoublesList(call, unbounded ? 0 : timeout, arguments);
+
+            // every model of the call shares its encoding and RServe stages
+            for (UUID modelId : modelIds) {
+                ModelMetrics modelMetrics = metrics.model(modelId);
+                modelMetrics.record(ScoreStage.ENCODE, encoding);
+                modelMetrics.recordCall(rserve.getMetrics());
+            }
+            return scores;
+        } finally {
+            pool.release(rserve);
+        }
+    }
+
+    /**
+     * Scores a batch of instances with a single call to the model scoring function.
+     * <p/>
+     * The batch is sent column-wise, so R scores it with a single vectorized {@code predict}.
+     *
+     * @param modelId UUID of the model to score
+     * @param scorables instances to score
+     * @return the scores of each instance, in order
+     * @throws FOSException if the model is unknown or scoring failed
+     */
+    @Override
+    public List<double[]> score(final UUID modelId, final List<Object[]> scorables) throws FOSException {
+        if (scorables.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        ModelMetrics modelMetrics = metrics.model(modelId);
+        long start = modelMetrics.start();
+        boolean succeeded = false;
+        try {
+            List<double[]> scores = scoreInstances(modelId, scorables);
+            succeeded = true;
+            return scores;
+        } finally {
+            modelMetrics.end(start, succeeded);
+        }
+    }
+
+    /**
+     * Scores a batch of instances, in the JVM if possible, otherwise in R. Not recorded as a score request, so
+     * that micro batches are only counted as the single instance requests they group.
+     *
+     * @param modelId UUID of the model to score
+     * @param scorables instances to score
+     * @return the scores of each instance, in order
+     * @throws FOSException if the model is unknown or scoring failed
+     */
+    List<double[]> scoreInstances(final UUID modelId, final List<Object[]> scorables) throws FOSException {
+        ForestModel forest = forests.get(modelId);
+        if (forest != null) {
+            return scoreForest(forest, modelId, scorables);
+        }
+        return scoreBatch(modelId, scorables);
+    }
+
+    /**
+     * Scores a batch of instances in R
+     * @param modelId UUID of the model to score
+     * @param scorables instances to score
+     * @return the scores of each instance, in order
+     * @throws FOSException if the model is unknown or scoring failed
+     */
+    private List<double[]> scoreBatch(final UUID modelId, final List<Object[]> scorables) throws FOSException {
+        String rEnvironment = uuid2environment(modelId);
+
+        acquire(modelId);
+        ShardSession session = null;
+        try {
+            session = borrow(modelId);
+            FosRserve rserve = session.rserve;
+            ModelSetup setup = (ModelSetup) session.pool.applied(rserve, rEnvironment);
+            if (setup == null) {
+                throw new FOSException("Unknown model " + modelId);
+            }
+
+            FosRPreparedCall call = rserve.prepare(setup.batchScoreCall, SCORABLE_VARIABLE);
+            ModelMetrics modelMetrics = metrics.model(modelId);
+            long start = System.nanoTime();
+            REXP argument = setup.schema.encode(scorables);
+            modelMetrics.record(ScoreStage.ENCODE, System.nanoTime() - start);
+
+            double[][] scores = rserve.invokeDoubleMatrix(call, setup.timeout, argument);
+            modelMetrics.recordCall(rserve.getMetrics());
+            if (scores.length != scorables.size()) {
+                throw new FOSException("Expected " + scorables.size() + " scores but got " + scores.length);
+            }
+            return Arrays.asList(scores);
+        } finally {
+            if (session != null) {
+                session.release();
+            }
+            release(modelId);
+        }
     }
 
     /**
-     * Generate the scoring vector in the correct format by quoting strings.
-     * All other values will be printed as is
-     * @param scorable scorable to be appended
-     * @param sb String buffer that contain the generated string
+     * Scores a batch in the JVM, scoring in R only the instances the forest can't score
+     * @param forest model forest
+     * @param modelId UUID of the model to score
+     * @param scorables instances to score
+     * @return the scores of each instance, in order
+     * @throws FOSException if scoring failed
      */
-    private void appendValue(Object scorable, StringBuilder sb) {
-        if (scorable == null) {
-            sb.append("NA"); /* NA is the missing value constant in R */
+    private List<double[]> scoreForest(ForestModel forest, UUID modelId, List<Object[]> scorables) throws FOSException {
+        double[][] scores = new double[scorables.size()][];
+        List<Integer> fallback = new ArrayList<>();
+        for (int i = 0; i != scorables.size(); ++i) {
+            scores[i] = forest.forest.score(forest.schema.encodeRow(scorables.get(i)));
+            if (scores[i] == null) {
+                fallback.add(i);
+            }
+        }
+        metrics.model(modelId).recordJvmScores(scorables.size() - fallback.size());
 
-        } else if (scorable instanceof String) {
-            sb.append('"')
-              .append(scorable)
-              .append('"');
+        if (!fallback.isEmpty()) {
+            List<Object[]> remaining = new ArrayList<>(fallback.size());
+            for (int i : fallback) {
+                remaining.add(scorables.get(i));
+            }
 
-        } else {
-            sb.append(scorable);
+            List<double[]> rscores = scoreBatch(modelId, remaining);
+            for (int i = 0; i != fallback.size(); ++i) {
+                scores[fallback.get(i)] = rscores.get(i);
+            }
         }
+        return Arrays.asList(scores);
+    }
+
+    /**
+     * Scores an instance in the JVM
+     * @param forest model forest
+     * @param modelId UUID of the model
+     * @param scorable instance to score
+     * @return the scores, or null if the forest can't score the instance
+     * @throws FOSException if the instance could not be encoded
+     */
+    private double[] scoreForest(ForestModel forest, UUID modelId, Object[] scorable) throws FOSException {
+        double[] scores = forest.forest.score(forest.schema.encodeRow(scorable));
+        if (scores != null) {
+            metrics.model(modelId).recordJvmScores(1);
+        }
+        return scores;
+    }
+
+    /**
+     * Gets the metrics of a model
+     * @param modelId UUID of the model
+     * @return the model metrics (unpublished, empty metrics if the model is unknown)
+     */
+    ModelMetrics getModelMetrics(UUID modelId) {
+        return metrics.model(modelId);
     }
 
     @Override
     public void close() throws FOSException {
-        for (UUID uuid : uuids) {
-            removeModel(uuid);
+        try {
+            for (UUID uuid : uuids) {
+                removeModel(uuid);
+            }
+        } finally {
+            // the batcher threads must be stopped even if a model could not be removed
+            if (batcher != null) {
+                batcher.close();
+            }
         }
     }
 
     /**
-     * Add or update a Rmodel
+     * Gets the global R variable where the values to score with the given schema are assigned
+     * @param index index of the schema in the call
+     * @return the variable name
+     */
+    private static String scorableVariable(int index) {
+        return index == 0 ? SCORABLE_VARIABLE : SCORABLE_VARIABLE + "." + index;
+    }
+
+    /**
+     * Add or update a Rmodel. With lazy loading a new model is only loaded into R on its first score.
      * @param rModelConfig R model configuration
      * @throws FOSException Thrown on invalid configuration
      */
     public void addOrUpdate(RModelConfig rModelConfig) throws FOSException {
+        RModelLoader loader = this.loader;
+        if (loader == null) {
+            load(rModelConfig);
+            return;
+        }
+
+        // the forest of the previous version, if any, must not score the new one
+        forests.remove(rModelConfig.getId());
+        metrics.addModel(rModelConfig.getId());
+        uuids.add(rModelConfig.getId());
+        loader.register(rModelConfig);
+        invalidateCache(rModelConfig.getId());
+    }
+
+    /**
+     * Loads a model into every R session of the shard that owns it.
+     * <p/>
+     * Each version is built in its own staging environment and warmed with a probe score of no instances, which
+     * only fails if the model is missing or has no predict method. Only then the model environment name is bound
+     * to it, in a single assignment, and the previous version is released. Scores never see a partially built model
+     * and a version that fails to load leaves the previous one in place. The idle
+     * sessions are updated before returning, so scores don't wait for the model to load.
+     *
+     * @param rModelConfig R model configuration
+     * @throws FOSException Thrown on invalid configuration
+     */
+    void load(RModelConfig rModelConfig) throws FOSException {
         String rEnvironment = uuid2environment(rModelConfig.getId());
+        String staging = rEnvironment + ".v" + nextVersion(rModelConfig.getId());
+        List<String> commands = new ArrayList<>();
+        List<String> modelLibraries = new ArrayList<>();
 
         String libraries = rModelConfig.getModelConfig().getProperty(RModelConfig.LIBRARIES);
         if (libraries != null) {
             for(String library : libraries.split(",")) {
-                rserve.eval("library(" + library + ")");
+                commands.add("library(" + library + ")");
+                modelLibraries.add(library);
             }
         }
 
-        // create a uuid named environment
-        rserve.eval(String.format("%1$s <- new.env()\n" +
-                                  "%1$s$modelname <- load (file='%2$s', envir=%1$s)\n",
-                                  rEnvironment,
-                                  rModelConfig.getModel().getAbsolutePath()));
+        // create the staging environment of this version
+        commands.add(String.format("%1$s <- new.env()\n" +
+                                   "%1$s$modelname <- load (file='%2$s', envir=%1$s)\n",
+                                   staging,
+                                   rModelConfig.getModel().getAbsolutePath()));
 
         ModelConfig config = rModelConfig.getModelConfig();
-        List<Attribute> attrs = rModelConfig.getAttributes();
+        List<Attribute> attrs = new ArrayList<>(rModelConfig.getAttributes());
 
         // Remove class from attribute list
         attrs.remove(config.getIntProperty(RModelConfig.CLASS_INDEX));
 
-        StringBuilder sb = generateScoringFunction(rEnvironment, attrs, rModelConfig);
+        RModelSchema schema = new RModelSchema(rEnvironment, attrs);
+
+        // typed template and level vectors, built once per model
+        commands.add(generateTemplate(staging, attrs));
+
+        // the scoring function only references its own version
+        StringBuilder sb = generateScoringFunction(staging, rModelConfig);
 
-        rserve.eval(sb.toString());
+        commands.add(sb.toString());
 
         // Generate a function to save the model to PMML and add it to the environment.
         String saveAsPMMLFunction = generateSaveAsPMMLFunction(rEnvironment, rModelConfig.getPMMLModel().getAbsolutePath(), rModelConfig.getModelConfig().getIntProperty(rModelConfig.CLASS_INDEX));
-        rserve.eval(saveAsPMMLFunction);
+        commands.add(saveAsPMMLFunction);
+
+        // a first score of no instances pages the model in without assuming which values it accepts. Only a model
+        // that can't be scored at all fails the setup, keeping the previous version
+        commands.add(String.format("local({\n" +
+                                   "   m <- get(%1$s$modelname, envir = %1$s)\n" +
+                                   "   s3 <- vapply(class(m), function(c) !is.null(utils::getS3method('predict', c, optional = TRUE)), NA)\n" +
+                                   "   if (!any(s3) && !methods::hasMethod('predict', class(m)[1L])) {\n" +
+                                   "      stop('No predict method for a model of class ', class(m)[1L])\n" +
+                                   "   }\n" +
+                                   "   try(%1$s$score(as.list(%1$s$template)), silent = TRUE)\n" +
+                                   "   invisible(NULL)\n" +
+                                   "})",
+                                   staging));
+
+        // swap and release the previous versions
+        commands.add(String.format("%1$s <- %2$s\n" +
+                                   "rm(list = setdiff(ls(all.names = TRUE, pattern = '^%1$s[.]v[0-9]+$'), '%2$s'))\n",
+                                   rEnvironment,
+                                   staging));
+
+        // skip the setup if the model environment was restored from an up to date snapshot
+        if (snapshot != null) {
+            String fingerprint = snapshot.fingerprint(rModelConfig.getModel(), commands);
+            if (snapshot.track(rEnvironment, fingerprint, modelLibraries)) {
+                logger.debug("Model {} restored from the R workspace snapshot", rModelConfig.getId());
+                commands = Collections.emptyList();
+            }
+        }
+
+        // every pooled session of the owner shard will get the model environment
+        // the forest of the previous version, if any, must not score the new one
+        forests.remove(rModelConfig.getId());
+        metrics.addModel(rModelConfig.getId());
+        FosRservePool pool = register(rModelConfig.getId(), new ModelSetup(commands, schema, rModelConfig.getScoreTimeout()));
+        invalidateCache(rModelConfig.getId());
+        uuids.add(rModelConfig.getId());
+        pool.warm();
+
+        if (rModelConfig.isJvmScoring()) {
+            loadForest(rModelConfig, schema);
+        }
     }
 
     /**
-     * This function generates an environment specific scoring function
-     *
-     * This scoring function will convert a vector with the elements to score into a data frame
-     * whose names will be defined by the environment attribute names.
-     *
-     * For categorical attributes, the levels will be extracted from the trained model.
-     *
-     * Sample environment specific scoring function
-     * <pre>
-     * x81b495fdc00944dab01afcf03c85a04e$score <- function(v) {
-     *    v <- as.data.frame(t(as.matrix(v)))
-     *    names(v) <- c('A1', 'A2', 'A3', 'A4', 'A5', 'A6', 'A7', 'A8', 'A9', 'A10', 'A11', 'A12', 'A13', 'A14', 'A15')
-     *
-     *    num_range <- c(2,3,8,11,14,15)
-     *    v[, num_range] <- sapply(v[, num_range], as.numeric)
-     *
-     *    factor_range <- c(1,4,5,6,7,9,10,12,13)
-     *    v[, factor_range] <- sapply(v[, factor_range], as.factor)
-     *
-     *    v['A1'] <- factor(v['A1'], levels = c('a', 'b'))
-     *    v['A4'] <- factor(v['A4'], levels = c('l', 'u', 'y'))
-     *    v['A5'] <- factor(v['A5'], levels = c('g', 'gg', 'p'))
-     *    v['A6'] <- factor(v['A6'], levels = c('aa', 'c', 'cc', 'd', 'e', 'ff', 'i', 'j', 'k', 'm', 'q', 'r', 'w', 'x'))
-     *    v['A7'] <- factor(v['A7'], levels = c('bb', 'dd', 'ff', 'h', 'j', 'n', 'o', 'v', 'z'))
-     *    v['A9'] <- factor(v['A9'], levels = c('f', 't'))
-     *    v['A10'] <- factor(v['A10'], levels = c('f', 't'))
-     *    v['A12'] <- factor(v['A12'], levels = c('f', 't'))
-     *    v['A13'] <- factor(v['A13'], levels = c('g', 'p', 's'))
-     *
+     * Measures the R memory used by a loaded model: the size of the objects in its environment.
+     * <p/>
+     * The model is measured in a single session of its shard. Every session of the shard holds the same model
+     * environment, so the result is the memory used by the model in each session, not in all of them.
+     * @param modelId UUID of the model
+     * @return the memory in bytes
+     * @throws FOSException if the model is not loaded
+     */
+    long memoryUsed(UUID modelId) throws FOSException {
+        ShardSession session = borrow(modelId);
+        try {
+            double[] size = session.rserve.evalDoubles(String.format(
+                    "local({\n" +
+                    "   e <- %1$s\n" +
+                    "   sum(vapply(ls(e, all.names = TRUE), function(n) as.numeric(object.size(get(n, envir = e))), 0))\n" +
+                    "})",
+                    uuid2environment(modelId)));
+            return (long) size[0];
+        } finally {
+            session.release();
+        }
+    }
+
+    /**
+     * Evaluates a command in a session of the shard that owns a model, loading the model if needed
+     * @param modelId UUID of the model
+     * @param command R command
+     * @throws FOSException if the model could not be loaded or the evaluation failed
+     */
+    void eval(UUID modelId, String command) throws FOSException {
+        acquire(modelId);
+        ShardSession session = null;
+        try {
+            session = borrow(modelId);
+            session.rserve.eval(command);
+        } finally {
+            if (session != null) {
+                session.release();
+            }
+            release(modelId);
+        }
+    }
+
+    /**
+     * Removes the environment of a model from every R session, keeping everything else about the model.
+     * <p/>
+     * The idle sessions are cleaned up at once, so that they don't keep the memory of the model until they are next
+     * borrowed. Sessions in use are cleaned up when they are given back and borrowed again.
+     * @param modelId UUID of the model
+     */
+    void unload(UUID modelId) {
+        String rEnvironment = uuid2environment(modelId);
+        FosRservePool pool;
+        Lock lock = placement.readLock();
+        lock.lock();
+        try {
+            setups.remove(modelId);
+            pool = shards.pool(modelId);
+            unregister(pool, rEnvironment);
+        } finally {
+            lock.unlock();
+        }
+        pool.warm();
+        if (snapshot != null) {
+            snapshot.untrack(rEnvironment);
+        }
+    }
+
+    /**
+     * Registers the setup of a model in the shard that owns it
+     * @param modelId UUID of the model
+     * @param setup model setup
+     * @return the sessions of the shard
+     * @throws FOSException if the setup could not be registered
+     */
+    private FosRservePool register(UUID modelId, ModelSetup setup) throws FOSException {
+        Lock lock = placement.readLock();
+        lock.lock();
+        try {
+            FosRservePool pool = shards.pool(modelId);
+            pool.register(uuid2environment(modelId), setup);
+            setups.put(modelId, setup);
+            return pool;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a model environment from the sessions of a shard
+     * @param pool sessions of the shard
+     * @param rEnvironment model environment
+     */
+    private static void unregister(FosRservePool pool, String rEnvironment) {
+        // the model environment, every version and the PMML export function
+        pool.unregister(rEnvironment, new FosRserveScript(String.format(
+                "rm(list = ls(all.names = TRUE, pattern = '^(%1$s)?%2$s([.]v[0-9]+)?$'))",
+                SAVE_AS_PMML_FUNCTION_PREFIX, rEnvironment)));
+    }
+
+    /**
+     * Adds a shard of RServe sessions and moves to it the models it now owns, about its share of them.
+     * <p/>
+     * The moved models are loaded in the new shard before it starts scoring them and only then removed from their
+     * previous shards, so scores never miss a model.
      *
-     *    r <- predict(get(x81b495fdc00944dab01afcf03c85a04e$modelname, envir=x81b495fdc00944dab01afcf03c85a04e), v, type = 'raw')
-     *}
-     * </pre>
+     * @param name shard name
+     * @param pool sessions of the shard
+     * @throws FOSException if the moved models could not be loaded in the new shard
+     */
+    public synchronized void addShard(String name, FosRservePool pool) throws FOSException {
+        checkState(snapshot == null, "Shards cannot be changed with a workspace snapshot");
+        checkNotNull(pool, "Session pool cannot be null");
+
+        if (defaultLibraries != null) {
+            pool.register(DEFAULT_LIBRARIES_KEY, defaultLibraries);
+        }
+        rebalance(shards.with(name, pool));
+    }
+
+    /**
+     * Removes a shard of RServe sessions, moving its models to the remaining shards. The sessions are not closed.
      *
-     * @param rEnvironment environment code
-     * @param attrs  Fos model attribute list
-     * @param rModelConfig  R model configuration
-     * @return buffer where the R code will be generated
+     * @param name shard name
+     * @return the sessions of the removed shard
+     * @throws FOSException if the moved models could not be loaded in the remaining shards
      */
-    private StringBuilder generateScoringFunction(String rEnvironment, List<Attribute> attrs, RModelConfig rModelConfig) throws FOSException {
-        StringBuilder sb = new StringBuilder();
-        // Generate scoring function preamble
+    public synchronized FosRservePool removeShard(String name) throws FOSException {
+        checkState(snapshot == null, "Shards cannot be changed with a workspace snapshot");
 
-        List<String> attrnames = Lists.transform(attrs, new Function<Attribute, String>() {
-            @Override
-            public String apply(Attribute input) {
-                return rVariableName(input.getName());
-            }
-        });
+        RShardRing current = shards;
+        RShardRing ring = current.without(name);
+        rebalance(ring);
+        return current.get(name);
+    }
 
-        sb.append(String.format(
-                "%1$s$score <- function(v) {\n" +
-                "   v <- as.data.frame(t(as.matrix(v)))\n" +
-                "   names(v) <- c('%2$s')\n\n",
-                rEnvironment,
-                Joiner.on("', '").join(attrnames)));
+    /**
+     * Moves the models whose owner changes to their new shards and starts routing by a new ring
+     * @param ring shard ring
+     * @throws FOSException if the moved models could not be loaded in their new shards, in which case the current
+     * ring is kept
+     */
+    private void rebalance(RShardRing ring) throws FOSException {
+        Lock lock = placement.writeLock();
+        lock.lock();
+        try {
+            RShardRing current = shards;
+            Map<UUID, FosRservePool> moved = new HashMap<>();
+            Set<FosRservePool> targets = new HashSet<>();
+            try {
+                for (Map.Entry<UUID, ModelSetup> entry : setups.entrySet()) {
+                    FosRservePool source = current.pool(entry.getKey());
+                    FosRservePool target = ring.pool(entry.getKey());
+                    if (source != target) {
+                        target.register(uuid2environment(entry.getKey()), entry.getValue());
+                        moved.put(entry.getKey(), source);
+                        targets.add(target);
+                    }
+                }
+                for (FosRservePool target : targets) {
+                    target.warm();
+                }
+            } catch (FOSException | RuntimeException e) {
+                for (UUID modelId : moved.keySet()) {
+                    unregister(ring.pool(modelId), uuid2environment(modelId));
+                }
+                throw e;
+            }
 
-        List<Integer> numeric_indices = new ArrayList<>();
-        List<Integer> factor_indices = new ArrayList<>();
-        int count = 1;
+            // wait for the scores routed by the current ring
+            routing.writeLock().lock();
+            try {
+                shards = ring;
+            } finally {
+                routing.writeLock().unlock();
+            }
 
-        for (Attribute attribute : attrs) {
-            if(attribute instanceof NumericAttribute) {
-                numeric_indices.add(count);
-            } else if (attribute instanceof CategoricalAttribute) {
-                factor_indices.add(count);
-            } else {
-                throw new FOSException("Unknown attribute type");
+            for (Map.Entry<UUID, FosRservePool> entry : moved.entrySet()) {
+                unregister(entry.getValue(), uuid2environment(entry.getKey()));
             }
-            count++;
+            logger.info("Moved {} of {} models to {}", moved.size(), setups.size(), ring);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Borrows a session of the shard that owns a model. The model keeps its shard until the session is released.
+     * @param modelId UUID of the model
+     * @return the session
+     * @throws FOSException if no session could be borrowed
+     */
+    private ShardSession borrow(UUID modelId) throws FOSException {
+        Lock lock = routing.readLock();
+        lock.lock();
+        try {
+            FosRservePool pool = shards.pool(modelId);
+            return new ShardSession(pool, pool.borrow());
+        } catch (FOSException | RuntimeException e) {
+            lock.unlock();
+            throw e;
         }
+    }
 
-        generateNumericConversion(numeric_indices, sb);
+    /**
+     * Makes sure a model is loaded in R and keeps it loaded until {@link #release(UUID)}
+     * @param modelId UUID of the model
+     * @throws FOSException if the model could not be loaded
+     */
+    void acquire(UUID modelId) throws FOSException {
+        RModelLoader loader = this.loader;
+        if (loader != null) {
+            loader.acquire(modelId);
+        }
+    }
 
-        generateFactorConversion(factor_indices, sb);
+    /**
+     * Allows a model acquired with {@link #acquire(UUID)} to be unloaded again
+     * @param modelId UUID of the model
+     */
+    void release(UUID modelId) {
+        RModelLoader loader = this.loader;
+        if (loader != null) {
+            loader.release(modelId);
+        }
+    }
 
-        List<CategoricalAttribute> categoricals = extractCategoricals(attrs);
+    /**
+     * Assigns the next version of a model
+     * @param modelId UUID of the model
+     * @return the version
+     */
+    private int nextVersion(UUID modelId) {
+        synchronized (versions) {
+            Integer previous = versions.get(modelId);
+            int version = previous == null ? 1 : previous + 1;
+            versions.put(modelId, version);
+            return version;
+        }
+    }
 
+    /**
+     * Loads the forest of a model to be scored in the JVM. R randomForest models are mapped from a binary export
+     * of the forest, kept next to the model file and reused while it is newer than the model; other models are
+     * exported to PMML and converted. If the model can't be converted it keeps being scored in R.
+     *
+     * @param rModelConfig R model configuration
+     * @param schema scoring schema of the model
+     */
+    private void loadForest(RModelConfig rModelConfig, RModelSchema schema) throws FOSException {
+        UUID modelId = rModelConfig.getId();
+        String unsupported = jvmScoringUnsupported(rModelConfig);
+        if (unsupported != null) {
+            logger.warn("Model {} can't be scored in the JVM ({}), it will be scored in R", modelId, unsupported);
+            return;
+        }
 
-        generateLevelFactorConversion(rEnvironment, categoricals, sb);
+        List<String> names = Arrays.asList(schema.getNames());
+        List<Map<String, Integer>> levels = new ArrayList<>();
+        for (int i = 0; i != names.size(); ++i) {
+            levels.add(schema.getLevels(i));
+        }
 
-        String predictArguments = rModelConfig.getModelConfig().getProperty(RModelConfig.PREDICT_FUNCTION_ARGUMENTS);
+        Forest forest;
+        try {
+            File model = rModelConfig.getModel();
+            File binary = new File(model.getAbsolutePath() + FOREST_SUFFIX);
+            if (!binary.exists() || binary.lastModified() < model.lastModified()) {
+                writeForest(modelId, binary);
+            }
+            forest = BinaryForest.map(binary, names, levels);
+        } catch (FOSException e) {
+            logger.debug("Model {} has no binary forest, converting its PMML", modelId, e);
+            try {
+                ShardSession session = borrow(modelId);
+                try {
+                    session.rserve.eval(getSaveAsPMMLFunctionCall(modelId));
+                } finally {
+                    session.release();
+                }
+                forest = new PMMLForestConverter(names, levels).convert(rModelConfig.getPMMLModel());
+            } catch (FOSException pmmlException) {
+                logger.warn("Model " + modelId + " can't be scored in the JVM, it will be scored in R", pmmlException);
+                return;
+            }
+        }
 
-        sb.append(String.format(
-                "\n\n" +
-                "r <- predict(get(%1$s$modelname, envir=%1$s), v%2$s)\n",
-                rEnvironment,
-                predictArguments != null ? ", " + predictArguments : ""));
+        // the forest must score exactly what the R scoring function scores
+        Object[] probe = schema.probe();
+        double[] expected;
+        try {
+            expected = scoreProbe(modelId, probe);
+        } catch (FOSException e) {
+            logger.warn("Model " + modelId + " can't be compared with its forest, it will be scored in R", e);
+            return;
+        }
+        double[] actual = forest.score(schema.encodeRow(probe));
+        if (!sameScores(expected, actual)) {
+            logger.warn("Model {} scores {} in R but its forest scores {}, it will be scored in R",
+                        modelId, Arrays.toString(expected), Arrays.toString(actual));
+            return;
+        }
 
-        String resultsTransform = rModelConfig.getModelConfig().getProperty(RModelConfig.PREDICT_RESULT_TRANSFORM);
+        forests.put(modelId, new ForestModel(schema, forest));
+        logger.info("Model {} will be scored in the JVM with {}", modelId, forest);
+    }
 
-        if(resultsTransform != null) {
-            sb.append(resultsTransform + "\n");
-            sb.append("r\n");
+    /**
+     * Checks if the scoring function of a model returns what a forest scores: the class probabilities (with
+     * {@code type = 'prob'}) or the regression value (without predict arguments), not transformed.
+     *
+     * @param rModelConfig R model configuration
+     * @return why the model can't be scored in the JVM, or null if it can
+     * @throws FOSException if the model configuration could not be read
+     */
+    static String jvmScoringUnsupported(RModelConfig rModelConfig) throws FOSException {
+        ModelConfig config = rModelConfig.getModelConfig();
+        if (config.getProperty(RModelConfig.PREDICT_RESULT_TRANSFORM) != null) {
+            return "the predict result is transformed";
         }
 
-        sb.append("}");
+        String predictArguments = config.getProperty(RModelConfig.PREDICT_FUNCTION_ARGUMENTS);
+        if (predictArguments != null
+            && !predictArguments.replaceAll("\\s+", "").replace('"', '\'').equals("type='prob'")) {
+            return "predict is called with " + predictArguments;
+        }
+        return null;
+    }
 
-        return sb;
+    /**
+     * Checks if the forest scores of an instance match its R scores
+     * @param expected R scores
+     * @param actual forest scores (null if the forest can't score the instance)
+     * @return true if both have the same values, up to rounding
+     */
+    private static boolean sameScores(double[] expected, double[] actual) {
+        if (actual == null || expected.length != actual.length) {
+            return false;
+        }
+        for (int i = 0; i != expected.length; ++i) {
+            if (Math.abs(expected[i] - actual[i]) > 1e-9 * Math.max(1, Math.abs(expected[i]))) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
-     * Convert the dataframe categorical fields to the same levels as the levels used in the training model.
-     *
-     * This is necessary because R randomForest checks if the fields levels are exactly the same as the ones discovered
-     * during training in adition to check the scorable value.
-     *
-     * Example:
+     * Scores an instance in R with a model that is being loaded, so it must not load it
+     * @param modelId UUID of the model
+     * @param scorable instance to score
+     * @return the scores
+     * @throws FOSException if the model is not set up or scoring failed
+     */
+    private double[] scoreProbe(UUID modelId, Object[] scorable) throws FOSException {
+        ShardSession session = borrow(modelId);
+        try {
+            FosRserve rserve = session.rserve;
+            ModelSetup setup = (ModelSetup) session.pool.applied(rserve, uuid2environment(modelId));
+            if (setup == null) {
+                throw new FOSException("Unknown model " + modelId);
+            }
+            FosRPreparedCall call = rserve.prepare(setup.scoreCall, SCORABLE_VARIABLE);
+            return rserve.invokeDoubles(call, null, setup.timeout, setup.schema.encode(scorable));
+        } finally {
+            session.release();
+        }
+    }
+
+    /**
+     * Exports the forest of a R randomForest model in the binary format read by {@link BinaryForest}.
+     * <p/>
+     * The forest is written to a temporary file that replaces the target once complete, so forests already
+     * mapped from the target are not affected.
      *
-     * If the X column spec says the categorical field can assume the values "A", "B", and "C" but if during training
-     * only "A" and "B" were found, the field levels must be set to "A" and "B" only, otherwise predict will fail.
-     * Sample generated code:
-     * <pre>
-     *    v['A1'] <- factor(v['A1'], levels = x38c6beb6d82349eabf8159c4c15b7344$model$forest$xlevels$A1)
-     *    v['A4'] <- factor(v['A4'], levels = x38c6beb6d82349eabf8159c4c15b7344$model$forest$xlevels$A4)
-     *    v['A5'] <- factor(v['A5'], levels = x38c6beb6d82349eabf8159c4c15b7344$model$forest$xlevels$A5)
-     *    v['A6'] <- factor(v['A6'], levels = x38c6beb6d82349eabf8159c4c15b7344$model$forest$xlevels$A6)
-     *    v['A7'] <- factor(v['A7'], levels = x38c6beb6d82349eabf8159c4c15b7344$model$forest$xlevels$A7)
-     *    v['A9'] <- factor(v['A9'], levels = x38c6beb6d82349eabf8159c4c15b7344$model$forest$xlevels$A9)
-     *    v['A10'] <- factor(v['A10'], levels = x38c6beb6d82349eabf8159c4c15b7344$model$forest$xlevels$A10)
-     *    v['A12'] <- factor(v['A12'], levels = x38c6beb6d82349eabf8159c4c15b7344$model$forest$xlevels$A12)
-     *    v['A13'] <- factor(v['A13'], levels = x38c6beb6d82349eabf8159c4c15b7344$model$forest$xlevels$A13)
-     * </pre>
+     * @param modelId UUID of the model
+     * @param file target file
+     * @throws FOSException if the model is not a randomForest or the forest could not be written
+     */
+    public void exportForest(UUID modelId, File file) throws FOSException {
+        acquire(modelId);
+        try {
+            writeForest(modelId, file);
+        } finally {
+            release(modelId);
+        }
+    }
+
+    /**
+     * Exports the forest of a loaded model, see {@link #exportForest(UUID, File)}. Called while the model is being
+     * loaded, so it must not load it.
      *
-     * @param rEnvironment environment code
-     * @param categoricals categoricals attributes
-     * @param sb buffer where the R code will be generated
+     * @param modelId UUID of the model
+     * @param file target file
+     * @throws FOSException if the model is not a randomForest or the forest could not be written
      */
-    private void generateLevelFactorConversion(String rEnvironment, List<CategoricalAttribute> categoricals, StringBuilder sb) {
-        for (CategoricalAttribute categoricalAttribute : categoricals) {
-            List<String> factors = new ArrayList<>(categoricalAttribute.getCategoricalInstances());
-            sb.append(String.format(
-                    "   v['%1$s'] <- factor(v['%1$s'], levels = c('%2$s'))\n",
-                    categoricalAttribute.getName(),
-                    Joiner.on("', '").join(factors)));
+    private void writeForest(UUID modelId, File file) throws FOSException {
+        String rEnvironment = uuid2environment(modelId);
+        File temporary = new File(file.getAbsolutePath() + ".tmp");
 
+        ShardSession session = borrow(modelId);
+        try {
+            session.rserve.eval(String.format("local({\n" +
+                                      "   model <- get(%1$s$modelname, envir=%1$s)\n" +
+                                      "   if (!inherits(model, 'randomForest')) stop('not a randomForest model')\n" +
+                                      "   .fos.exportForest(model, '%2$s')\n" +
+                                      "})",
+                                      rEnvironment, temporary.getAbsolutePath()));
+        } finally {
+            session.release();
+        }
+
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new FOSException("Unable to write forest file '" + file.getAbsolutePath() + "'");
         }
     }
 
     /**
-     * Convert all categorical fields to factor
-     * Sample Generated code
+     * This function generates the typed scoring template of an environment.
+     *
+     * The template is a data frame without rows whose columns have the type of each attribute. Categorical columns
+     * are factors with the levels of the attribute, the same levels used when training the model. This is necessary
+     * because R randomForest checks if the fields levels are exactly the same as the ones discovered during training
+     * in adition to check the scorable value.
+     *
+     * The level vectors and the position of the categorical columns are extracted once from the template and kept
+     * in the environment, so the scoring function doesn't need to rebuild them on every call.
+     *
+     * Sample generated code
      * <pre>
-     *    factor_range <- c(1,4,5,6,7,9,10,12,13)
-     *    v[, factor_range] <- sapply(v[, factor_range], as.factor)
+     * x81b495fdc00944dab01afcf03c85a04e$template <- data.frame(
+     *    'A1' = factor(character(0), levels = c('a', 'b')),
+     *    'A2' = numeric(0),
+     *    ...
+     *    'A15' = numeric(0),
+     *    check.names = FALSE)
+     * x81b495fdc00944dab01afcf03c85a04e$levels <- lapply(x81b495fdc00944dab01afcf03c85a04e$template, levels)
+     * x81b495fdc00944dab01afcf03c85a04e$factors <- which(vapply(x81b495fdc00944dab01afcf03c85a04e$template, is.factor, NA))
      * </pre>
-     * @param indices  List categorical attributes indices
-     * @param sb   buffer where the R code will be generated
+     *
+     * @param rEnvironment environment code
+     * @param attrs  Fos model attribute list
+     * @return the R code that creates the template
+     * @throws FOSException if an attribute type is not supported
      */
-    private void generateFactorConversion(List<Integer> indices, StringBuilder sb) {
-        sb.append("   factor_range <- c(");
-        Joiner.on(',').appendTo(sb,indices);
-        sb.append(")\n");
-        sb.append("   v[, factor_range] <- sapply(v[, factor_range], as.factor)\n\n");
+    static String generateTemplate(String rEnvironment, List<Attribute> attrs) throws FOSException {
+        List<String> columns = new ArrayList<>();
+        for (Attribute attribute : attrs) {
+            String name = rVariableName(attribute.getName());
+            if (attribute instanceof NumericAttribute) {
+                columns.add(String.format("   '%s' = numeric(0)", name));
+            } else if (attribute instanceof CategoricalAttribute) {
+                List<String> levels = ((CategoricalAttribute) attribute).getCategoricalInstances();
+                columns.add(String.format("   '%s' = factor(character(0), levels = c('%s'))",
+                                          name,
+                                          Joiner.on("', '").join(levels)));
+            } else {
+                throw new FOSException("Unknown attribute type");
+            }
+        }
+
+        return String.format(
+                "%1$s$template <- data.frame(\n%2$s,\n   check.names = FALSE)\n" +
+                "%1$s$levels <- lapply(%1$s$template, levels)\n" +
+                "%1$s$factors <- which(vapply(%1$s$template, is.factor, NA))\n",
+                rEnvironment,
+                Joiner.on(",\n").join(columns));
     }
 
     /**
-     * Convert numeric attributes to numeric types
-     * Sample generated code
+     * This function generates an environment specific scoring function
+     *
+     * This scoring function receives a list with one typed vector per attribute (numeric attributes as doubles,
+     * categorical attributes as integer factor codes encoded in Java) and turns it into a data frame in place: the
+     * codes become factors by taking the precomputed levels of the environment template, without matching any
+     * string, and the list takes the attributes of the template.
+     *
+     * Sample environment specific scoring function
      * <pre>
-     *    num_range <- c(2,3,8,11,14,15)
-     *    v[, num_range] <- sapply(v[, num_range], as.numeric)
+     * x81b495fdc00944dab01afcf03c85a04e$score <- function(v) {
+     *    for (i in x81b495fdc00944dab01afcf03c85a04e$factors) {
+     *       v[[i]] <- structure(v[[i]], levels = x81b495fdc00944dab01afcf03c85a04e$levels[[i]], class = 'factor')
+     *    }
+     *    a <- attributes(x81b495fdc00944dab01afcf03c85a04e$template)
+     *    a$row.names <- .set_row_names(length(v[[1L]]))
+     *    attributes(v) <- a
+     *
+     *    r <- predict(get(x81b495fdc00944dab01afcf03c85a04e$modelname, envir=x81b495fdc00944dab01afcf03c85a04e), v, type = 'raw')
+     *}
      * </pre>
      *
-     * @param indices  List of numeric attributes indices
-     * @param sb   buffer where the R code will be generated
+     * @param rEnvironment environment code
+     * @param rModelConfig  R model configuration
+     * @return buffer where the R code will be generated
      */
-    private void generateNumericConversion(List<Integer> indices, StringBuilder sb) {
-        sb.append("   num_range <- c(");
-        Joiner.on(',').appendTo(sb, indices);
-        sb.append(")\n");
-        sb.append("   v[, num_range] <- sapply(v[, num_range], as.numeric)\n\n");
+    static StringBuilder generateScoringFunction(String rEnvironment, RModelConfig rModelConfig) throws FOSException {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(String.format(
+                "%1$s$score <- function(v) {\n" +
+                "   for (i in %1$s$factors) {\n" +
+                "      v[[i]] <- structure(v[[i]], levels = %1$s$levels[[i]], class = 'factor')\n" +
+                "   }\n" +
+                "   a <- attributes(%1$s$template)\n" +
+                "   a$row.names <- .set_row_names(length(v[[1L]]))\n" +
+                "   attributes(v) <- a\n",
+                rEnvironment));
+
+        String predictArguments = rModelConfig.getModelConfig().getProperty(RModelConfig.PREDICT_FUNCTION_ARGUMENTS);
+
+        sb.append(String.format(
+                "\n\n" +
+                "r <- predict(get(%1$s$modelname, envir=%1$s), v%2$s)\n",
+                rEnvironment,
+                predictArguments != null ? ", " + predictArguments : ""));
+
+        String resultsTransform = rModelConfig.getModelConfig().getProperty(RModelConfig.PREDICT_RESULT_TRANSFORM);
+
+        if(resultsTransform != null) {
+            sb.append(resultsTransform + "\n");
+            sb.append("r\n");
+        }
+
+        sb.append("}");
+
+        return sb;
     }
 
     /**
@@ -439,8 +1503,124 @@ public class RScorer implements Scorer {
      * @throws FOSException
      */
     public void removeModel(UUID modelId) throws FOSException {
-        rserve.eval("rm(" + uuid2environment(modelId) + ")");
+        RModelLoader loader = this.loader;
+        if (loader != null) {
+            loader.remove(modelId);
+        }
+        unload(modelId);
+        if (batcher != null) {
+            batcher.remove(modelId);
+        }
+        RScoreCache cache = this.cache;
+        if (cache != null) {
+            cache.remove(modelId);
+        }
+        forests.remove(modelId);
+        metrics.removeModel(modelId);
+        uuids.remove(modelId);
+        synchronized (versions) {
+            versions.remove(modelId);
+        }
+    }
+
+    /**
+     * Discards the cached scores of a model
+     * @param modelId UUID of the model
+     */
+    private void invalidateCache(UUID modelId) {
+        RScoreCache cache = this.cache;
+        if (cache != null) {
+            cache.invalidate(modelId);
+        }
     }
-}
 
+    /**
+     * Model scored in the JVM
+     */
+    private static final class ForestModel {
+        /**
+         * Encodes the scored instances
+         */
+        private final RModelSchema schema;
 
+        /**
+         * Forest exported from the model
+         */
+        private final Forest forest;
+
+        private ForestModel(RModelSchema schema, Forest forest) {
+            this.schema = schema;
+            this.forest = forest;
+        }
+    }
+
+    /**
+     * Session borrowed from the shard that owns a model
+     */
+    private final class ShardSession {
+        /**
+         * Sessions of the shard
+         */
+        private final FosRservePool pool;
+
+        /**
+         * Borrowed session
+         */
+        private final FosRserve rserve;
+
+        private ShardSession(FosRservePool pool, FosRserve rserve) {
+            this.pool = pool;
+            this.rserve = rserve;
+        }
+
+        /**
+         * Returns the session to its shard, allowing the model to move again
+         */
+        private void release() {
+            try {
+                pool.release(rserve);
+            } finally {
+                routing.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Pool initializer that sets up a model environment and carries the matching scoring schema
+     */
+    private static final class ModelSetup extends FosRserveScript {
+        /**
+         * Scoring schema of the model set up by this initializer
+         */
+        private final RModelSchema schema;
+
+        /**
+         * Template of the call to the model scoring function
+         */
+        private final String scoreCall;
+
+        /**
+         * Template of the call to the model scoring function for a batch, with one row of scores per instance
+         */
+        private final String batchScoreCall;
+
+        /**
+         * Maximum time in milliseconds to wait for a score (0 for no timeout)
+         */
+        private final long timeout;
+
+        private ModelSetup(List<String> commands, RModelSchema schema, long timeout) {
+            super(commands);
+            this.schema = schema;
+            this.timeout = timeout;
+            this.scoreCall = schema.getEnvironment() + "$score(" + SCORABLE_VARIABLE + ")";
+            // a vector has one score per instance, unless a single instance is scored: then it has its class scores
+            this.batchScoreCall = String.format(
+                    "local({\n" +
+                    "   r <- %1$s\n" +
+                    "   if (is.matrix(r) || is.data.frame(r)) as.matrix(r) else matrix(r, nrow = length(%2$s[[1L]]))\n" +
+                    "})",
+                    scoreCall, SCORABLE_VARIABLE);
+        }
+    }
+}
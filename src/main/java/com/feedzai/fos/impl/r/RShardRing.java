@@ -0,0 +1,157 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r;
+
+import com.feedzai.fos.impl.r.rserve.FosRservePool;
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Consistent hash ring that places each model on one of several shards, each one a pool of sessions of its own
+ * RServe processes.
+ * <p/>
+ * Every shard owns {@link #VIRTUAL_NODES} points of the ring and a model is owned by the shard of the first point
+ * at or after the hash of its UUID. Adding a shard only moves to it the models that now hash to its points and
+ * removing a shard only moves its own models, spread over the remaining shards. Rings are immutable.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+final class RShardRing {
+    /**
+     * Points of the ring owned by each shard, so that models are evenly spread
+     */
+    static final int VIRTUAL_NODES = 128;
+
+    /**
+     * Session pool of each shard, by name
+     */
+    private final ImmutableMap<String, FosRservePool> shards;
+
+    /**
+     * Shard names by ring point
+     */
+    private final NavigableMap<Long, String> ring = new TreeMap<>();
+
+    /**
+     * Creates a new ring
+     * @param shards session pool of each shard, by name
+     */
+    RShardRing(Map<String, FosRservePool> shards) {
+        checkNotNull(shards, "Shards cannot be null");
+        checkArgument(!shards.isEmpty(), "At least one shard is required");
+
+        this.shards = ImmutableMap.copyOf(shards);
+        for (String name : this.shards.keySet()) {
+            for (int i = 0; i != VIRTUAL_NODES; ++i) {
+                byte[] bytes = name.getBytes(Charsets.UTF_8);
+                long point = Hashing.murmur3_128().newHasher().putBytes(bytes).putInt(i).hash().asLong();
+                // on the unlikely collision the first shard keeps the point, independently of the insertion order
+                String owner = ring.get(point);
+                if (owner == null || owner.compareTo(name) > 0) {
+                    ring.put(point, name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a ring with one more shard
+     * @param name shard name
+     * @param pool session pool of the shard
+     * @return the new ring
+     */
+    RShardRing with(String name, FosRservePool pool) {
+        checkArgument(!shards.containsKey(name), "Shard %s already exists", name);
+
+        Map<String, FosRservePool> grown = new LinkedHashMap<>(shards);
+        grown.put(name, checkNotNull(pool, "Pool cannot be null"));
+        return new RShardRing(grown);
+    }
+
+    /**
+     * Creates a ring without a shard
+     * @param name shard name
+     * @return the new ring
+     */
+    RShardRing without(String name) {
+        checkArgument(shards.containsKey(name), "Unknown shard %s", name);
+        checkArgument(shards.size() > 1, "The last shard cannot be removed");
+
+        Map<String, FosRservePool> shrunk = new LinkedHashMap<>(shards);
+        shrunk.remove(name);
+        return new RShardRing(shrunk);
+    }
+
+    /**
+     * Gets the session pool of the shard that owns a model
+     * @param modelId UUID of the model
+     * @return the session pool
+     */
+    FosRservePool pool(UUID modelId) {
+        long point = Hashing.murmur3_128().newHasher()
+                .putLong(modelId.getMostSignificantBits())
+                .putLong(modelId.getLeastSignificantBits())
+                .hash().asLong();
+
+        Map.Entry<Long, String> owner = ring.ceilingEntry(point);
+        return shards.get(owner != null ? owner.getValue() : ring.firstEntry().getValue());
+    }
+
+    /**
+     * Gets the session pool of a shard
+     * @param name shard name
+     * @return the session pool, or null if the shard doesn't exist
+     */
+    FosRservePool get(String name) {
+        return shards.get(name);
+    }
+
+    /**
+     * Gets the session pools of every shard
+     * @return the session pools
+     */
+    Collection<FosRservePool> pools() {
+        return shards.values();
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("shards", shards.keySet())
+                .toString();
+    }
+}
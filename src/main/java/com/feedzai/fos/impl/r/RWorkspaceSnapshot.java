@@ -0,0 +1,331 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r;
+
+import com.feedzai.fos.api.FOSException;
+import com.feedzai.fos.impl.r.rserve.FosRserve;
+import com.feedzai.fos.impl.r.rserve.FosRserveInitializer;
+import com.feedzai.fos.impl.r.rserve.FosRserveScript;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Snapshot of a fully prepared R workspace (model environments, scoring and PMML export functions).
+ * <p/>
+ * The snapshot is made of a R data file with the model environments and a manifest with the libraries to attach
+ * and a fingerprint of each model: the modification time and hash of the model file and the hash of the R code
+ * used to set it up. On startup the whole workspace is restored with a single {@code load()} and a model is only
+ * set up again if its fingerprint changed. The restored models that are not reused are removed right after each
+ * restore, so sessions don't keep the models removed or set up again since the snapshot was taken.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class RWorkspaceSnapshot {
+    /**
+     * Snapshot logger
+     */
+    private static final Logger logger = LoggerFactory.getLogger(RWorkspaceSnapshot.class);
+
+    /**
+     * Extension of the manifest file
+     */
+    public static final String MANIFEST_EXTENSION = "manifest";
+
+    /**
+     * Manifest key with the libraries to attach
+     */
+    private static final String LIBRARIES = "libraries";
+
+    /**
+     * R objects that are part of the snapshot: model environments, the versions bound to them and their PMML
+     * export functions
+     */
+    private static final String SNAPSHOT_OBJECTS = "^(saveAsPMML)?x[0-9a-f]{32}([.]v[0-9]+)?$";
+
+    /**
+     * Versioned names of the model environments, which change every time a model is set up
+     */
+    private static final String VERSIONED_ENVIRONMENT = "(x[0-9a-f]{32})[.]v[0-9]+";
+
+    /**
+     * R data file with the workspace
+     */
+    private final File file;
+
+    /**
+     * Manifest file
+     */
+    private final File manifest;
+
+    /**
+     * Fingerprints of the models in the restored snapshot. Guarded by this.
+     */
+    private final Map<String, String> restored = new HashMap<>();
+
+    /**
+     * Models of the restored snapshot that were reused instead of set up again. Guarded by this.
+     */
+    private final Set<String> reused = new HashSet<>();
+
+    /**
+     * Libraries required by the restored snapshot
+     */
+    private final Set<String> restoredLibraries = new LinkedHashSet<>();
+
+    /**
+     * Fingerprints of the models currently set up. Guarded by this.
+     */
+    private final Map<String, String> tracked = new HashMap<>();
+
+    /**
+     * Libraries required by each model currently set up. Guarded by this.
+     */
+    private final Map<String, Collection<String>> trackedLibraries = new HashMap<>();
+
+    /**
+     * Creates a snapshot backed by the given file, reading the manifest of a previous snapshot if it exists
+     * @param file R data file with the workspace
+     */
+    public RWorkspaceSnapshot(File file) {
+        checkNotNull(file, "Snapshot file cannot be null");
+
+        this.file = file;
+        this.manifest = new File(file.getAbsolutePath() + "." + MANIFEST_EXTENSION);
+
+        if (file.exists() && manifest.exists()) {
+            try (InputStream is = new FileInputStream(manifest)) {
+                Properties properties = new Properties();
+                properties.load(is);
+
+                for (String key : properties.stringPropertyNames()) {
+                    if (LIBRARIES.equals(key)) {
+                        for (String library : Splitter.on(',').omitEmptyStrings().trimResults().split(properties.getProperty(key))) {
+                            restoredLibraries.add(library);
+                        }
+                    } else {
+                        restored.put(key, properties.getProperty(key));
+                    }
+                }
+                logger.info("Found R workspace snapshot '{}' with {} models", file.getAbsolutePath(), restored.size());
+            } catch (IOException e) {
+                logger.warn("Unable to read R workspace snapshot manifest '" + manifest.getAbsolutePath() + "'", e);
+                restored.clear();
+                restoredLibraries.clear();
+            }
+        }
+    }
+
+    /**
+     * Gets the initializer that restores the snapshot in a session.
+     * <p/>
+     * Only the models that may still be reused are kept: the ones not set up yet and the ones that were reused.
+     * Once no model can be reused anymore the initializer does nothing.
+     *
+     * @return the initializer, or null if there is no snapshot to restore
+     */
+    public synchronized FosRserveInitializer restore() {
+        if (restored.isEmpty()) {
+            return null;
+        }
+
+        return new FosRserveInitializer() {
+            @Override
+            public void initialize(FosRserve rserve) throws FOSException {
+                FosRserveScript script = restoreScript();
+                if (script != null) {
+                    script.initialize(rserve);
+                }
+            }
+        };
+    }
+
+    /**
+     * Builds the script that restores the models of the snapshot that may still be reused
+     * @return the script, or null if no model can be reused
+     */
+    private synchronized FosRserveScript restoreScript() {
+        Set<String> kept = new HashSet<>(restored.keySet());
+        kept.addAll(reused);
+        if (kept.isEmpty()) {
+            return null;
+        }
+
+        List<String> commands = new ArrayList<>();
+        for (String library : restoredLibraries) {
+            commands.add("library(" + library + ")");
+        }
+        commands.add(String.format("load(file = '%s')", file.getAbsolutePath()));
+        commands.add(String.format(
+                "local({\n" +
+                "   objects <- ls(envir = globalenv(), all.names = TRUE, pattern = '%1$s')\n" +
+                "   environments <- sub('^saveAsPMML', '', sub('[.]v[0-9]+$', '', objects))\n" +
+                "   rm(list = objects[!(environments %%in%% c('%2$s'))], envir = globalenv())\n" +
+                "})",
+                SNAPSHOT_OBJECTS, Joiner.on("', '").join(kept)));
+
+        return new FosRserveScript(commands);
+    }
+
+    /**
+     * Discards the restored snapshot, every model will be set up from scratch
+     */
+    public synchronized void discard() {
+        restored.clear();
+    }
+
+    /**
+     * Computes the fingerprint of a model. The versions of the model environment named in the setup code are
+     * ignored, so the fingerprint only changes with the model file and configuration.
+     *
+     * @param model model file
+     * @param setup R code used to set up the model
+     * @return the fingerprint
+     * @throws FOSException if the model file could not be read
+     */
+    public String fingerprint(File model, List<String> setup) throws FOSException {
+        try {
+            return Joiner.on(':').join(
+                    model.lastModified(),
+                    Files.hash(model, Hashing.md5()),
+                    Hashing.md5().hashBytes(Joiner.on('\n').join(setup)
+                                                   .replaceAll(VERSIONED_ENVIRONMENT, "$1.v")
+                                                   .getBytes(Charsets.UTF_8)));
+        } catch (IOException e) {
+            throw new FOSException("Unable to read model file '" + model.getAbsolutePath() + "'", e);
+        }
+    }
+
+    /**
+     * Tracks a model that was set up, checking if it is already available in the restored snapshot.
+     * <p/>
+     * A restored model is only reported once: if the same model is set up again it must be set up from scratch.
+     *
+     * @param environment R environment of the model
+     * @param fingerprint fingerprint of the model
+     * @param libraries libraries required by the model
+     * @return true if the model environment is available in the restored snapshot
+     */
+    public synchronized boolean track(String environment, String fingerprint, Collection<String> libraries) {
+        tracked.put(environment, fingerprint);
+        trackedLibraries.put(environment, libraries);
+
+        String previous = restored.remove(environment);
+        if (fingerprint.equals(previous)) {
+            reused.add(environment);
+            return true;
+        }
+        reused.remove(environment);
+        return false;
+    }
+
+    /**
+     * Stops tracking a removed model
+     * @param environment R environment of the model
+     */
+    public synchronized void untrack(String environment) {
+        tracked.remove(environment);
+        trackedLibraries.remove(environment);
+        restored.remove(environment);
+        reused.remove(environment);
+    }
+
+    /**
+     * Checks if a tracked model was reused from the restored snapshot instead of set up again
+     * @param environment R environment of the model
+     * @return true if the model was reused
+     */
+    synchronized boolean isReused(String environment) {
+        return reused.contains(environment);
+    }
+
+    /**
+     * Writes the snapshot of the model environments of the given session, which must be up to date
+     * with every tracked model.
+     * <p/>
+     * Only the tracked models are saved. The restored models that were not set up by then are no longer
+     * configured, so they are forgotten and new sessions won't restore them.
+     *
+     * @param session session whose workspace will be saved
+     * @param defaultLibraries libraries attached to every session
+     * @throws FOSException if the snapshot could not be written
+     */
+    public synchronized void save(FosRserve session, Collection<String> defaultLibraries) throws FOSException {
+        File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+        File tmpManifest = new File(manifest.getAbsolutePath() + ".tmp");
+
+        session.eval(String.format(
+                "local({\n" +
+                "   objects <- ls(envir = globalenv(), all.names = TRUE, pattern = '%1$s')\n" +
+                "   environments <- sub('^saveAsPMML', '', sub('[.]v[0-9]+$', '', objects))\n" +
+                "   save(list = objects[environments %%in%% c('%2$s')], file = '%3$s', envir = globalenv())\n" +
+                "})",
+                SNAPSHOT_OBJECTS, Joiner.on("', '").join(tracked.keySet()), tmpFile.getAbsolutePath()));
+
+        Set<String> libraries = new LinkedHashSet<>(defaultLibraries);
+        for (Collection<String> modelLibraries : trackedLibraries.values()) {
+            libraries.addAll(modelLibraries);
+        }
+
+        Properties properties = new Properties();
+        properties.putAll(tracked);
+        properties.setProperty(LIBRARIES, Joiner.on(',').join(libraries));
+
+        try {
+            try (OutputStream os = new FileOutputStream(tmpManifest)) {
+                properties.store(os, "FOS R workspace snapshot");
+            }
+            Files.move(tmpFile, file);
+            Files.move(tmpManifest, manifest);
+        } catch (IOException e) {
+            throw new FOSException("Unable to write R workspace snapshot '" + file.getAbsolutePath() + "'", e);
+        }
+        restored.clear();
+
+        logger.info("Saved R workspace snapshot '{}' with {} models", file.getAbsolutePath(), tracked.size());
+    }
+}
@@ -24,6 +24,7 @@
 package com.feedzai.fos.impl.r.config;
 
 import com.feedzai.fos.api.config.FosConfig;
+import com.feedzai.fos.impl.r.rserve.FosRserve;
 import com.google.common.base.Objects;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -35,11 +36,222 @@ import static com.google.common.base.Preconditions.checkNotNull;
  */
 public class RManagerConfig {
     /**
-     * Name of the configuration parameter for: the size of the thread pool classifier.
+     * Name of the configuration parameter for: the number of R sessions used for scoring.
      */
+    public static final String POOL_SIZE = "fos.r.poolSize";
+
+    /**
+     * Default number of R sessions used for scoring.
+     */
+    public static final int DEFAULT_POOL_SIZE = 1;
+
+    /**
+     * Name of the configuration parameter for: the number of R sessions used for training, which is also the
+     * maximum number of concurrent trainings.
+     */
+    public static final String TRAINING_POOL_SIZE = "fos.r.trainingPoolSize";
+
+    /**
+     * Default number of R sessions used for training.
+     */
+    public static final int DEFAULT_TRAINING_POOL_SIZE = 1;
+
+    /**
+     * Name of the configuration parameter for: the RServe host.
+     */
+    public static final String HOST = "fos.r.host";
+
+    /**
+     * Name of the configuration parameter for: the RServe port (or the first port if processes are managed).
+     */
+    public static final String PORT = "fos.r.port";
+
+    /**
+     * Name of the configuration parameter for: the number of local RServe processes spawned and supervised by
+     * FOS. When 0 a previously running RServe daemon is used.
+     */
+    public static final String PROCESSES = "fos.r.processes";
+
+    /**
+     * Name of the configuration parameter for: the R executable used to spawn RServe processes.
+     */
+    public static final String EXECUTABLE = "fos.r.executable";
+
+    /**
+     * Name of the configuration parameter for: the interval in milliseconds between RServe liveness probes.
+     */
+    public static final String HEALTH_CHECK_INTERVAL = "fos.r.healthCheckInterval";
+
+    /**
+     * Name of the configuration parameter for: the number of idle R sessions kept ready to replace sessions
+     * discarded after a scoring timeout or a crash.
+     */
+    public static final String STANDBY = "fos.r.standby";
+
+    /**
+     * Name of the configuration parameter for: the maximum number of concurrent single instance scores of the
+     * same model coalesced into one R call. Micro batching is disabled when lower than 2.
+     */
+    public static final String BATCH_SIZE = "fos.r.batchSize";
+
+    /**
+     * Name of the configuration parameter for: the maximum time in microseconds a score waits to be batched.
+     */
+    public static final String BATCH_WAIT = "fos.r.batchWaitMicros";
+
+    /**
+     * Default maximum time in microseconds a score waits to be batched.
+     */
+    public static final long DEFAULT_BATCH_WAIT = 500;
+
+    /**
+     * Name of the configuration parameter for: the maximum number of cached single instance scores. The score
+     * cache is disabled when 0.
+     */
+    public static final String CACHE_SIZE = "fos.r.cacheSize";
+
+    /**
+     * Name of the configuration parameter for: the time in milliseconds after which a cached score expires.
+     */
+    public static final String CACHE_TTL = "fos.r.cacheTtl";
+
+    /**
+     * Default time in milliseconds after which a cached score expires.
+     */
+    public static final long DEFAULT_CACHE_TTL = 60000;
+
+    /**
+     * Name of the configuration parameter for: the file where the R workspace snapshot is kept. When not set
+     * models are always loaded from scratch.
+     */
+    public static final String SNAPSHOT = "fos.r.snapshot";
+
+    /**
+     * Name of the configuration parameter for: whether R sessions speak the RServe QAP1 protocol directly,
+     * with reusable buffers, instead of using the REngine client.
+     */
+    public static final String DIRECT_PROTOCOL = "fos.r.directProtocol";
+
+    /**
+     * Name of the configuration parameter for: the class of the {@link com.feedzai.fos.impl.r.metrics.MetricsReporter}
+     * that publishes the model, session and pool metrics. Metrics are not published when empty.
+     */
+    public static final String METRICS_REPORTER = "fos.r.metricsReporter";
+
+    /**
+     * Default metrics reporter: JMX MBeans.
+     */
+    public static final String DEFAULT_METRICS_REPORTER = "com.feedzai.fos.impl.r.metrics.JmxMetricsReporter";
+
+    /**
+     * Name of the configuration parameter for: the R memory, in megabytes, used by the loaded models. When set models
+     * are loaded on their first score and the least recently scored ones are unloaded over the budget.
+     */
+    public static final String MEMORY_BUDGET = "fos.r.memoryBudget";
+
+    /**
+     * Name of the configuration parameter for: the number of shards the models are spread over, each one with its
+     * own sessions and RServe processes (or RServe port if processes are not managed).
+     */
+    public static final String SHARDS = "fos.r.shards";
+
+    /**
+     * Default R executable.
+     */
+    public static final String DEFAULT_EXECUTABLE = "R";
+
+    /**
+     * Default interval in milliseconds between RServe liveness probes.
+     */
+    public static final long DEFAULT_HEALTH_CHECK_INTERVAL = 5000;
 
     private FosConfig configuration;
 
+    /**
+     * Number of R sessions used for scoring
+     */
+    private int poolSize;
+
+    /**
+     * Number of R sessions used for training
+     */
+    private int trainingPoolSize;
+
+    /**
+     * RServe host
+     */
+    private String host;
+
+    /**
+     * RServe port
+     */
+    private int port;
+
+    /**
+     * Number of managed RServe processes
+     */
+    private int processes;
+
+    /**
+     * R executable
+     */
+    private String executable;
+
+    /**
+     * Interval between liveness probes
+     */
+    private long healthCheckInterval;
+
+    /**
+     * Number of standby R sessions
+     */
+    private int standby;
+
+    /**
+     * Maximum micro batch size
+     */
+    private int batchSize;
+
+    /**
+     * Maximum micro batch wait
+     */
+    private long batchWait;
+
+    /**
+     * Maximum number of cached scores
+     */
+    private long cacheSize;
+
+    /**
+     * Cached scores expiration time
+     */
+    private long cacheTtl;
+
+    /**
+     * R workspace snapshot file
+     */
+    private String snapshot;
+
+    /**
+     * Whether the direct QAP1 protocol is used
+     */
+    private boolean directProtocol;
+
+    /**
+     * Class of the metrics reporter
+     */
+    private String metricsReporter;
+
+    /**
+     * R memory budget of the loaded models, in megabytes
+     */
+    private long memoryBudget;
+
+    /**
+     * Number of model shards
+     */
+    private int shards;
+
     /**
      * Creates a new object from the given configuration.
      * <p/>
@@ -50,11 +262,199 @@ public class RManagerConfig {
         checkNotNull(configuration, "Configuration cannot be null");
 
         this.configuration = configuration;
+        this.poolSize = configuration.getConfig().getInt(POOL_SIZE, DEFAULT_POOL_SIZE);
+        this.trainingPoolSize = configuration.getConfig().getInt(TRAINING_POOL_SIZE, DEFAULT_TRAINING_POOL_SIZE);
+        this.host = configuration.getConfig().getString(HOST, FosRserve.DEFAULT_HOST);
+        this.port = configuration.getConfig().getInt(PORT, FosRserve.DEFAULT_PORT);
+        this.processes = configuration.getConfig().getInt(PROCESSES, 0);
+        this.executable = configuration.getConfig().getString(EXECUTABLE, DEFAULT_EXECUTABLE);
+        this.healthCheckInterval = configuration.getConfig().getLong(HEALTH_CHECK_INTERVAL, DEFAULT_HEALTH_CHECK_INTERVAL);
+        this.standby = configuration.getConfig().getInt(STANDBY, 0);
+        this.batchSize = configuration.getConfig().getInt(BATCH_SIZE, 0);
+        this.batchWait = configuration.getConfig().getLong(BATCH_WAIT, DEFAULT_BATCH_WAIT);
+        this.cacheSize = configuration.getConfig().getLong(CACHE_SIZE, 0);
+        this.cacheTtl = configuration.getConfig().getLong(CACHE_TTL, DEFAULT_CACHE_TTL);
+        this.snapshot = configuration.getConfig().getString(SNAPSHOT, null);
+        this.directProtocol = configuration.getConfig().getBoolean(DIRECT_PROTOCOL, false);
+        this.metricsReporter = configuration.getConfig().getString(METRICS_REPORTER, DEFAULT_METRICS_REPORTER);
+        this.memoryBudget = configuration.getConfig().getLong(MEMORY_BUDGET, 0);
+        this.shards = configuration.getConfig().getInt(SHARDS, 1);
+    }
+
+    /**
+     * Gets the number of R sessions used for scoring.
+     *
+     * @return the number of scoring sessions
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Gets the number of R sessions used for training.
+     *
+     * @return the number of training sessions
+     */
+    public int getTrainingPoolSize() {
+        return trainingPoolSize;
+    }
+
+    /**
+     * Gets the RServe host.
+     *
+     * @return the RServe host
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Gets the RServe port (or the first port when processes are managed).
+     *
+     * @return the RServe port
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Gets the number of local RServe processes to spawn and supervise.
+     *
+     * @return the number of managed processes (0 if RServe is externally managed)
+     */
+    public int getProcesses() {
+        return processes;
+    }
+
+    /**
+     * Gets the R executable used to spawn RServe processes.
+     *
+     * @return the R executable
+     */
+    public String getExecutable() {
+        return executable;
+    }
+
+    /**
+     * Gets the interval between RServe liveness probes.
+     *
+     * @return the interval in milliseconds
+     */
+    public long getHealthCheckInterval() {
+        return healthCheckInterval;
     }
+
+    /**
+     * Gets the number of idle R sessions kept ready to replace discarded sessions.
+     *
+     * @return the number of standby sessions
+     */
+    public int getStandby() {
+        return standby;
+    }
+
+    /**
+     * Gets the maximum number of single instance scores coalesced into one R call.
+     *
+     * @return the maximum batch size (micro batching is disabled when lower than 2)
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Gets the maximum time a score waits to be batched.
+     *
+     * @return the maximum wait in microseconds
+     */
+    public long getBatchWait() {
+        return batchWait;
+    }
+
+    /**
+     * Gets the maximum number of cached single instance scores.
+     *
+     * @return the maximum number of cached scores (0 if the cache is disabled)
+     */
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Gets the time after which a cached score expires.
+     *
+     * @return the expiration time in milliseconds
+     */
+    public long getCacheTtl() {
+        return cacheTtl;
+    }
+
+    /**
+     * Gets the file where the R workspace snapshot is kept.
+     *
+     * @return the snapshot file path (null if snapshots are disabled)
+     */
+    public String getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Checks if R sessions speak the RServe QAP1 protocol directly.
+     *
+     * @return true if the direct protocol is used
+     */
+    public boolean isDirectProtocol() {
+        return directProtocol;
+    }
+
+    /**
+     * Gets the class of the reporter that publishes the metrics.
+     *
+     * @return the reporter class name (empty if metrics are not published)
+     */
+    public String getMetricsReporter() {
+        return metricsReporter;
+    }
+
+    /**
+     * Gets the R memory budget of the loaded models.
+     *
+     * @return the budget in megabytes (0 if models are loaded when added and never unloaded)
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Gets the number of shards the models are spread over.
+     *
+     * @return the number of shards
+     */
+    public int getShards() {
+        return shards;
+    }
+
     @Override
     public String toString() {
         return Objects.toStringHelper(this)
                 .add("configuration", configuration)
+                .add("poolSize", poolSize)
+                .add("trainingPoolSize", trainingPoolSize)
+                .add("host", host)
+                .add("port", port)
+                .add("processes", processes)
+                .add("executable", executable)
+                .add("healthCheckInterval", healthCheckInterval)
+                .add("standby", standby)
+                .add("batchSize", batchSize)
+                .add("batchWait", batchWait)
+                .add("cacheSize", cacheSize)
+                .add("cacheTtl", cacheTtl)
+                .add("snapshot", snapshot)
+                .add("directProtocol", directProtocol)
+                .add("metricsReporter", metricsReporter)
+                .add("memoryBudget", memoryBudget)
+                .add("shards", shards)
                 .toString();
     }
 
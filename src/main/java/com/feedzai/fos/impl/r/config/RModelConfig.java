@@ -97,6 +97,19 @@ public class RModelConfig {
      */
     public static final String PREDICT_RESULT_TRANSFORM = "predict.result.transform";
 
+    /**
+     * Maximum time in milliseconds to wait for a score. When exceeded the R session is discarded.
+     */
+    public static final String SCORE_TIMEOUT = "score.timeout";
+
+    /**
+     * When "true" the model is exported to PMML and scored in the JVM, falling back to R for instances with
+     * missing values. Only for tree ensembles (e.g. randomForest) predicted with {@code type = 'prob'}
+     * (classification) or without predict arguments (regression) and without a result transform; other models,
+     * and models whose exported forest doesn't score a probe instance as R does, keep being scored in R.
+     */
+    public static final String JVM_SCORING = "jvm.scoring";
+
     // End of configuration keys constants
 
     /**
@@ -235,6 +248,43 @@ public class RModelConfig {
         }
     }
 
+    /**
+     * Gets the maximum time to wait for a score.
+     *
+     * @return the score timeout in milliseconds (0 if there is no timeout)
+     * @throws FOSException if the configured timeout is not a number
+     */
+    public long getScoreTimeout() throws FOSException {
+        String timeout;
+        try {
+            timeout = modelConfig.getProperty(SCORE_TIMEOUT);
+        } catch (FOSException e) {
+            return 0;
+        }
+
+        if (timeout == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(timeout.trim());
+        } catch (NumberFormatException e) {
+            throw new FOSException("Invalid " + SCORE_TIMEOUT + " '" + timeout + "'", e);
+        }
+    }
+
+    /**
+     * Checks if the model should be scored in the JVM.
+     *
+     * @return true if JVM scoring was requested
+     */
+    public boolean isJvmScoring() {
+        try {
+            return Boolean.parseBoolean(modelConfig.getProperty(JVM_SCORING));
+        } catch (FOSException e) {
+            return false;
+        }
+    }
+
     /**
      * Gets the instance fields of this configuration.
      *
@@ -0,0 +1,376 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.forest;
+
+import com.feedzai.fos.api.FOSException;
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Memory mapped R randomForest in the FOS binary forest format.
+ * <p/>
+ * The file is written by R walking the forest with {@code getTree} (see {@link #EXPORT_FUNCTION}) and is scored in
+ * place: node arrays are int and double views of the mapped file, so loading only reads the header.
+ * <p/>
+ * Format, big endian:
+ * <pre>
+ * magic     "FOSF"
+ * int       version (1)
+ * int       number of trees T
+ * int       number of classes C (0 for regression)
+ * int       number of variables V
+ * C x str   class names
+ * V x       variable: str name, int number of levels L (0 for numeric), L x str level names
+ * int[T+1]  index of the first node of each tree (the last one is the number of nodes N)
+ * int[N]    split variable (0 based, -1 for leaves)
+ * int[N]    left child (absolute node index, -1 for leaves)
+ * int[N]    right child (absolute node index, -1 for leaves)
+ * double[N] split point: numeric threshold (left if x <= threshold) or bit mask of the levels that go left
+ * double[N] leaf prediction: class index (0 based) or regression value
+ * </pre>
+ * Strings ({@code str}) are an int byte length followed by the UTF-8 bytes.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public final class BinaryForest implements Forest {
+    /**
+     * File magic
+     */
+    public static final String MAGIC = "FOSF";
+
+    /**
+     * Current format version
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * R function that writes a randomForest in this format: {@code .fos.exportForest(model, file)}
+     */
+    public static final String EXPORT_FUNCTION =
+            ".fos.exportForest <- function(model, file) {\n" +
+            "   con <- file(file, 'wb')\n" +
+            "   on.exit(close(con))\n" +
+            "   int <- function(x) writeBin(as.integer(x), con, endian = 'big')\n" +
+            "   str <- function(s) { b <- charToRaw(enc2utf8(s)); int(length(b)); writeBin(b, con) }\n" +
+            "   vars <- names(model$forest$xlevels)\n" +
+            "   classification <- model$type == 'classification'\n" +
+            "   classes <- if (classification) model$classes else character(0)\n" +
+            "   writeBin(charToRaw('" + MAGIC + "'), con)\n" +
+            "   int(c(" + VERSION + ", model$ntree, length(classes), length(vars)))\n" +
+            "   for (cl in classes) str(cl)\n" +
+            "   for (i in seq_along(vars)) {\n" +
+            "      str(vars[i])\n" +
+            "      lv <- if (model$forest$ncat[i] > 1) model$forest$xlevels[[i]] else character(0)\n" +
+            "      int(length(lv))\n" +
+            "      for (l in lv) str(l)\n" +
+            "   }\n" +
+            "   trees <- lapply(seq_len(model$ntree), function(k) getTree(model, k, labelVar = FALSE))\n" +
+            "   sizes <- vapply(trees, nrow, 0L)\n" +
+            "   offsets <- c(0L, cumsum(sizes))\n" +
+            "   int(offsets)\n" +
+            "   t <- do.call(rbind, trees)\n" +
+            "   off <- rep(offsets[-length(offsets)], sizes)\n" +
+            "   leaf <- t[, 'status'] == -1\n" +
+            "   int(ifelse(leaf, -1L, t[, 'split var'] - 1L))\n" +
+            "   int(ifelse(leaf, -1L, t[, 'left daughter'] - 1L + off))\n" +
+            "   int(ifelse(leaf, -1L, t[, 'right daughter'] - 1L + off))\n" +
+            "   writeBin(as.double(t[, 'split point']), con, endian = 'big')\n" +
+            "   writeBin(as.double(if (classification) t[, 'prediction'] - 1 else t[, 'prediction']), con, endian = 'big')\n" +
+            "   invisible(NULL)\n" +
+            "}";
+
+    private final int[] offsets;
+    private final IntBuffer variables;
+    private final IntBuffer left;
+    private final IntBuffer right;
+    private final DoubleBuffer splits;
+    private final DoubleBuffer values;
+    private final String[] classes;
+
+    /**
+     * Row column of each forest variable
+     */
+    private final int[] columns;
+
+    /**
+     * Forest level index of each attribute level index, for categorical variables (null for numeric variables)
+     */
+    private final int[][] levels;
+
+    private BinaryForest(int[] offsets, IntBuffer variables, IntBuffer left, IntBuffer right,
+                         DoubleBuffer splits, DoubleBuffer values, String[] classes, int[] columns, int[][] levels) {
+        this.offsets = offsets;
+        this.variables = variables;
+        this.left = left;
+        this.right = right;
+        this.splits = splits;
+        this.values = values;
+        this.classes = classes;
+        this.columns = columns;
+        this.levels = levels;
+    }
+
+    /**
+     * Maps a binary forest file, binding its variables to the features of the scored rows
+     *
+     * @param file binary forest file
+     * @param names name of each feature, in row order
+     * @param levels index of each level of the categorical features, in row order (null for numeric features)
+     * @return the forest
+     * @throws FOSException if the file could not be read, is not valid or doesn't match the features
+     */
+    public static BinaryForest map(File file, List<String> names, List<Map<String, Integer>> levels) throws FOSException {
+        checkNotNull(names, "Feature names cannot be null");
+        checkNotNull(levels, "Feature levels cannot be null");
+        checkArgument(names.size() == levels.size(), "Expected the levels of %s features", names.size());
+
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            // the mapping remains valid after the channel is closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } catch (IOException e) {
+            throw new FOSException("Unable to map forest file '" + file.getAbsolutePath() + "'", e);
+        }
+
+        try {
+            return read(buffer, names, levels);
+        } catch (RuntimeException e) {
+            throw new FOSException("Invalid forest file '" + file.getAbsolutePath() + "'", e);
+        }
+    }
+
+    /**
+     * Reads the header and creates the views of the node arrays
+     * @param buffer file contents
+     * @param names name of each feature, in row order
+     * @param featureLevels index of each level of the categorical features, in row order
+     * @return the forest
+     * @throws FOSException if the file is not valid or doesn't match the features
+     */
+    private static BinaryForest read(ByteBuffer buffer, List<String> names, List<Map<String, Integer>> featureLevels) throws FOSException {
+        byte[] magic = new byte[MAGIC.length()];
+        buffer.get(magic);
+        if (!MAGIC.equals(new String(magic, Charsets.US_ASCII))) {
+            throw new FOSException("Not a FOS forest file");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new FOSException("Unsupported forest file version " + version);
+        }
+
+        int trees = buffer.getInt();
+        if (trees <= 0) {
+            throw new FOSException("Forest file without trees");
+        }
+        String[] classes = new String[buffer.getInt()];
+        int variables = buffer.getInt();
+        for (int i = 0; i != classes.length; ++i) {
+            classes[i] = readString(buffer);
+        }
+
+        Map<String, Integer> features = new HashMap<>();
+        for (int i = 0; i != names.size(); ++i) {
+            features.put(names.get(i), i);
+        }
+
+        int[] columns = new int[variables];
+        int[][] levels = new int[variables][];
+        for (int v = 0; v != variables; ++v) {
+            String name = readString(buffer);
+            Integer column = features.get(name);
+            if (column == null) {
+                throw new FOSException("Unknown forest variable '" + name + "'");
+            }
+            columns[v] = column;
+
+            int count = buffer.getInt();
+            Map<String, Integer> attributeLevels = featureLevels.get(column);
+            if (count == 0) {
+                if (attributeLevels != null) {
+                    throw new FOSException("Forest variable '" + name + "' is numeric but the attribute is categorical");
+                }
+                continue;
+            }
+            if (attributeLevels == null) {
+                throw new FOSException("Forest variable '" + name + "' is categorical but the attribute is numeric");
+            }
+
+            // attribute levels unknown to the forest are treated as missing values
+            levels[v] = new int[attributeLevels.size()];
+            Arrays.fill(levels[v], -1);
+            for (int l = 0; l != count; ++l) {
+                Integer index = attributeLevels.get(readString(buffer));
+                if (index != null) {
+                    levels[v][index] = l;
+                }
+            }
+        }
+
+        int[] offsets = new int[trees + 1];
+        buffer.asIntBuffer().get(offsets);
+        buffer.position(buffer.position() + offsets.length * 4);
+        int nodes = offsets[trees];
+
+        IntBuffer variableView = slice(buffer, nodes * 4).asIntBuffer();
+        IntBuffer leftView = slice(buffer, nodes * 4).asIntBuffer();
+        IntBuffer rightView = slice(buffer, nodes * 4).asIntBuffer();
+        DoubleBuffer splitView = slice(buffer, nodes * 8).asDoubleBuffer();
+        DoubleBuffer valueView = slice(buffer, nodes * 8).asDoubleBuffer();
+
+        // getTree numbers the children after their parent, so scores always walk down the tree and end
+        for (int tree = 0; tree != trees; ++tree) {
+            if (offsets[tree] < 0 || offsets[tree] >= offsets[tree + 1]) {
+                throw new FOSException("Corrupted forest tree " + tree);
+            }
+            for (int node = offsets[tree]; node != offsets[tree + 1]; ++node) {
+                int variable = variableView.get(node);
+                if (variable >= variables
+                    || (variable >= 0 && (!isChild(node, leftView.get(node), offsets[tree + 1])
+                                          || !isChild(node, rightView.get(node), offsets[tree + 1])))
+                    || (variable < 0 && classes.length > 0 && (valueView.get(node) < 0 || valueView.get(node) >= classes.length))) {
+                    throw new FOSException("Corrupted forest node " + node);
+                }
+            }
+        }
+
+        return new BinaryForest(offsets, variableView, leftView, rightView, splitView, valueView, classes, columns, levels);
+    }
+
+    /**
+     * Checks if a node can be the child of a split node: it must come after the split node, in the same tree
+     * @param node split node
+     * @param child child node
+     * @param end first node of the next tree
+     * @return true if the child is valid
+     */
+    private static boolean isChild(int node, int child, int end) {
+        return node < child && child < end;
+    }
+
+    /**
+     * Takes the next bytes of a buffer as a new buffer
+     * @param buffer source buffer, whose position is advanced
+     * @param length number of bytes
+     * @return the slice
+     */
+    private static ByteBuffer slice(ByteBuffer buffer, int length) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+
+    /**
+     * Reads a length prefixed UTF-8 string
+     * @param buffer source buffer
+     * @return the string
+     */
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    @Override
+    public double[] score(double[] row) {
+        int trees = offsets.length - 1;
+        double[] scores = new double[classes.length == 0 ? 1 : classes.length];
+
+        for (int tree = 0; tree != trees; ++tree) {
+            int node = offsets[tree];
+            int variable;
+            while ((variable = variables.get(node)) >= 0) {
+                double x = row[columns[variable]];
+                if (x != x) {
+                    // NaN: missing value
+                    return null;
+                }
+
+                boolean goLeft;
+                int[] variableLevels = levels[variable];
+                if (variableLevels != null) {
+                    int level = variableLevels[(int) x];
+                    if (level < 0) {
+                        return null;
+                    }
+                    goLeft = (((long) splits.get(node) >>> level) & 1L) != 0;
+                } else {
+                    goLeft = x <= splits.get(node);
+                }
+                node = goLeft ? left.get(node) : right.get(node);
+            }
+
+            if (classes.length == 0) {
+                scores[0] += values.get(node);
+            } else {
+                scores[(int) values.get(node)]++;
+            }
+        }
+
+        for (int i = 0; i != scores.length; ++i) {
+            scores[i] /= trees;
+        }
+        return scores;
+    }
+
+    @Override
+    public int getTrees() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * Gets the class names, in score order
+     * @return the class names (empty for a regression forest)
+     */
+    public String[] getClasses() {
+        return classes.clone();
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("trees", getTrees())
+                .add("nodes", offsets[offsets.length - 1])
+                .add("variables", columns.length)
+                .add("classes", classes.length)
+                .toString();
+    }
+}
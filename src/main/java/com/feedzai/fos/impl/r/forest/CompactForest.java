@@ -0,0 +1,226 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.forest;
+
+import com.google.common.base.Objects;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Compact tree ensemble evaluator.
+ * <p/>
+ * Every node of every tree is stored in a set of parallel primitive arrays, so scoring walks plain arrays without
+ * allocating. Split nodes compare a numeric feature with a threshold or test a categorical feature level against a
+ * 64 bit level mask, and go to the left child if the test holds. Leaves hold a class index (classification) or
+ * a value (regression).
+ * <p/>
+ * Classification forests score the fraction of trees voting for each class, as {@code predict(type = 'prob')}
+ * does for a randomForest. Regression forests score the average of the trees.
+ * <p/>
+ * Instances are immutable and thread safe.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public final class CompactForest implements Forest {
+    /**
+     * Leaf node
+     */
+    public static final byte LEAF = 0;
+
+    /**
+     * Goes left if {@code x <= threshold}
+     */
+    public static final byte LESS_OR_EQUAL = 1;
+
+    /**
+     * Goes left if {@code x < threshold}
+     */
+    public static final byte LESS_THAN = 2;
+
+    /**
+     * Goes left if {@code x > threshold}
+     */
+    public static final byte GREATER_THAN = 3;
+
+    /**
+     * Goes left if {@code x >= threshold}
+     */
+    public static final byte GREATER_OR_EQUAL = 4;
+
+    /**
+     * Goes left if the level of x is in the mask
+     */
+    public static final byte IN = 5;
+
+    /**
+     * Goes left if the level of x is not in the mask
+     */
+    public static final byte NOT_IN = 6;
+
+    /**
+     * Always goes left
+     */
+    public static final byte ALWAYS = 7;
+
+    /**
+     * Maximum number of levels of a categorical feature
+     */
+    public static final int MAX_LEVELS = 64;
+
+    private final int[] roots;
+    private final byte[] operators;
+    private final int[] features;
+    private final double[] thresholds;
+    private final long[] masks;
+    private final int[] left;
+    private final int[] right;
+    private final double[] values;
+    private final int featureCount;
+    private final int classes;
+
+    /**
+     * Creates a new forest from its node arrays. Every array except {@code roots} is indexed by node.
+     *
+     * @param roots root node of each tree
+     * @param operators split operator of each node ({@link #LEAF} for leaves)
+     * @param features feature tested by each split node
+     * @param thresholds threshold of numeric split nodes
+     * @param masks level mask of categorical split nodes
+     * @param left left child of each split node
+     * @param right right child of each split node
+     * @param values class index or value of each leaf
+     * @param featureCount number of features of the scored rows
+     * @param classes number of classes, or 0 for a regression forest
+     */
+    public CompactForest(int[] roots, byte[] operators, int[] features, double[] thresholds, long[] masks,
+                         int[] left, int[] right, double[] values, int featureCount, int classes) {
+        checkNotNull(roots, "Roots cannot be null");
+        checkArgument(roots.length > 0, "A forest needs at least one tree");
+        int nodes = operators.length;
+        checkArgument(features.length == nodes && thresholds.length == nodes && masks.length == nodes
+                      && left.length == nodes && right.length == nodes && values.length == nodes,
+                      "Node arrays must have the same length");
+        checkArgument(classes >= 0, "Number of classes cannot be negative");
+
+        this.roots = roots;
+        this.operators = operators;
+        this.features = features;
+        this.thresholds = thresholds;
+        this.masks = masks;
+        this.left = left;
+        this.right = right;
+        this.values = values;
+        this.featureCount = featureCount;
+        this.classes = classes;
+    }
+
+    @Override
+    public double[] score(double[] row) {
+        checkArgument(row.length >= featureCount, "Expected %s features but got %s", featureCount, row.length);
+
+        double[] scores = new double[classes == 0 ? 1 : classes];
+        for (int root : roots) {
+            int node = root;
+            byte operator;
+            while ((operator = operators[node]) != LEAF) {
+                double x = row[features[node]];
+                if (x != x && operator != ALWAYS) {
+                    // NaN: missing value or unknown level
+                    return null;
+                }
+                node = test(operator, x, node) ? left[node] : right[node];
+            }
+
+            if (classes == 0) {
+                scores[0] += values[node];
+            } else {
+                scores[(int) values[node]]++;
+            }
+        }
+
+        for (int i = 0; i != scores.length; ++i) {
+            scores[i] /= roots.length;
+        }
+        return scores;
+    }
+
+    /**
+     * Evaluates the test of a split node
+     * @param operator split operator
+     * @param x feature value
+     * @param node split node
+     * @return true to go to the left child
+     */
+    private boolean test(byte operator, double x, int node) {
+        switch (operator) {
+            case LESS_OR_EQUAL:
+                return x <= thresholds[node];
+            case LESS_THAN:
+                return x < thresholds[node];
+            case GREATER_THAN:
+                return x > thresholds[node];
+            case GREATER_OR_EQUAL:
+                return x >= thresholds[node];
+            case IN:
+                return (masks[node] & (1L << (int) x)) != 0;
+            case NOT_IN:
+                return (masks[node] & (1L << (int) x)) == 0;
+            default:
+                return true;
+        }
+    }
+
+    @Override
+    public int getTrees() {
+        return roots.length;
+    }
+
+    /**
+     * Gets the number of nodes of all trees
+     * @return the number of nodes
+     */
+    public int getNodes() {
+        return operators.length;
+    }
+
+    /**
+     * Gets the number of classes
+     * @return the number of classes, or 0 for a regression forest
+     */
+    public int getClasses() {
+        return classes;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("trees", roots.length)
+                .add("nodes", operators.length)
+                .add("features", featureCount)
+                .add("classes", classes)
+                .toString();
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.forest;
+
+/**
+ * Tree ensemble scored in the JVM.
+ * <p/>
+ * Instances are rows of doubles: numeric features as is, categorical features as the index of their level in the
+ * attribute definition, and NaN for missing values. Implementations are thread safe.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public interface Forest {
+
+    /**
+     * Scores a row
+     * @param row feature values, with NaN for missing values
+     * @return the class probabilities (or the single regression value), or null if a tree needs a missing value
+     */
+    double[] score(double[] row);
+
+    /**
+     * Gets the number of trees
+     * @return the number of trees
+     */
+    int getTrees();
+}
@@ -0,0 +1,405 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.forest;
+
+import com.feedzai.fos.api.FOSException;
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import org.dmg.pmml.Array;
+import org.dmg.pmml.DataField;
+import org.dmg.pmml.FieldName;
+import org.dmg.pmml.FieldUsageType;
+import org.dmg.pmml.MiningField;
+import org.dmg.pmml.MiningFunctionType;
+import org.dmg.pmml.MiningModel;
+import org.dmg.pmml.Model;
+import org.dmg.pmml.MultipleModelMethodType;
+import org.dmg.pmml.Node;
+import org.dmg.pmml.PMML;
+import org.dmg.pmml.Predicate;
+import org.dmg.pmml.Segment;
+import org.dmg.pmml.SimplePredicate;
+import org.dmg.pmml.SimpleSetPredicate;
+import org.dmg.pmml.TreeModel;
+import org.dmg.pmml.True;
+import org.dmg.pmml.Value;
+import org.jpmml.model.JAXBUtil;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Converts the PMML export of a tree ensemble (such as a R randomForest exported by the {@code pmml} package) into
+ * a {@link CompactForest}.
+ * <p/>
+ * Supported models are a {@code MiningModel} whose segments are all {@code TreeModel}s combined by majority vote
+ * (classification) or average (regression), or a single {@code TreeModel}. Every split node must have two children,
+ * the first one with a simple or set predicate that decides the split; the second child is taken otherwise.
+ * <p/>
+ * A converter holds the nodes being converted, so each instance converts a single model.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class PMMLForestConverter {
+    /**
+     * Index of each feature, by name
+     */
+    private final Map<String, Integer> features = new HashMap<>();
+
+    /**
+     * Index of each level of the categorical features (null for numeric features)
+     */
+    private final List<Map<String, Integer>> levels;
+
+    /**
+     * Index of each class, by name (empty for regression)
+     */
+    private final Map<String, Integer> classes = new HashMap<>();
+
+    private final List<Integer> roots = new ArrayList<>();
+    private final List<Byte> operators = new ArrayList<>();
+    private final List<Integer> splitFeatures = new ArrayList<>();
+    private final List<Double> thresholds = new ArrayList<>();
+    private final List<Long> masks = new ArrayList<>();
+    private final List<Integer> left = new ArrayList<>();
+    private final List<Integer> right = new ArrayList<>();
+    private final List<Double> values = new ArrayList<>();
+
+    /**
+     * Creates a new converter for rows with the given features
+     * @param names name of each feature, in row order
+     * @param levels index of each level of the categorical features, in row order (null for numeric features)
+     */
+    public PMMLForestConverter(List<String> names, List<Map<String, Integer>> levels) {
+        checkNotNull(names, "Feature names cannot be null");
+        checkNotNull(levels, "Feature levels cannot be null");
+        checkArgument(names.size() == levels.size(), "Expected the levels of %s features", names.size());
+
+        for (int i = 0; i != names.size(); ++i) {
+            features.put(names.get(i), i);
+        }
+        this.levels = levels;
+    }
+
+    /**
+     * Reads a PMML file and converts it
+     * @param file PMML file
+     * @return the forest
+     * @throws FOSException if the file could not be read or the model is not supported
+     */
+    public CompactForest convert(File file) throws FOSException {
+        try (InputStream is = new FileInputStream(file)) {
+            return convert(JAXBUtil.unmarshalPMML(new StreamSource(is)));
+        } catch (FOSException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new FOSException("Unable to read PMML file '" + file.getAbsolutePath() + "'", e);
+        }
+    }
+
+    /**
+     * Converts a PMML tree ensemble
+     * @param pmml PMML document
+     * @return the forest
+     * @throws FOSException if the model is not supported
+     */
+    public CompactForest convert(PMML pmml) throws FOSException {
+        if (pmml.getModels().size() != 1) {
+            throw new FOSException("Expected a single PMML model but got " + pmml.getModels().size());
+        }
+        Model model = pmml.getModels().get(0);
+
+        boolean classification = model.getFunctionName() == MiningFunctionType.CLASSIFICATION;
+        if (!classification && model.getFunctionName() != MiningFunctionType.REGRESSION) {
+            throw new FOSException("Unsupported PMML mining function " + model.getFunctionName());
+        }
+        if (classification) {
+            readClasses(pmml, model);
+        }
+
+        if (model instanceof TreeModel) {
+            roots.add(node(((TreeModel) model).getNode()));
+        } else if (model instanceof MiningModel) {
+            MultipleModelMethodType method = ((MiningModel) model).getSegmentation().getMultipleModelMethod();
+            if (method != (classification ? MultipleModelMethodType.MAJORITY_VOTE : MultipleModelMethodType.AVERAGE)) {
+                throw new FOSException("Unsupported PMML segmentation method " + method);
+            }
+
+            for (Segment segment : ((MiningModel) model).getSegmentation().getSegments()) {
+                if (!(segment.getPredicate() instanceof True) || !(segment.getModel() instanceof TreeModel)) {
+                    throw new FOSException("Only unconditional tree segments are supported");
+                }
+                roots.add(node(((TreeModel) segment.getModel()).getNode()));
+            }
+        } else {
+            throw new FOSException("Unsupported PMML model " + model.getClass().getSimpleName());
+        }
+
+        return new CompactForest(Ints.toArray(roots),
+                                 Bytes.toArray(operators),
+                                 Ints.toArray(splitFeatures),
+                                 Doubles.toArray(thresholds),
+                                 Longs.toArray(masks),
+                                 Ints.toArray(left),
+                                 Ints.toArray(right),
+                                 Doubles.toArray(values),
+                                 features.size(),
+                                 classes.size());
+    }
+
+    /**
+     * Reads the classes of a classification model, in the order of the target field values
+     * @param pmml PMML document
+     * @param model classification model
+     * @throws FOSException if the target field or its values are missing
+     */
+    private void readClasses(PMML pmml, Model model) throws FOSException {
+        FieldName target = null;
+        for (MiningField field : model.getMiningSchema().getMiningFields()) {
+            if (field.getUsageType() == FieldUsageType.PREDICTED) {
+                target = field.getName();
+            }
+        }
+        if (target == null) {
+            throw new FOSException("PMML model has no predicted field");
+        }
+
+        for (DataField field : pmml.getDataDictionary().getDataFields()) {
+            if (field.getName().equals(target)) {
+                for (Value value : field.getValues()) {
+                    if (!classes.containsKey(value.getValue())) {
+                        classes.put(value.getValue(), classes.size());
+                    }
+                }
+            }
+        }
+        if (classes.isEmpty()) {
+            throw new FOSException("PMML target field '" + target.getValue() + "' has no values");
+        }
+    }
+
+    /**
+     * Converts a node and its subtree, depth first
+     * @param node PMML node
+     * @return the index of the converted node
+     * @throws FOSException if the node is not supported
+     */
+    private int node(Node node) throws FOSException {
+        int index = operators.size();
+        operators.add(CompactForest.LEAF);
+        splitFeatures.add(0);
+        thresholds.add(0d);
+        masks.add(0L);
+        left.add(-1);
+        right.add(-1);
+        values.add(0d);
+
+        List<Node> children = node.getNodes();
+        if (children.isEmpty()) {
+            values.set(index, leafValue(node.getScore()));
+            return index;
+        }
+        if (children.size() != 2) {
+            throw new FOSException("Only binary trees are supported but a node has " + children.size() + " children");
+        }
+
+        split(index, children.get(0).getPredicate());
+        left.set(index, node(children.get(0)));
+        right.set(index, node(children.get(1)));
+        return index;
+    }
+
+    /**
+     * Converts the value of a leaf
+     * @param score leaf score
+     * @return the class index or the regression value
+     * @throws FOSException if the score is missing or not a known class
+     */
+    private double leafValue(String score) throws FOSException {
+        if (score == null) {
+            throw new FOSException("PMML leaf without score");
+        }
+        if (classes.isEmpty()) {
+            try {
+                return Double.parseDouble(score);
+            } catch (NumberFormatException e) {
+                throw new FOSException("Invalid regression score '" + score + "'", e);
+            }
+        }
+
+        Integer index = classes.get(score);
+        if (index == null) {
+            throw new FOSException("Unknown class '" + score + "'");
+        }
+        return index;
+    }
+
+    /**
+     * Converts the predicate that sends instances to the left child of a split node
+     * @param index split node
+     * @param predicate predicate of the left child
+     * @throws FOSException if the predicate is not supported
+     */
+    private void split(int index, Predicate predicate) throws FOSException {
+        if (predicate instanceof True) {
+            operators.set(index, CompactForest.ALWAYS);
+        } else if (predicate instanceof SimplePredicate) {
+            SimplePredicate simple = (SimplePredicate) predicate;
+            int feature = feature(simple.getField());
+            splitFeatures.set(index, feature);
+
+            if (levels.get(feature) != null) {
+                long mask = levelMask(feature, simple.getValue());
+                masks.set(index, mask);
+                switch (simple.getOperator()) {
+                    case EQUAL:
+                        operators.set(index, CompactForest.IN);
+                        break;
+                    case NOT_EQUAL:
+                        operators.set(index, CompactForest.NOT_IN);
+                        break;
+                    default:
+                        throw new FOSException("Unsupported categorical operator " + simple.getOperator());
+                }
+                return;
+            }
+
+            thresholds.set(index, Double.parseDouble(simple.getValue()));
+            switch (simple.getOperator()) {
+                case LESS_OR_EQUAL:
+                    operators.set(index, CompactForest.LESS_OR_EQUAL);
+                    break;
+                case LESS_THAN:
+                    operators.set(index, CompactForest.LESS_THAN);
+                    break;
+                case GREATER_THAN:
+                    operators.set(index, CompactForest.GREATER_THAN);
+                    break;
+                case GREATER_OR_EQUAL:
+                    operators.set(index, CompactForest.GREATER_OR_EQUAL);
+                    break;
+                default:
+                    throw new FOSException("Unsupported numeric operator " + simple.getOperator());
+            }
+        } else if (predicate instanceof SimpleSetPredicate) {
+            SimpleSetPredicate set = (SimpleSetPredicate) predicate;
+            int feature = feature(set.getField());
+            if (levels.get(feature) == null) {
+                throw new FOSException("Set predicate on numeric field '" + set.getField().getValue() + "'");
+            }
+
+            long mask = 0;
+            for (String level : parseArray(set.getArray())) {
+                mask |= levelMask(feature, level);
+            }
+
+            splitFeatures.set(index, feature);
+            masks.set(index, mask);
+            operators.set(index, set.getBooleanOperator() == SimpleSetPredicate.BooleanOperator.IS_IN
+                                 ? CompactForest.IN
+                                 : CompactForest.NOT_IN);
+        } else {
+            throw new FOSException("Unsupported PMML predicate " + predicate.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Gets the index of a feature
+     * @param field PMML field
+     * @return the feature index
+     * @throws FOSException if the field is not a feature
+     */
+    private int feature(FieldName field) throws FOSException {
+        Integer feature = features.get(field.getValue());
+        if (feature == null) {
+            throw new FOSException("Unknown PMML field '" + field.getValue() + "'");
+        }
+        return feature;
+    }
+
+    /**
+     * Gets the mask bit of a categorical level
+     * @param feature feature index
+     * @param level level name
+     * @return the level bit, or 0 if the level can't be scored
+     * @throws FOSException if the feature has too many levels
+     */
+    private long levelMask(int feature, String level) throws FOSException {
+        Map<String, Integer> featureLevels = levels.get(feature);
+        if (featureLevels.size() > CompactForest.MAX_LEVELS) {
+            throw new FOSException("Categorical features with more than " + CompactForest.MAX_LEVELS + " levels are not supported");
+        }
+
+        Integer bit = featureLevels.get(level);
+        return bit == null ? 0 : 1L << bit;
+    }
+
+    /**
+     * Parses the values of a PMML array: whitespace separated, optionally double quoted with backslash escapes
+     * @param array PMML array
+     * @return the values
+     */
+    static List<String> parseArray(Array array) {
+        List<String> result = new ArrayList<>();
+        String content = array.getValue();
+
+        int i = 0;
+        while (i < content.length()) {
+            char c = content.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '"') {
+                StringBuilder sb = new StringBuilder();
+                i++;
+                while (i < content.length() && content.charAt(i) != '"') {
+                    if (content.charAt(i) == '\\' && i + 1 < content.length()) {
+                        i++;
+                    }
+                    sb.append(content.charAt(i++));
+                }
+                i++;
+                result.add(sb.toString());
+            } else {
+                int start = i;
+                while (i < content.length() && !Character.isWhitespace(content.charAt(i))) {
+                    i++;
+                }
+                result.add(content.substring(start, i));
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Publishes metrics as MBeans of the platform MBean server, named
+ * {@code com.feedzai.fos.impl.r:type=<type>,name=<name>}.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class JmxMetricsReporter implements MetricsReporter {
+    /**
+     * Reporter logger
+     */
+    private static final Logger logger = LoggerFactory.getLogger(JmxMetricsReporter.class);
+
+    /**
+     * Domain of the MBean names
+     */
+    public static final String DOMAIN = "com.feedzai.fos.impl.r";
+
+    private final MBeanServer server;
+
+    /**
+     * Creates a reporter to the platform MBean server
+     */
+    public JmxMetricsReporter() {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    /**
+     * Creates a reporter to the given MBean server
+     * @param server MBean server
+     */
+    public JmxMetricsReporter(MBeanServer server) {
+        this.server = server;
+    }
+
+    @Override
+    public <T> void register(String type, String name, T metrics, Class<T> view) {
+        try {
+            ObjectName objectName = objectName(type, name);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(new StandardMBean(metrics, view), objectName);
+        } catch (JMException e) {
+            logger.warn("Unable to register MBean {} {}", type, name, e);
+        }
+    }
+
+    @Override
+    public void unregister(String type, String name) {
+        try {
+            server.unregisterMBean(objectName(type, name));
+        } catch (InstanceNotFoundException e) {
+            // already unregistered
+        } catch (JMException e) {
+            logger.warn("Unable to unregister MBean {} {}", type, name, e);
+        }
+    }
+
+    /**
+     * Builds the name of a MBean
+     * @param type metrics type
+     * @param name metrics name
+     * @return the MBean name
+     * @throws JMException if the name is not valid
+     */
+    private static ObjectName objectName(String type, String name) throws JMException {
+        return new ObjectName(DOMAIN + ":type=" + ObjectName.quote(type) + ",name=" + ObjectName.quote(name));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.metrics;
+
+/**
+ * Publishes metrics, e.g. as JMX MBeans.
+ * <p/>
+ * Metrics are registered once and read by the reporter whenever it needs them. Implementations must have a public
+ * constructor without arguments to be configured by class name.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public interface MetricsReporter {
+    /**
+     * Reporter that doesn't publish anything
+     */
+    MetricsReporter NONE = new MetricsReporter() {
+        @Override
+        public <T> void register(String type, String name, T metrics, Class<T> view) {
+        }
+
+        @Override
+        public void unregister(String type, String name) {
+        }
+    };
+
+    /**
+     * Publishes metrics, replacing any metrics registered with the same type and name
+     * @param type metrics type (e.g. {@code Model})
+     * @param name metrics name, unique in the type
+     * @param metrics metrics object
+     * @param view interface of the metrics object that is published
+     * @param <T> type of the published interface
+     */
+    <T> void register(String type, String name, T metrics, Class<T> view);
+
+    /**
+     * Withdraws previously published metrics. Does nothing if none are registered.
+     * @param type metrics type
+     * @param name metrics name
+     */
+    void unregister(String type, String name);
+}
@@ -0,0 +1,179 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.metrics;
+
+import com.google.common.base.Objects;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Score counters and per stage latency histograms of a model.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class ModelMetrics implements ModelMetricsMBean {
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong jvmScores = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int queued;
+    private volatile long since = System.nanoTime();
+    private final Map<ScoreStage, LatencyHistogram> latencies = new EnumMap<>(ScoreStage.class);
+
+    /**
+     * Creates empty metrics
+     */
+    public ModelMetrics() {
+        for (ScoreStage stage : ScoreStage.values()) {
+            latencies.put(stage, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Records the start of a score request
+     * @return the start time, to be given to {@link #end(long, boolean)}
+     */
+    public long start() {
+        requests.incrementAndGet();
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the end of a score request
+     * @param start start time returned by {@link #start()}
+     * @param succeeded whether the request succeeded
+     */
+    public void end(long start, boolean succeeded) {
+        inFlight.decrementAndGet();
+        if (!succeeded) {
+            errors.incrementAndGet();
+        }
+        latencies.get(ScoreStage.TOTAL).record(System.nanoTime() - start);
+    }
+
+    /**
+     * Records the latency of a stage
+     * @param stage score stage
+     * @param nanos latency in nanoseconds
+     */
+    public void record(ScoreStage stage, long nanos) {
+        latencies.get(stage).record(nanos);
+    }
+
+    /**
+     * Records instances scored in the JVM instead of R
+     * @param instances number of instances
+     */
+    public void recordJvmScores(int instances) {
+        jvmScores.addAndGet(instances);
+    }
+
+    /**
+     * Records the RServe stages of the last call of a session
+     * @param session metrics of the session that made the call
+     */
+    public void recordCall(SessionMetrics session) {
+        record(ScoreStage.ROUND_TRIP, session.getLastRoundTrip());
+        if (session.getLastEvaluation() >= 0) {
+            record(ScoreStage.EVALUATION, session.getLastEvaluation());
+        }
+        record(ScoreStage.DECODE, session.getLastDecode());
+    }
+
+    /**
+     * Updates the number of single instance scores waiting for a micro batch
+     * @param queued number of waiting scores
+     */
+    public void setQueued(int queued) {
+        this.queued = queued;
+    }
+
+    /**
+     * Gets the latency histogram of a stage
+     * @param stage score stage
+     * @return the histogram
+     */
+    public LatencyHistogram getLatency(ScoreStage stage) {
+        return latencies.get(stage);
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.get();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public long getJvmScores() {
+        return jvmScores.get();
+    }
+
+    @Override
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public int getQueued() {
+        return queued;
+    }
+
+    @Override
+    public double getThroughput() {
+        double seconds = (System.nanoTime() - since) / 1e9;
+        return seconds > 0 ? requests.get() / seconds : 0;
+    }
+
+    @Override
+    public void reset() {
+        requests.set(0);
+        errors.set(0);
+        jvmScores.set(0);
+        since = System.nanoTime();
+        for (LatencyHistogram histogram : latencies.values()) {
+            histogram.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("requests", getRequests())
+                .add("errors", getErrors())
+                .add("jvmScores", getJvmScores())
+                .add("inFlight", getInFlight())
+                .add("queued", getQueued())
+                .add("latencies", latencies)
+                .toString();
+    }
+}
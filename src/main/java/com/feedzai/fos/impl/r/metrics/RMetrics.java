@@ -0,0 +1,163 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.metrics;
+
+import com.google.common.base.Objects;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Registry of the model, session and pool metrics of a FOS R instance, published with a {@link MetricsReporter}.
+ * <p/>
+ * Every metrics object is published as a whole and each of its latency histograms separately, with the stage
+ * appended to the name (e.g. type {@code ModelLatency}, name {@code <uuid>/TOTAL}).
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class RMetrics {
+    private static final String MODEL = "Model";
+    private static final String MODEL_LATENCY = "ModelLatency";
+    private static final String SESSION = "Session";
+    private static final String SESSION_LATENCY = "SessionLatency";
+    private static final String POOL = "Pool";
+
+    private final MetricsReporter reporter;
+    private final ConcurrentMap<UUID, ModelMetrics> models = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a registry
+     * @param reporter publishes the registered metrics
+     */
+    public RMetrics(MetricsReporter reporter) {
+        checkNotNull(reporter, "Reporter cannot be null");
+        this.reporter = reporter;
+    }
+
+    /**
+     * Gets the metrics of a model, creating and publishing them if needed
+     * @param modelId UUID of the model
+     * @return the model metrics
+     */
+    public ModelMetrics addModel(UUID modelId) {
+        ModelMetrics metrics = models.get(modelId);
+        if (metrics != null) {
+            return metrics;
+        }
+
+        ModelMetrics created = new ModelMetrics();
+        metrics = models.putIfAbsent(modelId, created);
+        if (metrics != null) {
+            return metrics;
+        }
+
+        String name = modelId.toString();
+        reporter.register(MODEL, name, created, ModelMetricsMBean.class);
+        for (ScoreStage stage : ScoreStage.values()) {
+            reporter.register(MODEL_LATENCY, name + "/" + stage, created.getLatency(stage), LatencyHistogramMBean.class);
+        }
+        return created;
+    }
+
+    /**
+     * Gets the metrics of a model. Unknown models get unpublished metrics, so that scores of models that are not
+     * registered don't leak metrics.
+     *
+     * @param modelId UUID of the model
+     * @return the model metrics
+     */
+    public ModelMetrics model(UUID modelId) {
+        ModelMetrics metrics = models.get(modelId);
+        return metrics != null ? metrics : new ModelMetrics();
+    }
+
+    /**
+     * Withdraws the metrics of a removed model
+     * @param modelId UUID of the model
+     */
+    public void removeModel(UUID modelId) {
+        if (models.remove(modelId) == null) {
+            return;
+        }
+
+        String name = modelId.toString();
+        reporter.unregister(MODEL, name);
+        for (ScoreStage stage : ScoreStage.values()) {
+            reporter.unregister(MODEL_LATENCY, name + "/" + stage);
+        }
+    }
+
+    /**
+     * Publishes the metrics of a new session
+     * @param metrics session metrics
+     */
+    public void addSession(SessionMetrics metrics) {
+        String name = String.valueOf(metrics.getId());
+        reporter.register(SESSION, name, metrics, SessionMetricsMBean.class);
+        reporter.register(SESSION_LATENCY, name + "/" + ScoreStage.ROUND_TRIP, metrics.getRoundTrip(), LatencyHistogramMBean.class);
+        reporter.register(SESSION_LATENCY, name + "/" + ScoreStage.EVALUATION, metrics.getEvaluation(), LatencyHistogramMBean.class);
+        reporter.register(SESSION_LATENCY, name + "/" + ScoreStage.DECODE, metrics.getDecode(), LatencyHistogramMBean.class);
+    }
+
+    /**
+     * Withdraws the metrics of a closed session
+     * @param metrics session metrics
+     */
+    public void removeSession(SessionMetrics metrics) {
+        String name = String.valueOf(metrics.getId());
+        reporter.unregister(SESSION, name);
+        reporter.unregister(SESSION_LATENCY, name + "/" + ScoreStage.ROUND_TRIP);
+        reporter.unregister(SESSION_LATENCY, name + "/" + ScoreStage.EVALUATION);
+        reporter.unregister(SESSION_LATENCY, name + "/" + ScoreStage.DECODE);
+    }
+
+    /**
+     * Publishes the gauges of a session pool
+     * @param name pool name
+     * @param metrics pool gauges
+     */
+    public void addPool(String name, PoolMetricsMBean metrics) {
+        reporter.register(POOL, name, metrics, PoolMetricsMBean.class);
+    }
+
+    /**
+     * Withdraws the gauges of a closed session pool
+     * @param name pool name
+     */
+    public void removePool(String name) {
+        reporter.unregister(POOL, name);
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("reporter", reporter)
+                .add("models", models.size())
+                .toString();
+    }
+}
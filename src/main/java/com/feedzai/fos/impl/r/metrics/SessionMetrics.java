@@ -0,0 +1,170 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.metrics;
+
+import com.google.common.base.Objects;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Call counters and RServe latency histograms of a R session.
+ * <p/>
+ * Also keeps the stage latencies of the last call, which the thread that owns the session reads to attribute them
+ * to the scored model.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class SessionMetrics implements SessionMetricsMBean {
+    private final int id;
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final LatencyHistogram roundTrip = new LatencyHistogram();
+    private final LatencyHistogram evaluation = new LatencyHistogram();
+    private final LatencyHistogram decode = new LatencyHistogram();
+
+    private long lastRoundTrip;
+    private long lastEvaluation;
+    private long lastDecode;
+
+    /**
+     * Creates empty metrics
+     * @param id session id, unique in the JVM
+     */
+    public SessionMetrics(int id) {
+        this.id = id;
+    }
+
+    /**
+     * Records a completed RServe exchange
+     * @param exchangeNanos time from sending the request to receiving the response
+     * @param evaluationNanos evaluation time measured by R, or a negative value if unknown
+     */
+    public void recordCall(long exchangeNanos, long evaluationNanos) {
+        calls.incrementAndGet();
+        lastEvaluation = evaluationNanos;
+        lastRoundTrip = evaluationNanos >= 0 ? Math.max(exchangeNanos - evaluationNanos, 0) : exchangeNanos;
+        lastDecode = 0;
+        roundTrip.record(lastRoundTrip);
+        if (evaluationNanos >= 0) {
+            evaluation.record(evaluationNanos);
+        }
+    }
+
+    /**
+     * Records the decoding of the result of the last call
+     * @param nanos decoding time
+     */
+    public void recordDecode(long nanos) {
+        lastDecode = nanos;
+        decode.record(nanos);
+    }
+
+    /**
+     * Records a failed call
+     */
+    public void recordError() {
+        calls.incrementAndGet();
+        errors.incrementAndGet();
+    }
+
+    /**
+     * @return session id, unique in the JVM
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return round trip of the last call, in nanoseconds
+     */
+    public long getLastRoundTrip() {
+        return lastRoundTrip;
+    }
+
+    /**
+     * @return R evaluation time of the last call, in nanoseconds (negative if unknown)
+     */
+    public long getLastEvaluation() {
+        return lastEvaluation;
+    }
+
+    /**
+     * @return decoding time of the last call, in nanoseconds
+     */
+    public long getLastDecode() {
+        return lastDecode;
+    }
+
+    /**
+     * @return round trip latencies
+     */
+    public LatencyHistogram getRoundTrip() {
+        return roundTrip;
+    }
+
+    /**
+     * @return R evaluation latencies
+     */
+    public LatencyHistogram getEvaluation() {
+        return evaluation;
+    }
+
+    /**
+     * @return decoding latencies
+     */
+    public LatencyHistogram getDecode() {
+        return decode;
+    }
+
+    @Override
+    public long getCalls() {
+        return calls.get();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public void reset() {
+        calls.set(0);
+        errors.set(0);
+        roundTrip.reset();
+        evaluation.reset();
+        decode.reset();
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("id", id)
+                .add("calls", getCalls())
+                .add("errors", getErrors())
+                .add("roundTrip", roundTrip)
+                .add("evaluation", evaluation)
+                .toString();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.rserve;
+
+import com.google.common.base.Objects;
+
+/**
+ * A R call prepared in a {@link FosRServeAPI} session.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ * @see FosRServeAPI#prepare(String, String...)
+ */
+public final class FosRPreparedCall {
+    /**
+     * Session where the call was prepared
+     */
+    private final FosRServeAPI owner;
+
+    /**
+     * Name of the R function that implements the call
+     */
+    private final String function;
+
+    /**
+     * Expression evaluated on each invocation
+     */
+    private final String call;
+
+    /**
+     * Template the call was prepared from
+     */
+    private final String template;
+
+    /**
+     * Names of the variables bound on each invocation
+     */
+    private final String[] parameters;
+
+    /**
+     * Creates a new prepared call
+     * @param owner session where the call was prepared
+     * @param function name of the R function that implements the call
+     * @param template template the call was prepared from
+     * @param parameters names of the variables bound on each invocation
+     */
+    FosRPreparedCall(FosRServeAPI owner, String function, String template, String[] parameters) {
+        this.owner = owner;
+        this.function = function;
+        this.call = function + "()";
+        this.template = template;
+        this.parameters = parameters.clone();
+    }
+
+    /**
+     * Gets the session where the call was prepared
+     * @return the owning session
+     */
+    FosRServeAPI getOwner() {
+        return owner;
+    }
+
+    /**
+     * Gets the name of the R function that implements the call
+     * @return the function name
+     */
+    String getFunction() {
+        return function;
+    }
+
+    /**
+     * Gets the expression evaluated on each invocation
+     * @return the R expression
+     */
+    String getCall() {
+        return call;
+    }
+
+    /**
+     * Gets the names of the variables bound on each invocation
+     * @return the parameter names
+     */
+    String[] getParameters() {
+        return parameters;
+    }
+
+    /**
+     * Gets the template the call was prepared from
+     * @return the template
+     */
+    public String getTemplate() {
+        return template;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("call", call)
+                .add("template", template)
+                .toString();
+    }
+}
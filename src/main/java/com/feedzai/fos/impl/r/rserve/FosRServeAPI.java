@@ -24,6 +24,7 @@
 package com.feedzai.fos.impl.r.rserve;
 
 import com.feedzai.fos.api.FOSException;
+import org.rosuda.REngine.REXP;
 
 import java.util.List;
 
@@ -51,6 +52,150 @@ public interface FosRServeAPI {
      */
     public <T> T eval(String command) throws FOSException;
 
+    /**
+     * Evals a R command with a deadline.
+     * <p/>
+     * If the deadline expires the session is abandoned: its connection is closed, the evaluation fails and the
+     * session is no longer usable.
+     *
+     * @param command R command to execute
+     * @param timeoutMillis maximum time to wait for the result, in milliseconds (0 for no deadline)
+     * @param <T> Expected return type
+     * @return returned value
+     * @throws FOSException  Thrown if R eval fails or the deadline expires
+     */
+    public <T> T eval(String command, long timeoutMillis) throws FOSException;
+
+    /**
+     * Evals a R command that returns a numeric vector
+     * @param command R command to execute
+     * @return returned values
+     * @throws FOSException Thrown if R eval fails or the result is not numeric
+     */
+    public double[] evalDoubles(String command) throws FOSException;
+
+    /**
+     * Evals a R command that returns a numeric vector, decoding it into a caller supplied buffer
+     * @param command R command to execute
+     * @param buffer buffer for the result; a new array is returned if its length differs from the result length
+     * @return returned values (the buffer if it was used)
+     * @throws FOSException Thrown if R eval fails or the result is not numeric
+     */
+    public double[] evalDoubles(String command, double[] buffer) throws FOSException;
+
+    /**
+     * Evals a R command that returns a numeric matrix, keeping its shape
+     * @param command R command to execute
+     * @return returned matrix as an array of rows (a single row if the result has no dimensions)
+     * @throws FOSException Thrown if R eval fails or the result is not numeric
+     */
+    public double[][] evalDoubleMatrix(String command) throws FOSException;
+
+    /**
+     * Evals a R command that returns an integer vector
+     * @param command R command to execute
+     * @return returned values
+     * @throws FOSException Thrown if R eval fails or the result is not an integer vector
+     */
+    public int[] evalInts(String command) throws FOSException;
+
+    /**
+     * Evals a R command that returns an integer vector, decoding it into a caller supplied buffer
+     * @param command R command to execute
+     * @param buffer buffer for the result; a new array is returned if its length differs from the result length
+     * @return returned values (the buffer if it was used)
+     * @throws FOSException Thrown if R eval fails or the result is not an integer vector
+     */
+    public int[] evalInts(String command, int[] buffer) throws FOSException;
+
+    /**
+     * Prepares a call that can be invoked repeatedly with new arguments.
+     * <p/>
+     * The template is parsed once and kept in the R session. Each invocation binds the arguments to the
+     * parameters with the binary protocol and evaluates the prepared call, so no R source is parsed per call.
+     * R errors are reported in the same way as in {@link #eval(String)}.
+     * <p/>
+     * Saving the parse does not save round trips on every transport, see {@link #invoke(FosRPreparedCall, REXP...)}.
+     *
+     * @param template R expression to evaluate, referencing the parameters by name
+     * @param parameters names of the (global) variables bound on each invocation
+     * @return the prepared call
+     * @throws FOSException if the template could not be prepared
+     */
+    public FosRPreparedCall prepare(String template, String... parameters) throws FOSException;
+
+    /**
+     * Invokes a call prepared in this session.
+     * <p/>
+     * With the default REngine client every argument is assigned in its own request before the call is evaluated,
+     * so an invocation with N arguments costs 1 + N round trips, more than an inlined {@link #eval(String)}. Only
+     * the direct protocol ({@code fos.r.directProtocol}) sends the assignments and the call in a single write,
+     * for a single round trip.
+     *
+     * @param call prepared call
+     * @param arguments values bound to the call parameters, in order
+     * @param <T> Expected return type
+     * @return returned value
+     * @throws FOSException Thrown if R eval fails
+     */
+    public <T> T invoke(FosRPreparedCall call, REXP... arguments) throws FOSException;
+
+    /**
+     * Invokes a call prepared in this session that returns a numeric vector
+     * @param call prepared call
+     * @param buffer optional buffer for the result; a new array is returned if its length differs from the result
+     * @param arguments values bound to the call parameters, in order
+     * @return returned values (the buffer if it was used)
+     * @throws FOSException Thrown if R eval fails or the result is not numeric
+     */
+    public double[] invokeDoubles(FosRPreparedCall call, double[] buffer, REXP... arguments) throws FOSException;
+
+    /**
+     * Invokes a call prepared in this session that returns a numeric vector, with a deadline.
+     * The session is abandoned if the deadline expires, as in {@link #eval(String, long)}.
+     *
+     * @param call prepared call
+     * @param buffer optional buffer for the result; a new array is returned if its length differs from the result
+     * @param timeoutMillis maximum time to wait for the result, in milliseconds (0 for no deadline)
+     * @param arguments values bound to the call parameters, in order
+     * @return returned values (the buffer if it was used)
+     * @throws FOSException Thrown if R eval fails, the result is not numeric or the deadline expires
+     */
+    public double[] invokeDoubles(FosRPreparedCall call, double[] buffer, long timeoutMillis, REXP... arguments) throws FOSException;
+
+    /**
+     * Invokes a call prepared in this session that returns a numeric matrix, keeping its shape
+     * @param call prepared call
+     * @param arguments values bound to the call parameters, in order
+     * @return returned matrix as an array of rows (a single row if the result has no dimensions)
+     * @throws FOSException Thrown if R eval fails or the result is not numeric
+     */
+    public double[][] invokeDoubleMatrix(FosRPreparedCall call, REXP... arguments) throws FOSException;
+
+    /**
+     * Invokes a call prepared in this session that returns a numeric matrix, with a deadline.
+     * The session is abandoned if the deadline expires, as in {@link #eval(String, long)}.
+     *
+     * @param call prepared call
+     * @param timeoutMillis maximum time to wait for the result, in milliseconds (0 for no deadline)
+     * @param arguments values bound to the call parameters, in order
+     * @return returned matrix as an array of rows (a single row if the result has no dimensions)
+     * @throws FOSException Thrown if R eval fails, the result is not numeric or the deadline expires
+     */
+    public double[][] invokeDoubleMatrix(FosRPreparedCall call, long timeoutMillis, REXP... arguments) throws FOSException;
+
+    /**
+     * Invokes a call prepared in this session that returns a list of numeric vectors, with a deadline.
+     * The session is abandoned if the deadline expires, as in {@link #eval(String, long)}.
+     *
+     * @param call prepared call
+     * @param timeoutMillis maximum time to wait for the result, in milliseconds (0 for no deadline)
+     * @param arguments values bound to the call parameters, in order
+     * @return the numeric vectors, in list order
+     * @throws FOSException Thrown if R eval fails, the result is not a list of numeric vectors or the deadline expires
+     */
+    public List<double[]> invokeDoublesList(FosRPreparedCall call, long timeoutMillis, REXP... arguments) throws FOSException;
+
     /**
      * Remove all variable definitions from all R namespaces
      * @throws FOSException if unable to remove
@@ -69,6 +214,15 @@ public interface FosRServeAPI {
      */
     public void shutdown() throws FOSException;
 
+    /**
+     * Assigns a value using the Rserve binary protocol: no R source code is generated nor parsed by R
+     * @param varname variable to be assigned
+     * @param rEnvironment environment where the variable should be created (null for the global environment)
+     * @param value value to be assigned
+     * @throws FOSException if failed to assign variable
+     */
+    void assign(String varname, String rEnvironment, REXP value) throws FOSException;
+
     /**
      * Convenience method to assign a string list inside a given R environment
      * @param varname variable to be assigned
@@ -86,4 +240,13 @@ public interface FosRServeAPI {
      * @throws FOSException if failed to assign variable
      */
     void assignIntList(String varname, String rEnvironment, List<Integer> values) throws FOSException;
+
+    /**
+     * Convenience method to assign a double list inside a given R environment
+     * @param varname variable to be assigned
+     * @param rEnvironment environment where the variable should be created
+     * @param values values to be assigned
+     * @throws FOSException if failed to assign variable
+     */
+    void assignDoubleList(String varname, String rEnvironment, List<Double> values) throws FOSException;
 }
@@ -0,0 +1,125 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.rserve;
+
+import com.feedzai.fos.api.FOSException;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.rosuda.REngine.REXP;
+
+/**
+ * Asynchronous variant of {@link FosRServeAPI}.
+ * <p/>
+ * Requests are queued and executed in order by the session; the returned futures fail with a
+ * {@link FOSException} if the R evaluation fails or the request could not be queued.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public interface FosRServeAsyncAPI {
+
+    /**
+     * Evals a R command and returns the returned value as the expected Java type
+     * @param command R command to execute
+     * @param <T> Expected return type
+     * @return future with the returned value
+     * @see FosRServeAPI#eval(String)
+     */
+    public <T> ListenableFuture<T> eval(String command);
+
+    /**
+     * Evals a R command that returns a numeric vector
+     * @param command R command to execute
+     * @return future with the returned values
+     * @see FosRServeAPI#evalDoubles(String)
+     */
+    public ListenableFuture<double[]> evalDoubles(String command);
+
+    /**
+     * Evals a R command that returns a numeric matrix, keeping its shape
+     * @param command R command to execute
+     * @return future with the returned matrix as an array of rows
+     * @see FosRServeAPI#evalDoubleMatrix(String)
+     */
+    public ListenableFuture<double[][]> evalDoubleMatrix(String command);
+
+    /**
+     * Assigns a value using the Rserve binary protocol
+     * @param varname variable to be assigned
+     * @param rEnvironment environment where the variable should be created (null for the global environment)
+     * @param value value to be assigned
+     * @return future completed once the value is assigned
+     * @see FosRServeAPI#assign(String, String, REXP)
+     */
+    public ListenableFuture<Void> assign(String varname, String rEnvironment, REXP value);
+
+    /**
+     * Prepares a call that can be invoked repeatedly with new arguments
+     * @param template R expression to evaluate, referencing the parameters by name
+     * @param parameters names of the (global) variables bound on each invocation
+     * @return future with the prepared call
+     * @see FosRServeAPI#prepare(String, String...)
+     */
+    public ListenableFuture<FosRPreparedCall> prepare(String template, String... parameters);
+
+    /**
+     * Invokes a call prepared in this session
+     * @param call prepared call
+     * @param arguments values bound to the call parameters, in order
+     * @param <T> Expected return type
+     * @return future with the returned value
+     * @see FosRServeAPI#invoke(FosRPreparedCall, REXP...)
+     */
+    public <T> ListenableFuture<T> invoke(FosRPreparedCall call, REXP... arguments);
+
+    /**
+     * Invokes a call prepared in this session that returns a numeric vector
+     * @param call prepared call
+     * @param arguments values bound to the call parameters, in order
+     * @return future with the returned values
+     * @see FosRServeAPI#invokeDoubles(FosRPreparedCall, double[], REXP...)
+     */
+    public ListenableFuture<double[]> invokeDoubles(FosRPreparedCall call, REXP... arguments);
+
+    /**
+     * Invokes a call prepared in this session that returns a numeric matrix, keeping its shape
+     * @param call prepared call
+     * @param arguments values bound to the call parameters, in order
+     * @return future with the returned matrix as an array of rows
+     * @see FosRServeAPI#invokeDoubleMatrix(FosRPreparedCall, REXP...)
+     */
+    public ListenableFuture<double[][]> invokeDoubleMatrix(FosRPreparedCall call, REXP... arguments);
+
+    /**
+     * Gets the number of requests waiting to be executed
+     * @return the number of queued requests
+     */
+    public int getQueueDepth();
+
+    /**
+     * Stops accepting requests and closes the connection once the queued requests are executed. Requests that are
+     * still pending after a bounded wait are cancelled.
+     * @throws FOSException if unable to disconnect
+     */
+    public void close() throws FOSException;
+}
@@ -25,9 +25,18 @@ package com.feedzai.fos.impl.r.rserve;
 
 import com.feedzai.fos.api.FOSException;
 import com.feedzai.fos.impl.r.RScorer;
+import com.feedzai.fos.impl.r.metrics.SessionMetrics;
 import com.google.common.io.Files;
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.io.Charsets;
 import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPInteger;
+import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.REXPString;
+import org.rosuda.REngine.RList;
 import org.rosuda.REngine.Rserve.RConnection;
 import org.rosuda.REngine.Rserve.RserveException;
 import org.slf4j.Logger;
@@ -35,14 +44,26 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This library was tested in Linux and Windows with R-2.15.1.
  * In either systems, R must be globally available in the include path.
  * (in Widows you need to add the R bin directory to the "Path" system variable)
  *
- * A previously running RServe process must be running before using this package
+ * A previously running RServe process must be running before using this package, unless the RServe processes are
+ * managed by a {@link RserveSupervisor}.
  *
  * To install Rserve open a command line, start R and type {@code install.packages(\"Rserve\")}.
  *
@@ -55,23 +76,235 @@ import java.util.List;
  * @since 1.0.2
  */
 public class FosRserve implements FosRServeAPI {
-    private static Process rProcess;
+    /**
+     * Default RServe host
+     */
+    public static final String DEFAULT_HOST = "localhost";
+
+    /**
+     * Default RServe port
+     */
+    public static final int DEFAULT_PORT = 6311;
+
+    /**
+     * Wraps a command so that R errors are returned as a try-error instead of aborting the evaluation.
+     * The command goes in its own lines so that trailing comments do not swallow the closing brace.
+     */
+    private static final String TRY_BLOCK = "try({\n%s\n}, silent=TRUE)";
+
+    /**
+     * Global variable used to move binary assigned values into an environment
+     */
+    private static final String ASSIGN_VARIABLE = ".fos.assign";
+
+    /**
+     * Prefix of the R functions that implement prepared calls
+     */
+    private static final String PREPARED_CALL_PREFIX = ".fos.call.";
+
+    /**
+     * Maximum number of calls kept prepared in a session, the least recently used ones are removed from R
+     */
+    static final int MAX_PREPARED_CALLS = 256;
+
+    /**
+     * Attribute where prepared calls report their R evaluation time, in seconds
+     */
+    static final String ELAPSED_ATTRIBUTE = "fos.elapsed";
+
+    /**
+     * Last session id
+     */
+    private static final AtomicInteger SESSION_IDS = new AtomicInteger();
+
+    /**
+     * Gets the PID of the R process of a session. RServe only forks a process per session on unix, elsewhere every
+     * session is served by the daemon itself, whose PID is never captured.
+     */
+    private static final String PID_COMMAND = "if (.Platform$OS.type == \"unix\") Sys.getpid() else -1L";
+
+    /**
+     * Kills the R process of a session through a control session. The control session is forked as well, so if it
+     * runs in the same process the server does not fork and the PID is the daemon's, which must survive.
+     */
+    private static final String KILL_COMMAND = "if (Sys.getpid() != %1$d) tools::pskill(%1$d, tools::SIGKILL)";
+
+    /**
+     * Abandons sessions whose evaluation deadline expired
+     */
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("fos-r-watchdog-%d").build());
+
+    /**
+     * Kills the R processes of abandoned sessions, so that the watchdog never waits for a control session
+     */
+    private static final ExecutorService REAPER = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("fos-r-reaper-%d").build());
+
     private RConnection connection;
+
+    /**
+     * Direct QAP1 connection, used instead of {@link #connection} when the direct protocol is enabled
+     */
+    private Qap1Connection direct;
+
     Logger logger = LoggerFactory.getLogger(FosRserve.class);
 
     /**
-     * Create a new R communication handle spawning a new RServe process if necessary
+     * Calls prepared in this session, by template, least recently used first
+     */
+    private final Map<String, FosRPreparedCall> prepared = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Number of calls prepared in this session, used to name the functions that implement them
+     */
+    private int preparedCount = 0;
+
+    /**
+     * RServe host
+     */
+    private final String host;
+
+    /**
+     * RServe port
+     */
+    private final int port;
+
+    /**
+     * Whether the direct QAP1 connection is used
+     */
+    private final boolean directProtocol;
+
+    /**
+     * PID of the R process that serves this session (-1 if unknown)
+     */
+    private final int pid;
+
+    /**
+     * Managed RServe process backing this connection (null if externally managed)
+     */
+    private final RserveProcess process;
+
+    /**
+     * Generation of the managed process when this connection was established
+     */
+    private final int generation;
+
+    /**
+     * Whether this session was abandoned after an evaluation deadline expired
+     */
+    private volatile boolean abandoned = false;
+
+    /**
+     * Call counters and latencies of this session
+     */
+    private final SessionMetrics metrics = new SessionMetrics(SESSION_IDS.incrementAndGet());
+
+    /**
+     * Create a new R communication handle to a previously running RServe daemon on the default port
      *
      * @throws FOSException
      */
     public FosRserve() throws FOSException {
+        this(DEFAULT_HOST, DEFAULT_PORT);
+    }
+
+    /**
+     * Create a new R communication handle to a previously running RServe daemon
+     *
+     * @param host RServe host
+     * @param port RServe port
+     * @throws FOSException if unable to connect
+     */
+    public FosRserve(String host, int port) throws FOSException {
+        this(host, port, false);
+    }
+
+    /**
+     * Create a new R communication handle to a previously running RServe daemon
+     *
+     * @param host RServe host
+     * @param port RServe port
+     * @param directProtocol whether to speak QAP1 directly with reusable buffers instead of using the REngine client
+     * @throws FOSException if unable to connect
+     */
+    public FosRserve(String host, int port, boolean directProtocol) throws FOSException {
+        this.host = host;
+        this.port = port;
+        this.directProtocol = directProtocol;
+        this.process = null;
+        this.generation = 0;
+        connect();
+        this.pid = capturePid();
+    }
+
+    /**
+     * Create a new R communication handle to a managed RServe process
+     *
+     * @param process managed RServe process
+     * @throws FOSException if unable to connect
+     */
+    FosRserve(RserveProcess process) throws FOSException {
+        this(process, false);
+    }
+
+    /**
+     * Create a new R communication handle to a managed RServe process
+     *
+     * @param process managed RServe process
+     * @param directProtocol whether to speak QAP1 directly with reusable buffers instead of using the REngine client
+     * @throws FOSException if unable to connect
+     */
+    FosRserve(RserveProcess process, boolean directProtocol) throws FOSException {
+        this.host = process.getHost();
+        this.port = process.getPort();
+        this.directProtocol = directProtocol;
+        this.process = process;
+        this.generation = process.getGeneration();
+        connect();
+        this.pid = capturePid();
+    }
+
+    /**
+     * Connects to the RServe daemon
+     * @throws FOSException if unable to connect
+     */
+    private void connect() throws FOSException {
         try {
-            this.connection = new RConnection();
-        } catch (RserveException e) {
+            if (directProtocol) {
+                this.direct = new Qap1Connection(host, port);
+            } else {
+                this.connection = new RConnection(host, port);
+            }
+        } catch (RserveException | IOException e) {
             throw new FOSException(e);
         }
     }
 
+    /**
+     * Gets the PID of the R process forked by RServe for this session, so that it can be killed if the session is
+     * abandoned. Sessions whose PID is unknown, including all sessions of a non forking RServe, are only disconnected.
+     *
+     * @return the PID, or -1 if unknown
+     */
+    private int capturePid() {
+        try {
+            int[] pid = evalInts(PID_COMMAND);
+            return pid.length == 1 && pid[0] > 0 ? pid[0] : -1;
+        } catch (FOSException e) {
+            logger.debug("Unable to get the PID of the R session", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Gets the PID of the R process that serves this session
+     * @return the PID, or -1 if unknown
+     */
+    int getPid() {
+        return pid;
+    }
+
 
     @Override
     public void load(String script) throws FOSException {
@@ -100,49 +333,562 @@ public class FosRserve implements FosRServeAPI {
 
     @Override
     public <T> T eval(String command) throws FOSException {
+        return eval(command, 0);
+    }
+
+    @Override
+    public <T> T eval(String command, long timeoutMillis) throws FOSException {
+        try {
+            return decode(evalChecked(command, timeoutMillis));
+        } catch (REXPMismatchException e) {
+            throw new FOSException("Error executing R script.", e);
+        }
+    }
+
+    @Override
+    public double[] evalDoubles(String command) throws FOSException {
+        return evalDoubles(command, null);
+    }
+
+    @Override
+    public double[] evalDoubles(String command, double[] buffer) throws FOSException {
+        return toDoubles(evalChecked(command, 0), buffer);
+    }
+
+    @Override
+    public double[][] evalDoubleMatrix(String command) throws FOSException {
+        return toDoubleMatrix(evalChecked(command, 0));
+    }
+
+    @Override
+    public int[] evalInts(String command) throws FOSException {
+        return evalInts(command, null);
+    }
+
+    @Override
+    public int[] evalInts(String command, int[] buffer) throws FOSException {
+        return toInts(evalChecked(command, 0), buffer);
+    }
+
+    @Override
+    public FosRPreparedCall prepare(String template, String... parameters) throws FOSException {
+        FosRPreparedCall call = prepared.get(template);
+        if (call != null && Arrays.equals(call.getParameters(), parameters)) {
+            return call;
+        }
+
+        String function = PREPARED_CALL_PREFIX + preparedCount++;
+        // parsed once: the function body is kept by R and every invocation only evaluates a call without arguments
+        eval(String.format("%1$s <- function() {\n" +
+                           "   t <- as.double(Sys.time())\n" +
+                           "   r <- try(%2$s, silent=TRUE)\n" +
+                           "   if (!is.null(r)) attr(r, '%3$s') <- as.double(Sys.time()) - t\n" +
+                           "   r\n" +
+                           "}",
+                           function, template, ELAPSED_ATTRIBUTE));
+
+        FosRPreparedCall replaced = call;
+        call = new FosRPreparedCall(this, function, template, parameters);
+        prepared.put(template, call);
+        if (replaced != null) {
+            discard(replaced);
+        }
+
+        Iterator<FosRPreparedCall> eldest = prepared.values().iterator();
+        while (prepared.size() > MAX_PREPARED_CALLS) {
+            FosRPreparedCall evicted = eldest.next();
+            eldest.remove();
+            discard(evicted);
+        }
+        return call;
+    }
+
+    /**
+     * Removes the R function of a call that is no longer prepared
+     * @param call prepared call
+     * @throws FOSException if the function could not be removed
+     */
+    private void discard(FosRPreparedCall call) throws FOSException {
+        eval("rm(" + call.getFunction() + ")");
+    }
+
+    @Override
+    public <T> T invoke(FosRPreparedCall call, REXP... arguments) throws FOSException {
+        try {
+            REXP result = invokeChecked(call, 0, arguments);
+            long start = System.nanoTime();
+            T value = decode(result);
+            metrics.recordDecode(System.nanoTime() - start);
+            return value;
+        } catch (REXPMismatchException e) {
+            throw new FOSException("Error executing R script.", e);
+        }
+    }
+
+    @Override
+    public double[] invokeDoubles(FosRPreparedCall call, double[] buffer, REXP... arguments) throws FOSException {
+        return invokeDoubles(call, buffer, 0, arguments);
+    }
+
+    @Override
+    public double[] invokeDoubles(FosRPreparedCall call, double[] buffer, long timeoutMillis, REXP... arguments) throws FOSException {
+        if (direct != null) {
+            return invokeDirect(call, buffer, timeoutMillis, arguments);
+        }
+        REXP result = invokeChecked(call, timeoutMillis, arguments);
+        long start = System.nanoTime();
+        double[] values = toDoubles(result, buffer);
+        metrics.recordDecode(System.nanoTime() - start);
+        return values;
+    }
+
+    @Override
+    public double[][] invokeDoubleMatrix(FosRPreparedCall call, REXP... arguments) throws FOSException {
+        return invokeDoubleMatrix(call, 0, arguments);
+    }
+
+    @Override
+    public double[][] invokeDoubleMatrix(FosRPreparedCall call, long timeoutMillis, REXP... arguments) throws FOSException {
+        REXP result = invokeChecked(call, timeoutMillis, arguments);
+        long start = System.nanoTime();
+        double[][] values = toDoubleMatrix(result);
+        metrics.recordDecode(System.nanoTime() - start);
+        return values;
+    }
+
+    @Override
+    public List<double[]> invokeDoublesList(FosRPreparedCall call, long timeoutMillis, REXP... arguments) throws FOSException {
+        REXP result = invokeChecked(call, timeoutMillis, arguments);
+        long start = System.nanoTime();
+        List<double[]> values = toDoublesList(result);
+        metrics.recordDecode(System.nanoTime() - start);
+        return values;
+    }
+
+    /**
+     * Evaluates a command and checks the result for R errors
+     * @param command R command to execute
+     * @param timeoutMillis evaluation deadline in milliseconds (0 for no deadline)
+     * @return the result of the evaluation
+     * @throws FOSException if the evaluation failed
+     */
+    private REXP evalChecked(String command, long timeoutMillis) throws FOSException {
+        ScheduledFuture<?> deadline = schedule(timeoutMillis);
         try {
             if(logger.isTraceEnabled()) {
                 logger.trace(command);
             }
 
-            connection.assign("trycodeblock", command);
+            // the command is inlined in the try block so that it is sent and parsed once, in a single round trip
+            return check(parseAndEval(String.format(TRY_BLOCK, command)));
+        } catch (Exception e) {
+            throw failure(e, timeoutMillis);
+        } finally {
+            cancel(deadline);
+        }
+    }
+
+    /**
+     * Invokes a prepared call and checks the result for R errors
+     * @param call prepared call
+     * @param timeoutMillis evaluation deadline in milliseconds (0 for no deadline)
+     * @param arguments values bound to the call parameters, in order
+     * @return the result of the evaluation
+     * @throws FOSException if the evaluation failed
+     */
+    private REXP invokeChecked(FosRPreparedCall call, long timeoutMillis, REXP... arguments) throws FOSException {
+        String[] parameters = checkArguments(call, arguments);
 
-            REXP result = connection.parseAndEval("try(eval(parse(text=trycodeblock)),silent=TRUE)");
-            if (result != null && result.inherits("try-error")) {
-                throw new FOSException(result.toDebugString());
+        ScheduledFuture<?> deadline = schedule(timeoutMillis);
+        try {
+            if(logger.isTraceEnabled()) {
+                logger.trace(call.getTemplate());
             }
-            if (result == null || result.isNull()) {
-                return null;
-            } else if( result.isVector() && result.isNumeric()) {
-              return (T) result.asDoubles();
-            } else if (result.isInteger()) {
-                return (T) new Integer(result.asInteger());
-            } else if (result.isNumeric()) {
-                return (T) new Double(result.asDouble());
-            } else if (result.isString()) {
-                return (T) result.asString();
+
+            long start = System.nanoTime();
+            REXP result;
+            if (direct != null) {
+                direct.invoke(parameters, arguments, call.getCall());
+                result = direct.decode();
+            } else {
+                // the REngine client waits for each assignment: 1 + N round trips
+                for (int i = 0; i != parameters.length; ++i) {
+                    connection.assign(parameters[i], arguments[i]);
+                }
+                result = connection.parseAndEval(call.getCall());
             }
-            return null;
+            metrics.recordCall(System.nanoTime() - start, elapsed(result));
+            return check(result);
         } catch (Exception e) {
-            throw new FOSException("Error executing R script.", e);
+            metrics.recordError();
+            throw failure(e, timeoutMillis);
+        } finally {
+            cancel(deadline);
+        }
+    }
+
+    /**
+     * Invokes a prepared call that returns a numeric vector over the direct connection: the arguments are sent
+     * with the call in a single write and the result is decoded straight into the buffer
+     * @param call prepared call
+     * @param buffer optional buffer for the result
+     * @param timeoutMillis evaluation deadline in milliseconds (0 for no deadline)
+     * @param arguments values bound to the call parameters, in order
+     * @return returned values (the buffer if it was used)
+     * @throws FOSException if the evaluation failed or the result is not numeric
+     */
+    private double[] invokeDirect(FosRPreparedCall call, double[] buffer, long timeoutMillis, REXP... arguments) throws FOSException {
+        String[] parameters = checkArguments(call, arguments);
+
+        ScheduledFuture<?> deadline = schedule(timeoutMillis);
+        try {
+            if(logger.isTraceEnabled()) {
+                logger.trace(call.getTemplate());
+            }
+
+            long start = System.nanoTime();
+            direct.invoke(parameters, arguments, call.getCall());
+            long received = System.nanoTime();
+            double elapsed = direct.decodeAttribute(ELAPSED_ATTRIBUTE);
+            metrics.recordCall(received - start, Double.isNaN(elapsed) ? -1 : (long) (elapsed * 1e9));
+
+            double[] values = direct.decodeDoubles(buffer);
+            // errors and non numeric results take the generic path
+            if (values == null) {
+                values = toDoubles(check(direct.decode()), buffer);
+            }
+            metrics.recordDecode(System.nanoTime() - received);
+            return values;
+        } catch (Exception e) {
+            metrics.recordError();
+            throw failure(e, timeoutMillis);
+        } finally {
+            cancel(deadline);
+        }
+    }
+
+    /**
+     * Gets the R evaluation time reported by a prepared call
+     * @param result result of the call
+     * @return the evaluation time in nanoseconds, or -1 if not reported
+     */
+    private static long elapsed(REXP result) {
+        REXP elapsed = result != null ? result.getAttribute(ELAPSED_ATTRIBUTE) : null;
+        if (elapsed == null || !elapsed.isNumeric()) {
+            return -1;
+        }
+        try {
+            return (long) (elapsed.asDouble() * 1e9);
+        } catch (REXPMismatchException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Gets the call counters and latencies of this session
+     * @return the session metrics
+     */
+    public SessionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Checks that a prepared call belongs to this session and gets the right number of arguments
+     * @param call prepared call
+     * @param arguments values bound to the call parameters
+     * @return the call parameters
+     * @throws FOSException if the call can't be invoked with the arguments
+     */
+    private String[] checkArguments(FosRPreparedCall call, REXP... arguments) throws FOSException {
+        if (call.getOwner() != this) {
+            throw new FOSException("Prepared call '" + call.getTemplate() + "' belongs to another R session.");
+        }
+        String[] parameters = call.getParameters();
+        if (arguments.length != parameters.length) {
+            throw new FOSException("Expected " + parameters.length + " arguments but got " + arguments.length);
+        }
+        return parameters;
+    }
+
+    /**
+     * Evaluates a command on the active connection, without checking the result
+     * @param command R command to execute
+     * @return the result of the evaluation
+     * @throws Exception if the evaluation failed
+     */
+    private REXP parseAndEval(String command) throws Exception {
+        return direct != null ? direct.eval(command) : connection.parseAndEval(command);
+    }
+
+    /**
+     * Closes the active connection
+     */
+    private void disconnect() {
+        if (direct != null) {
+            direct.close();
+        } else {
+            connection.close();
+        }
+    }
+
+    /**
+     * Schedules the abandonment of this session when an evaluation deadline expires.
+     * <p/>
+     * Closing the connection unblocks the thread waiting for the result. RServe would only discard the R process
+     * backing the connection once it finishes the evaluation, so it is killed right away through a control session.
+     *
+     * @param timeoutMillis evaluation deadline in milliseconds (0 for no deadline)
+     * @return the scheduled abandonment, or null if there is no deadline
+     */
+    private ScheduledFuture<?> schedule(long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            return null;
+        }
+
+        return WATCHDOG.schedule(new Runnable() {
+            @Override
+            public void run() {
+                abandoned = true;
+                logger.warn("R evaluation deadline expired, abandoning session");
+                disconnect();
+                kill();
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Kills the R process forked for this session in the background, if its PID is known
+     */
+    private void kill() {
+        if (pid <= 0) {
+            return;
+        }
+
+        REAPER.execute(new Runnable() {
+            @Override
+            public void run() {
+                String command = String.format(KILL_COMMAND, pid);
+                try {
+                    if (directProtocol) {
+                        Qap1Connection control = new Qap1Connection(host, port);
+                        try {
+                            control.eval(command);
+                        } finally {
+                            control.close();
+                        }
+                    } else {
+                        RConnection control = new RConnection(host, port);
+                        try {
+                            control.voidEval(command);
+                        } finally {
+                            control.close();
+                        }
+                    }
+                    logger.warn("Requested the kill of R process {} of abandoned session", pid);
+                } catch (Exception e) {
+                    logger.warn("Unable to kill R process " + pid + " of abandoned session", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Cancels a scheduled abandonment
+     * @param deadline scheduled abandonment (may be null)
+     */
+    private static void cancel(ScheduledFuture<?> deadline) {
+        if (deadline != null) {
+            deadline.cancel(false);
+        }
+    }
+
+    /**
+     * Wraps an evaluation failure, reporting expired deadlines and lost connections as a lost session
+     * @param cause the failure
+     * @param timeoutMillis evaluation deadline in milliseconds
+     * @return the exception to throw
+     */
+    private FOSException failure(Exception cause, long timeoutMillis) {
+        if (abandoned) {
+            return new FosRSessionLostException("R evaluation timed out after " + timeoutMillis + " ms.", cause);
+        }
+        if (!isConnected()) {
+            return new FosRSessionLostException("Lost the connection to the R session.", cause);
+        }
+        return new FOSException("Error executing R script.", cause);
+    }
+
+    /**
+     * Checks if an evaluation result is a R error
+     * @param result result of the evaluation
+     * @return the result
+     * @throws FOSException if the result is a try-error
+     */
+    private static REXP check(REXP result) throws FOSException {
+        if (result != null && result.inherits("try-error")) {
+            throw new FOSException(result.toDebugString());
+        }
+        return result;
+    }
+
+    /**
+     * Converts the result of an evaluation to the expected Java type, inspecting the result type
+     * @param result result of the evaluation
+     * @param <T> Expected return type
+     * @return the converted value
+     * @throws REXPMismatchException if the result could not be converted
+     */
+    private static <T> T decode(REXP result) throws REXPMismatchException {
+        if (result == null || result.isNull()) {
+            return null;
+        } else if( result.isVector() && result.isNumeric()) {
+          return (T) result.asDoubles();
+        } else if (result.isInteger()) {
+            return (T) Integer.valueOf(result.asInteger());
+        } else if (result.isNumeric()) {
+            return (T) Double.valueOf(result.asDouble());
+        } else if (result.isString()) {
+            return (T) result.asString();
+        }
+        return null;
+    }
+
+    /**
+     * Decodes a numeric result into a double array
+     * @param result result of the evaluation
+     * @param buffer optional buffer, used if it has the same length as the result
+     * @return the decoded values
+     * @throws FOSException if the result is not numeric
+     */
+    private static double[] toDoubles(REXP result, double[] buffer) throws FOSException {
+        if (result == null || !result.isNumeric()) {
+            throw new FOSException("Expected a numeric R result.");
+        }
+        try {
+            double[] values = result.asDoubles();
+            if (buffer != null && buffer.length == values.length) {
+                System.arraycopy(values, 0, buffer, 0, values.length);
+                return buffer;
+            }
+            return values;
+        } catch (REXPMismatchException e) {
+            throw new FOSException("Expected a numeric R result.", e);
+        }
+    }
+
+    /**
+     * Decodes a numeric matrix result (column major in R) into an array of rows.
+     * Results without dimensions are decoded as a single row.
+     *
+     * @param result result of the evaluation
+     * @return the decoded rows
+     * @throws FOSException if the result is not numeric
+     */
+    private static double[][] toDoubleMatrix(REXP result) throws FOSException {
+        double[] values = toDoubles(result, null);
+        int[] dim = result.dim();
+        if (dim == null || dim.length != 2) {
+            return new double[][] { values };
+        }
+
+        int rows = dim[0];
+        int columns = dim[1];
+        double[][] matrix = new double[rows][columns];
+        for (int row = 0; row != rows; ++row) {
+            for (int column = 0; column != columns; ++column) {
+                matrix[row][column] = values[column * rows + row];
+            }
+        }
+        return matrix;
+    }
+
+    /**
+     * Decodes a list of numeric vectors
+     * @param result result of the evaluation
+     * @return the decoded vectors, in list order
+     * @throws FOSException if the result is not a list of numeric vectors
+     */
+    private static List<double[]> toDoublesList(REXP result) throws FOSException {
+        if (result == null || !result.isList()) {
+            throw new FOSException("Expected a R list result.");
+        }
+        try {
+            RList list = result.asList();
+            List<double[]> values = new ArrayList<>(list.size());
+            for (int i = 0; i != list.size(); ++i) {
+                values.add(toDoubles(list.at(i), null));
+            }
+            return values;
+        } catch (REXPMismatchException e) {
+            throw new FOSException("Expected a R list result.", e);
+        }
+    }
+
+    /**
+     * Decodes an integer result into an int array
+     * @param result result of the evaluation
+     * @param buffer optional buffer, used if it has the same length as the result
+     * @return the decoded values
+     * @throws FOSException if the result is not an integer vector
+     */
+    private static int[] toInts(REXP result, int[] buffer) throws FOSException {
+        if (result == null || !(result.isInteger() || result.isNumeric())) {
+            throw new FOSException("Expected an integer R result.");
+        }
+        try {
+            int[] values = result.asIntegers();
+            if (buffer != null && buffer.length == values.length) {
+                System.arraycopy(values, 0, buffer, 0, values.length);
+                return buffer;
+            }
+            return values;
+        } catch (REXPMismatchException e) {
+            throw new FOSException("Expected an integer R result.", e);
         }
     }
 
     @Override
     public void reset() throws FOSException {
         eval("rm(list = ls(all = TRUE))");
+        prepared.clear();
     }
 
     @Override
     public void close() throws FOSException {
-        if (connection != null && connection.isConnected()) {
-            connection.close();
+        if (direct != null || (connection != null && connection.isConnected())) {
+            disconnect();
+        }
+    }
+
+    /**
+     * Checks if this handle is still connected to the backing RServe process.
+     * <p/>
+     * Connections to a managed process that crashed or was restarted are no longer considered connected.
+     *
+     * @return true if connected
+     */
+    public boolean isConnected() {
+        if (abandoned) {
+            return false;
+        }
+        if (process != null && !process.isCurrent(generation)) {
+            return false;
+        }
+        if (direct != null) {
+            return direct.isConnected();
         }
+        return connection != null && connection.isConnected();
     }
 
     @Override
     public void shutdown() throws FOSException {
-        if (connection != null && connection.isConnected()) {
+        if (direct != null && direct.isConnected()) {
+            try {
+                direct.shutdown();
+            } catch (IOException e) {
+                throw new FOSException("Error shutting down R server.", e);
+            }
+        } else if (connection != null && connection.isConnected()) {
             try {
                 connection.shutdown();
             } catch (RserveException e) {
@@ -152,39 +898,37 @@ public class FosRserve implements FosRServeAPI {
     }
 
     @Override
-    public void assignStringList(String varname, String rEnvironment, List<String> values) throws FOSException {
-        StringBuilder sb = new StringBuilder();
-
-        sb.append(rEnvironment)
-          .append('$')
-          .append(RScorer.rVariableName(varname))
-          .append(" <- c(\n");
-
-        int i = 0;
-        while(i < values.size() - 1) {
-            sb.append("   '").append(values.get(i++)).append("',\n");
+    public void assign(String varname, String rEnvironment, REXP value) throws FOSException {
+        try {
+            String target = rEnvironment == null ? varname : ASSIGN_VARIABLE;
+            if (direct != null) {
+                direct.assign(target, value);
+            } else {
+                connection.assign(target, value);
+            }
+            if (rEnvironment != null) {
+                // Rserve only assigns to the global environment, move the value into the target environment
+                eval(String.format("%1$s$%2$s <- %3$s; rm(%3$s)", rEnvironment, varname, ASSIGN_VARIABLE));
+            }
+        } catch (FOSException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new FOSException("Error assigning R variable '" + varname + "'.", e);
         }
-        sb.append("   '").append(values.get(i)).append("')");
-
+    }
 
-        eval(sb.toString());
+    @Override
+    public void assignStringList(String varname, String rEnvironment, List<String> values) throws FOSException {
+        assign(RScorer.rVariableName(varname), rEnvironment, new REXPString(values.toArray(new String[values.size()])));
     }
 
     @Override
     public void assignIntList(String varname, String rEnvironment, List<Integer> values) throws FOSException {
-        StringBuilder sb = new StringBuilder();
-
-        sb.append(rEnvironment)
-                .append('$')
-                .append(varname)
-                .append(" <- c(\n");
-
-        int i = 0;
-        while(i < values.size() - 1) {
-            sb.append("   ").append(values.get(i++)).append(",\n");
-        }
-        sb.append("   ").append(values.get(i)).append(")");
+        assign(varname, rEnvironment, new REXPInteger(Ints.toArray(values)));
+    }
 
-        eval(sb.toString());
+    @Override
+    public void assignDoubleList(String varname, String rEnvironment, List<Double> values) throws FOSException {
+        assign(varname, rEnvironment, new REXPDouble(Doubles.toArray(values)));
     }
 }
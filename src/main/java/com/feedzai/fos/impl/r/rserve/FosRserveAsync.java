@@ -0,0 +1,237 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.rserve;
+
+import com.feedzai.fos.api.FOSException;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.rosuda.REngine.REXP;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Asynchronous R session.
+ * <p/>
+ * Wraps a {@link FosRserve} session with a dedicated I/O thread and a bounded request queue, so callers are not
+ * blocked for the duration of the R round trip. Requests submitted when the queue is full fail immediately.
+ * <p/>
+ * Closing waits a bounded time for the queued requests; the requests still pending are then cancelled and the
+ * connection is closed, which fails the request in progress.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class FosRserveAsync implements FosRServeAsyncAPI {
+    /**
+     * Default maximum time to wait for the queued requests when closing
+     */
+    public static final long DEFAULT_CLOSE_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Last session thread id, shared by every asynchronous session so that thread names are unique
+     */
+    private static final AtomicInteger THREAD_IDS = new AtomicInteger();
+
+    /**
+     * Synchronous session used by the I/O thread
+     */
+    private final FosRserve rserve;
+
+    /**
+     * Pending requests
+     */
+    private final BlockingQueue<Runnable> queue;
+
+    /**
+     * Single threaded executor that owns the session
+     */
+    private final ListeningExecutorService executor;
+
+    /**
+     * Maximum time to wait for the queued requests when closing
+     */
+    private final long closeTimeoutMillis;
+
+    /**
+     * Creates an asynchronous session
+     * @param rserve session to wrap; it must not be used by other threads afterwards
+     * @param queueCapacity maximum number of pending requests
+     */
+    public FosRserveAsync(FosRserve rserve, int queueCapacity) {
+        this(rserve, queueCapacity, DEFAULT_CLOSE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Creates an asynchronous session
+     * @param rserve session to wrap; it must not be used by other threads afterwards
+     * @param queueCapacity maximum number of pending requests
+     * @param closeTimeoutMillis maximum time to wait for the queued requests when closing
+     */
+    public FosRserveAsync(FosRserve rserve, int queueCapacity, long closeTimeoutMillis) {
+        checkNotNull(rserve, "R session cannot be null");
+        checkArgument(queueCapacity > 0, "Queue capacity must be positive");
+        checkArgument(closeTimeoutMillis >= 0, "Close timeout cannot be negative");
+
+        this.rserve = rserve;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.closeTimeoutMillis = closeTimeoutMillis;
+        this.executor = MoreExecutors.listeningDecorator(new ThreadPoolExecutor(
+                1, 1, 0, TimeUnit.MILLISECONDS, queue,
+                new ThreadFactoryBuilder().setDaemon(true)
+                        .setNameFormat("fos-r-session-" + THREAD_IDS.incrementAndGet()).build()));
+    }
+
+    @Override
+    public <T> ListenableFuture<T> eval(final String command) {
+        return submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return rserve.eval(command);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<double[]> evalDoubles(final String command) {
+        return submit(new Callable<double[]>() {
+            @Override
+            public double[] call() throws Exception {
+                return rserve.evalDoubles(command);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<double[][]> evalDoubleMatrix(final String command) {
+        return submit(new Callable<double[][]>() {
+            @Override
+            public double[][] call() throws Exception {
+                return rserve.evalDoubleMatrix(command);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Void> assign(final String varname, final String rEnvironment, final REXP value) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                rserve.assign(varname, rEnvironment, value);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<FosRPreparedCall> prepare(final String template, final String... parameters) {
+        return submit(new Callable<FosRPreparedCall>() {
+            @Override
+            public FosRPreparedCall call() throws Exception {
+                return rserve.prepare(template, parameters);
+            }
+        });
+    }
+
+    @Override
+    public <T> ListenableFuture<T> invoke(final FosRPreparedCall call, final REXP... arguments) {
+        return submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return rserve.invoke(call, arguments);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<double[]> invokeDoubles(final FosRPreparedCall call, final REXP... arguments) {
+        return submit(new Callable<double[]>() {
+            @Override
+            public double[] call() throws Exception {
+                return rserve.invokeDoubles(call, null, arguments);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<double[][]> invokeDoubleMatrix(final FosRPreparedCall call, final REXP... arguments) {
+        return submit(new Callable<double[][]>() {
+            @Override
+            public double[][] call() throws Exception {
+                return rserve.invokeDoubleMatrix(call, arguments);
+            }
+        });
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    @Override
+    public void close() throws FOSException {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(closeTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (!executor.isTerminated()) {
+            // the requests that never ran would otherwise never complete
+            for (Runnable pending : executor.shutdownNow()) {
+                if (pending instanceof Future) {
+                    ((Future<?>) pending).cancel(false);
+                }
+            }
+        }
+        rserve.close();
+    }
+
+    /**
+     * Queues a request
+     * @param request request to execute in the session thread
+     * @param <T> type of the result
+     * @return future with the result of the request
+     */
+    private <T> ListenableFuture<T> submit(Callable<T> request) {
+        try {
+            return executor.submit(request);
+        } catch (RejectedExecutionException e) {
+            return Futures.immediateFailedFuture(new FOSException("R session request queue is full or closed.", e));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.rserve;
+
+import com.feedzai.fos.api.FOSException;
+import com.google.common.base.Objects;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Connects to an externally managed RServe daemon.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class FosRserveEndpoint implements FosRserveConnector {
+    /**
+     * RServe host
+     */
+    private final String host;
+
+    /**
+     * RServe port
+     */
+    private final int port;
+
+    /**
+     * Whether sessions speak the QAP1 protocol directly
+     */
+    private final boolean directProtocol;
+
+    /**
+     * Creates a connector for a RServe daemon
+     * @param host RServe host
+     * @param port RServe port
+     */
+    public FosRserveEndpoint(String host, int port) {
+        this(host, port, false);
+    }
+
+    /**
+     * Creates a connector for a RServe daemon
+     * @param host RServe host
+     * @param port RServe port
+     * @param directProtocol whether sessions speak the QAP1 protocol directly, see {@link FosRserve}
+     */
+    public FosRserveEndpoint(String host, int port, boolean directProtocol) {
+        checkNotNull(host, "Host cannot be null");
+        this.host = host;
+        this.port = port;
+        this.directProtocol = directProtocol;
+    }
+
+    @Override
+    public FosRserve connect() throws FOSException {
+        return new FosRserve(host, port, directProtocol);
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("host", host)
+                .add("port", port)
+                .add("directProtocol", directProtocol)
+                .toString();
+    }
+}
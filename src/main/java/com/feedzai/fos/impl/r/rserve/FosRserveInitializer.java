@@ -0,0 +1,45 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.rserve;
+
+import com.feedzai.fos.api.FOSException;
+
+/**
+ * Prepares the state of a R session (libraries, model environments, functions).
+ * <p/>
+ * Initializers are registered in a {@link FosRservePool} and replayed on every pooled session, so they must be
+ * idempotent.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public interface FosRserveInitializer {
+
+    /**
+     * Applies this initializer to the given session
+     * @param rserve session to initialize
+     * @throws FOSException if the session could not be initialized
+     */
+    void initialize(FosRserve rserve) throws FOSException;
+}
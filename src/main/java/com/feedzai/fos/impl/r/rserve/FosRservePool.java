@@ -0,0 +1,674 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.rserve;
+
+import com.feedzai.fos.api.FOSException;
+import com.feedzai.fos.impl.r.metrics.MetricsReporter;
+import com.feedzai.fos.impl.r.metrics.PoolMetricsMBean;
+import com.feedzai.fos.impl.r.metrics.RMetrics;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.pool.BasePoolableObjectFactory;
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Pool of {@link FosRserve} sessions.
+ * <p/>
+ * A {@link org.rosuda.REngine.Rserve.RConnection} is not thread safe, so each scoring thread must have a session
+ * of its own. Every Rserve connection is backed by a distinct R process, therefore all the state needed for scoring
+ * (libraries, model environments, scoring functions) is registered as a {@link FosRserveInitializer} and replayed
+ * on each session when it is created or borrowed without having seen the latest version of every initializer.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class FosRservePool {
+    /**
+     * Pool logger
+     */
+    private static final Logger logger = LoggerFactory.getLogger(FosRservePool.class);
+
+    /**
+     * Backing object pool
+     */
+    private final GenericObjectPool<FosRserve> pool;
+
+    /**
+     * One permit per session that may be borrowed. Borrowers wait here instead of in the backing pool, which never
+     * blocks, so that {@link #warm()} can take the idle sessions without waiting.
+     */
+    private final Semaphore permits;
+
+    /**
+     * Opens new sessions
+     */
+    private final FosRserveConnector connector;
+
+    /**
+     * Registered initializers, in registration order. Guarded by itself.
+     */
+    private final Map<String, Registration> registrations = new LinkedHashMap<>();
+
+    /**
+     * Initializers already applied to each session
+     */
+    private final Map<FosRserve, SessionState> applied = new ConcurrentHashMap<>();
+
+    /**
+     * Last registration version. Guarded by {@link #registrations}.
+     */
+    private long version = 0;
+
+    /**
+     * Number of idle sessions kept ready to replace abandoned ones
+     */
+    private final int standby;
+
+    /**
+     * Standby sessions, kept out of the pool until a new session is needed
+     */
+    private final Queue<FosRserve> reserve = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates standby sessions in the background (null if there is no standby)
+     */
+    private final ExecutorService refiller;
+
+    /**
+     * Last pool id, used to name the pool metrics
+     */
+    private static final AtomicInteger POOL_IDS = new AtomicInteger();
+
+    /**
+     * Metrics of this pool, its sessions and the models scored with them
+     */
+    private final RMetrics metrics;
+
+    /**
+     * Name of this pool in the metrics
+     */
+    private final String name = "pool-" + POOL_IDS.incrementAndGet();
+
+    /**
+     * Number of threads waiting for a session
+     */
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /**
+     * Creates a new session pool connected to the RServe daemon running on the default port
+     * @param size maximum number of concurrent R sessions
+     */
+    public FosRservePool(int size) {
+        this(new FosRserveEndpoint(FosRserve.DEFAULT_HOST, FosRserve.DEFAULT_PORT), size);
+    }
+
+    /**
+     * Creates a new session pool
+     * @param connector opens new sessions
+     * @param size maximum number of concurrent R sessions
+     */
+    public FosRservePool(FosRserveConnector connector, int size) {
+        this(connector, size, 0);
+    }
+
+    /**
+     * Creates a new session pool that keeps warm standby sessions.
+     * <p/>
+     * Standby sessions are created in the background and kept initialized out of the pool, so that a session
+     * discarded after an expired deadline or a crash is replaced without waiting for a new R process to load every
+     * model. They are never borrowed while the pool is full, so they stay ready under load.
+     *
+     * @param connector opens new sessions
+     * @param size maximum number of concurrent R sessions, excluding standby sessions
+     * @param standby number of idle sessions kept ready
+     */
+    public FosRservePool(FosRserveConnector connector, int size, int standby) {
+        this(connector, size, standby, new RMetrics(MetricsReporter.NONE));
+    }
+
+    /**
+     * Creates a new session pool that keeps warm standby sessions and publishes its metrics
+     *
+     * @param connector opens new sessions
+     * @param size maximum number of concurrent R sessions, excluding standby sessions
+     * @param standby number of idle sessions kept ready
+     * @param metrics registry where the pool and session metrics are published
+     */
+    public FosRservePool(FosRserveConnector connector, int size, int standby, RMetrics metrics) {
+        checkNotNull(connector, "Connector cannot be null");
+        checkNotNull(metrics, "Metrics cannot be null");
+        checkArgument(size > 0, "Pool size must be positive");
+        checkArgument(standby >= 0, "Standby sessions cannot be negative");
+
+        this.connector = connector;
+        this.standby = standby;
+        this.pool = new GenericObjectPool<>(new SessionFactory());
+        this.pool.setMaxActive(size);
+        this.pool.setMaxIdle(size);
+        this.pool.setWhenExhaustedAction(GenericObjectPool.WHEN_EXHAUSTED_FAIL);
+        this.permits = new Semaphore(size, true);
+        this.pool.setTestOnBorrow(true);
+        this.metrics = metrics;
+        this.metrics.addPool(name, new PoolMetrics());
+
+        if (standby > 0) {
+            this.refiller = Executors.newSingleThreadExecutor(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("fos-r-standby-%d").build());
+            refill();
+        } else {
+            this.refiller = null;
+        }
+    }
+
+    /**
+     * Borrows a session from the pool, waiting for one to be available if necessary.
+     * <p/>
+     * The returned session is up to date with every registered initializer and must be given back
+     * with {@link #release(FosRserve)}.
+     *
+     * @return a R session
+     * @throws FOSException if unable to create or initialize a session
+     */
+    public FosRserve borrow() throws FOSException {
+        FosRserve session = take();
+        try {
+            synchronize(session);
+        } catch (FOSException e) {
+            invalidate(session);
+            throw e;
+        }
+        return session;
+    }
+
+    /**
+     * Takes a session from the backing pool, without synchronizing it
+     * @return a R session
+     * @throws FOSException if unable to create a session
+     */
+    private FosRserve take() throws FOSException {
+        waiting.incrementAndGet();
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FOSException("Interrupted while waiting for a R session.", e);
+        } finally {
+            waiting.decrementAndGet();
+        }
+
+        try {
+            return pool.borrowObject();
+        } catch (FOSException e) {
+            permits.release();
+            throw e;
+        } catch (Exception e) {
+            permits.release();
+            throw new FOSException("Unable to obtain a R session.", e);
+        }
+    }
+
+    /**
+     * Returns a borrowed session to the pool. Disconnected sessions are discarded.
+     * @param session session to return
+     */
+    public void release(FosRserve session) {
+        if (!session.isConnected()) {
+            invalidate(session);
+            return;
+        }
+
+        try {
+            pool.returnObject(session);
+        } catch (Exception e) {
+            logger.warn("Unable to return R session to the pool", e);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Discards a borrowed session whose state can no longer be trusted
+     * @param session session to discard
+     */
+    public void invalidate(FosRserve session) {
+        try {
+            pool.invalidateObject(session);
+        } catch (Exception e) {
+            logger.warn("Unable to invalidate R session", e);
+        } finally {
+            permits.release();
+        }
+        refill();
+    }
+
+    /**
+     * Registers (or replaces) an initializer that will be applied to every session.
+     * <p/>
+     * The initializer alone is first applied synchronously to one session, so pending initializers of other keys
+     * can't fail it, and only then published to the other sessions. If it fails the session is discarded, the
+     * previous registration stays in effect everywhere and the error is propagated.
+     *
+     * @param key unique key of the initializer
+     * @param initializer initializer to apply
+     * @throws FOSException if the initializer could not be applied
+     */
+    public void register(String key, FosRserveInitializer initializer) throws FOSException {
+        checkNotNull(key, "Key cannot be null");
+        checkNotNull(initializer, "Initializer cannot be null");
+
+        FosRserve session = take();
+        try {
+            initializer.initialize(session);
+        } catch (FOSException | RuntimeException e) {
+            invalidate(session);
+            throw e;
+        }
+
+        synchronized (registrations) {
+            Registration registration = new Registration(++version, initializer, false);
+            registrations.remove(key);
+            registrations.put(key, registration);
+            // the session is still taken, so nothing else is synchronizing it
+            applied.get(session).registrations.put(key, registration);
+        }
+        release(session);
+    }
+
+    /**
+     * Unregisters an initializer. The given finalizer will be applied to every session where the
+     * initializer was previously applied, and is forgotten once every session is up to date.
+     *
+     * @param key unique key of the initializer
+     * @param finalizer finalizer that removes the state created by the initializer
+     */
+    public void unregister(String key, FosRserveInitializer finalizer) {
+        checkNotNull(key, "Key cannot be null");
+        checkNotNull(finalizer, "Finalizer cannot be null");
+
+        synchronized (registrations) {
+            if (registrations.remove(key) != null) {
+                registrations.put(key, new Registration(++version, finalizer, true));
+            }
+        }
+    }
+
+    /**
+     * Applies the pending initializers to the idle and standby sessions in the calling thread, so that the threads
+     * that borrow them next don't wait for the initializers. Sessions in use are synchronized when they are next
+     * borrowed.
+     * <p/>
+     * Every idle session is taken before any is synchronized, and each one is given back as soon as it is ready.
+     * Sessions are only taken while they are available without waiting, so warming never blocks on a busy pool.
+     */
+    public void warm() {
+        List<FosRserve> sessions = new ArrayList<>();
+        while (pool.getNumIdle() > 0 && permits.tryAcquire()) {
+            try {
+                sessions.add(pool.borrowObject());
+            } catch (Exception e) {
+                permits.release();
+                logger.warn("Unable to obtain an idle R session", e);
+                break;
+            }
+        }
+
+        for (FosRserve session : sessions) {
+            try {
+                synchronize(session);
+                release(session);
+            } catch (FOSException e) {
+                logger.warn("Unable to synchronize idle R session, discarding it", e);
+                invalidate(session);
+            }
+        }
+
+        for (int i = reserve.size(); i > 0; --i) {
+            FosRserve session = reserve.poll();
+            if (session == null) {
+                break;
+            }
+            try {
+                synchronize(session);
+                reserve.add(session);
+            } catch (FOSException e) {
+                logger.warn("Unable to synchronize standby R session, discarding it", e);
+                discard(session);
+                refill();
+            }
+        }
+    }
+
+    /**
+     * Gets the initializer registered with the given key that is in effect on a borrowed session.
+     * <p/>
+     * The returned initializer is consistent with the state of the session, even if a newer version was
+     * registered after the session was borrowed.
+     *
+     * @param session borrowed session
+     * @param key unique key of the initializer
+     * @return the initializer applied to the session, or null if none
+     */
+    public FosRserveInitializer applied(FosRserve session, String key) {
+        SessionState state = applied.get(session);
+        if (state == null) {
+            return null;
+        }
+
+        Registration registration = state.registrations.get(key);
+        return registration != null ? registration.initializer : null;
+    }
+
+    /**
+     * Gets the number of standby sessions that are ready
+     * @return the number of standby sessions
+     */
+    int getReserveSize() {
+        return reserve.size();
+    }
+
+    /**
+     * Gets the registry of the metrics of this pool, its sessions and the models scored with them
+     * @return the metrics registry
+     */
+    public RMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Closes the pool and all the idle sessions
+     * @throws FOSException if unable to close the pool
+     */
+    public void close() throws FOSException {
+        if (refiller != null) {
+            refiller.shutdownNow();
+        }
+        metrics.removePool(name);
+        for (FosRserve session = reserve.poll(); session != null; session = reserve.poll()) {
+            discard(session);
+        }
+        try {
+            pool.close();
+        } catch (Exception e) {
+            throw new FOSException("Unable to close the R session pool.", e);
+        } finally {
+            // the threads waiting for a session fail on the closed pool instead of waiting forever
+            permits.release(permits.getQueueLength());
+        }
+    }
+
+    /**
+     * Tops up the standby sessions in the background
+     */
+    private void refill() {
+        if (refiller == null) {
+            return;
+        }
+
+        try {
+            refiller.execute(new Runnable() {
+                @Override
+                public void run() {
+                    while (reserve.size() < standby) {
+                        try {
+                            FosRserve session = open();
+                            if (refiller.isShutdown()) {
+                                discard(session);
+                                return;
+                            }
+                            reserve.add(session);
+                        } catch (FOSException e) {
+                            logger.warn("Unable to create a standby R session", e);
+                            return;
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the pool is closing
+        }
+    }
+
+    /**
+     * Opens a new session, up to date with every initializer
+     * @return the session
+     * @throws FOSException if the session could not be opened or initialized
+     */
+    private FosRserve open() throws FOSException {
+        FosRserve session = connector.connect();
+        applied.put(session, new SessionState());
+        metrics.addSession(session.getMetrics());
+
+        try {
+            synchronize(session);
+        } catch (FOSException e) {
+            discard(session);
+            throw e;
+        }
+        return session;
+    }
+
+    /**
+     * Closes a session that is not (or no longer) in the pool
+     * @param session session to close
+     */
+    private void discard(FosRserve session) {
+        applied.remove(session);
+        metrics.removeSession(session.getMetrics());
+        try {
+            session.close();
+        } catch (FOSException e) {
+            logger.warn("Unable to close R session", e);
+        }
+    }
+
+    /**
+     * Applies to the given session every initializer it hasn't seen yet.
+     *
+     * @param session session to synchronize
+     * @throws FOSException if an initializer fails
+     */
+    private void synchronize(FosRserve session) throws FOSException {
+        SessionState state = applied.get(session);
+
+        List<String> keys;
+        List<Registration> pending;
+        long snapshot;
+        synchronized (registrations) {
+            keys = new ArrayList<>(registrations.keySet());
+            pending = new ArrayList<>(registrations.values());
+            snapshot = version;
+        }
+        if (state.version == snapshot) {
+            return;
+        }
+
+        boolean removals = false;
+        for (int i = 0; i != keys.size(); ++i) {
+            removals |= apply(session, state.registrations, keys.get(i), pending.get(i));
+        }
+        state.version = snapshot;
+
+        if (removals) {
+            prune();
+        }
+    }
+
+    /**
+     * Applies a registration to a session, unless the session has already seen it
+     * @param session session to update
+     * @param sessionRegistrations registrations already applied to the session
+     * @param key unique key of the initializer
+     * @param registration registration to apply
+     * @return true if the registration is a removal
+     * @throws FOSException if the initializer fails
+     */
+    private static boolean apply(FosRserve session, Map<String, Registration> sessionRegistrations,
+                                 String key, Registration registration) throws FOSException {
+        Registration current = sessionRegistrations.get(key);
+        if (current != null && current.version >= registration.version) {
+            return false;
+        }
+
+        // a removal only needs to be applied where the initializer was applied
+        if (!registration.removed || current != null) {
+            registration.initializer.initialize(session);
+        }
+
+        if (registration.removed) {
+            sessionRegistrations.remove(key);
+        } else {
+            sessionRegistrations.put(key, registration);
+        }
+        return registration.removed;
+    }
+
+    /**
+     * Forgets the removals already applied to every live session. Sessions created afterwards never had the
+     * removed initializers applied, so they don't need the finalizers.
+     */
+    private void prune() {
+        long oldest = Long.MAX_VALUE;
+        for (SessionState state : applied.values()) {
+            oldest = Math.min(oldest, state.version);
+        }
+
+        synchronized (registrations) {
+            Iterator<Registration> iterator = registrations.values().iterator();
+            while (iterator.hasNext()) {
+                Registration registration = iterator.next();
+                if (registration.removed && registration.version <= oldest) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * A versioned initializer registration
+     */
+    private static final class Registration {
+        private final long version;
+        private final FosRserveInitializer initializer;
+        private final boolean removed;
+
+        private Registration(long version, FosRserveInitializer initializer, boolean removed) {
+            this.version = version;
+            this.initializer = initializer;
+            this.removed = removed;
+        }
+    }
+
+    /**
+     * Registrations applied to a session
+     */
+    private static final class SessionState {
+        /**
+         * Registration of each initializer in effect on the session
+         */
+        private final Map<String, Registration> registrations = new ConcurrentHashMap<>();
+
+        /**
+         * Last registration version the session was synchronized with
+         */
+        private volatile long version;
+    }
+
+    /**
+     * Gauges of this pool
+     */
+    private class PoolMetrics implements PoolMetricsMBean {
+        @Override
+        public int getActive() {
+            return pool.getNumActive();
+        }
+
+        @Override
+        public int getIdle() {
+            return pool.getNumIdle();
+        }
+
+        @Override
+        public int getWaiting() {
+            return waiting.get();
+        }
+
+        @Override
+        public int getMaxActive() {
+            return pool.getMaxActive();
+        }
+    }
+
+    /**
+     * Creates and destroys pooled sessions
+     */
+    private class SessionFactory extends BasePoolableObjectFactory<FosRserve> {
+        @Override
+        public FosRserve makeObject() throws Exception {
+            // a standby session replaces the missing one right away
+            for (FosRserve session = reserve.poll(); session != null; session = reserve.poll()) {
+                refill();
+                if (!session.isConnected()) {
+                    discard(session);
+                    continue;
+                }
+                try {
+                    synchronize(session);
+                    return session;
+                } catch (FOSException e) {
+                    logger.warn("Unable to synchronize standby R session, discarding it", e);
+                    discard(session);
+                }
+            }
+            return open();
+        }
+
+        @Override
+        public boolean validateObject(FosRserve session) {
+            return session.isConnected();
+        }
+
+        @Override
+        public void destroyObject(FosRserve session) throws Exception {
+            discard(session);
+        }
+    }
+}
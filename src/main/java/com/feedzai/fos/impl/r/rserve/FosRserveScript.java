@@ -0,0 +1,84 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.rserve;
+
+import com.feedzai.fos.api.FOSException;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Initializer that evaluates a fixed list of R commands, in order.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class FosRserveScript implements FosRserveInitializer {
+    /**
+     * R commands to evaluate
+     */
+    private final List<String> commands;
+
+    /**
+     * Creates a new script initializer
+     * @param commands R commands to evaluate
+     */
+    public FosRserveScript(List<String> commands) {
+        checkNotNull(commands, "Commands cannot be null");
+        this.commands = ImmutableList.copyOf(commands);
+    }
+
+    /**
+     * Creates a new script initializer
+     * @param commands R commands to evaluate
+     */
+    public FosRserveScript(String... commands) {
+        this(ImmutableList.copyOf(commands));
+    }
+
+    @Override
+    public void initialize(FosRserve rserve) throws FOSException {
+        for (String command : commands) {
+            rserve.eval(command);
+        }
+    }
+
+    /**
+     * Gets the R commands evaluated by this script
+     * @return list of R commands
+     */
+    public List<String> getCommands() {
+        return commands;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("commands", commands.size())
+                .toString();
+    }
+}
@@ -0,0 +1,788 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.rserve;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPGenericVector;
+import org.rosuda.REngine.REXPInteger;
+import org.rosuda.REngine.REXPList;
+import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.REXPNull;
+import org.rosuda.REngine.REXPString;
+import org.rosuda.REngine.RList;
+import org.rosuda.REngine.Rserve.protocol.REXPFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Connection to a RServe daemon that speaks the QAP1 protocol directly over a socket channel.
+ * <p/>
+ * Requests are encoded into a reusable direct buffer and responses are read into another one, so no socket streams,
+ * intermediate byte arrays nor {@link REXPFactory} object graphs are created per call. Numeric vectors, integer
+ * vectors, string vectors and named lists of those are encoded directly; any other value is encoded with the
+ * REngine serializer. Numeric results are decoded straight into the caller's array.
+ * <p/>
+ * Not thread safe, except for {@link #close()}, which unblocks a thread waiting for a response.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+class Qap1Connection {
+    private static final int CMD_EVAL = 0x003;
+    private static final int CMD_SHUTDOWN = 0x004;
+    private static final int CMD_SET_SEXP = 0x020;
+    private static final int RESP_OK = 0x10001;
+
+    private static final int DT_STRING = 4;
+    private static final int DT_SEXP = 10;
+    private static final int DT_LARGE = 64;
+
+    private static final int XT_NULL = 0;
+    private static final int XT_VECTOR = 16;
+    private static final int XT_SYMNAME = 19;
+    private static final int XT_LIST_TAG = 21;
+    private static final int XT_ARRAY_INT = 32;
+    private static final int XT_ARRAY_DOUBLE = 33;
+    private static final int XT_ARRAY_STR = 34;
+    private static final int XT_LARGE = 64;
+    private static final int XT_HAS_ATTR = 128;
+
+    /**
+     * Largest length that fits a short (4 byte) header
+     */
+    private static final int MAX_SHORT_LENGTH = 0xfffff0;
+
+    /**
+     * Length of the message header
+     */
+    private static final int MESSAGE_HEADER = 16;
+
+    /**
+     * Length of the identification sent by the server on connect
+     */
+    private static final int ID_LENGTH = 32;
+
+    /**
+     * Initial size of the request and response buffers
+     */
+    private static final int INITIAL_BUFFER = 64 * 1024;
+
+    /**
+     * Tag of the names attribute
+     */
+    private static final String NAMES = "names";
+
+    private final SocketChannel channel;
+
+    /**
+     * Reusable request buffer, grown on demand
+     */
+    private ByteBuffer request;
+
+    /**
+     * Reusable response buffer, grown on demand. Holds the content of the last response.
+     */
+    private ByteBuffer response;
+
+    /**
+     * Scratch array for values encoded with the REngine serializer
+     */
+    private byte[] scratch = new byte[0];
+
+    private volatile boolean connected;
+
+    /**
+     * Connects to a RServe daemon
+     * @param host RServe host
+     * @param port RServe port
+     * @throws IOException if unable to connect or the server requires authentication
+     */
+    Qap1Connection(String host, int port) throws IOException {
+        this.channel = SocketChannel.open(new InetSocketAddress(host, port));
+        this.request = allocate(INITIAL_BUFFER);
+        this.response = allocate(INITIAL_BUFFER);
+
+        try {
+            channel.socket().setTcpNoDelay(true);
+
+            response.clear().limit(ID_LENGTH);
+            readFully(response);
+            byte[] id = new byte[ID_LENGTH];
+            response.flip();
+            response.get(id);
+            String identification = new String(id, "US-ASCII");
+            if (!identification.startsWith("Rsrv") || !identification.substring(8, 12).equals("QAP1")) {
+                throw new IOException("Not a RServe QAP1 server");
+            }
+            for (int i = 12; i < ID_LENGTH; i += 4) {
+                if (identification.substring(i, i + 2).equals("AR")) {
+                    throw new IOException("RServe authentication is not supported by the direct protocol");
+                }
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        this.connected = true;
+    }
+
+    /**
+     * Evaluates a R command
+     * @param command R command
+     * @return the result
+     * @throws IOException if the connection failed or the server rejected the command
+     * @throws REXPMismatchException if the result could not be decoded
+     */
+    REXP eval(String command) throws IOException, REXPMismatchException {
+        request.clear();
+        ensureRequest(MESSAGE_HEADER + stringParameterLength(command));
+        putMessage(CMD_EVAL, stringParameterLength(command));
+        putStringParameter(command);
+        send();
+
+        readResponse();
+        return decode();
+    }
+
+    /**
+     * Assigns a value to a global variable
+     * @param name variable name
+     * @param value value to assign
+     * @throws IOException if the connection failed or the server rejected the value
+     * @throws REXPMismatchException if the value could not be encoded
+     */
+    void assign(String name, REXP value) throws IOException, REXPMismatchException {
+        request.clear();
+        putAssign(name, value);
+        send();
+        readResponse();
+    }
+
+    /**
+     * Assigns the given values and evaluates a command, in a single write. The result is kept in the response
+     * buffer, to be decoded with {@link #decodeDoubles(double[])} or {@link #decode()}.
+     *
+     * @param names variable names
+     * @param values values to assign, in the same order
+     * @param command R command evaluated after the assignments
+     * @throws IOException if the connection failed or the server rejected a request
+     * @throws REXPMismatchException if a value could not be encoded
+     */
+    void invoke(String[] names, REXP[] values, String command) throws IOException, REXPMismatchException {
+        request.clear();
+        for (int i = 0; i != names.length; ++i) {
+            putAssign(names[i], values[i]);
+        }
+        int length = stringParameterLength(command);
+        ensureRequest(MESSAGE_HEADER + length);
+        putMessage(CMD_EVAL, length);
+        putStringParameter(command);
+        send();
+
+        // every response must be read to keep the stream in sync, even after a failure
+        IOException failure = null;
+        for (int i = 0; i != names.length + 1; ++i) {
+            try {
+                readResponse();
+            } catch (Qap1Exception e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Decodes the last result as a numeric vector, ignoring its attributes (e.g. dimensions)
+     * @param buffer optional buffer, used if it has the same length as the result
+     * @return the values, or null if the result is not a numeric vector
+     */
+    double[] decodeDoubles(double[] buffer) {
+        int position = sexpPosition();
+        int type = response.getInt(position) & 0xff;
+        int end = contentPosition(position) + sexpLength(position);
+        position = contentPosition(position);
+
+        if ((type & XT_HAS_ATTR) != 0) {
+            position = contentPosition(position) + sexpLength(position);
+        }
+        if ((type & 0x3f) != XT_ARRAY_DOUBLE) {
+            return null;
+        }
+
+        int count = (end - position) / 8;
+        double[] values = buffer != null && buffer.length == count ? buffer : new double[count];
+        for (int i = 0; i != count; ++i) {
+            values[i] = response.getDouble(position + i * 8);
+        }
+        return values;
+    }
+
+    /**
+     * Decodes a numeric attribute of the last result without decoding the result
+     * @param tag attribute name (ASCII)
+     * @return the first value of the attribute, or NaN if the result has no such numeric attribute
+     */
+    double decodeAttribute(String tag) {
+        int position = sexpPosition();
+        if ((response.getInt(position) & XT_HAS_ATTR) == 0) {
+            return Double.NaN;
+        }
+
+        // the attributes are a tagged pair list: value, tag, value, tag...
+        int list = contentPosition(position);
+        int end = contentPosition(list) + sexpLength(list);
+        position = contentPosition(list);
+        while (position < end) {
+            int value = position;
+            int name = contentPosition(value) + sexpLength(value);
+            position = contentPosition(name) + sexpLength(name);
+
+            if (matches(contentPosition(name), tag)) {
+                boolean numeric = (response.getInt(value) & 0x3f) == XT_ARRAY_DOUBLE && sexpLength(value) >= 8;
+                return numeric ? response.getDouble(contentPosition(value)) : Double.NaN;
+            }
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Gets the position of the content of an expression in the response buffer, after its header
+     * @param position position of the expression header
+     * @return the content position
+     */
+    private int contentPosition(int position) {
+        return position + ((response.getInt(position) & XT_LARGE) != 0 ? 8 : 4);
+    }
+
+    /**
+     * Gets the content length of an expression in the response buffer
+     * @param position position of the expression header
+     * @return the length, excluding the header
+     */
+    private int sexpLength(int position) {
+        int header = response.getInt(position);
+        return (header >>> 8) | ((header & XT_LARGE) != 0 ? response.getInt(position + 4) << 24 : 0);
+    }
+
+    /**
+     * Checks if a null terminated string in the response buffer is equal to the given ASCII string
+     * @param position position of the string
+     * @param s ASCII string
+     * @return true if equal
+     */
+    private boolean matches(int position, String s) {
+        for (int i = 0; i != s.length(); ++i) {
+            if (response.get(position + i) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return response.get(position + s.length()) == 0;
+    }
+
+    /**
+     * Decodes the last result with the REngine parser
+     * @return the result
+     * @throws REXPMismatchException if the result could not be decoded
+     */
+    REXP decode() throws REXPMismatchException {
+        int position = sexpPosition();
+        int length = response.limit() - position;
+        if (scratch.length < length) {
+            scratch = new byte[length];
+        }
+        response.position(position);
+        response.get(scratch, 0, length);
+
+        REXPFactory factory = new REXPFactory();
+        factory.parseREXP(scratch, 0);
+        return factory.getREXP();
+    }
+
+    /**
+     * Shuts down the RServe daemon and closes the connection
+     * @throws IOException if the request failed
+     */
+    void shutdown() throws IOException {
+        try {
+            request.clear();
+            putMessage(CMD_SHUTDOWN, 0);
+            send();
+            readResponse();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Closes the connection. Can be called from any thread.
+     */
+    void close() {
+        connected = false;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing else to release
+        }
+    }
+
+    /**
+     * Checks if the connection is open
+     * @return true if connected
+     */
+    boolean isConnected() {
+        return connected && channel.isOpen();
+    }
+
+    /**
+     * Appends a set expression message to the request
+     * @param name variable name
+     * @param value value to assign
+     * @throws REXPMismatchException if the value could not be encoded
+     */
+    private void putAssign(String name, REXP value) throws REXPMismatchException {
+        int sexp;
+        if (isDirect(value)) {
+            // the expression is encoded with its own header
+            int content = sexpLength(value);
+            sexp = headerLength(content) + content;
+        } else {
+            sexp = serialize(value);
+        }
+        int length = stringParameterLength(name) + headerLength(sexp) + sexp;
+        ensureRequest(MESSAGE_HEADER + length);
+
+        putMessage(CMD_SET_SEXP, length);
+        putStringParameter(name);
+        putHeader(DT_SEXP, DT_LARGE, sexp);
+        if (isDirect(value)) {
+            putSexp(value);
+        } else {
+            request.put(scratch, 0, sexp);
+        }
+    }
+
+    /**
+     * Checks if a value can be encoded directly
+     * @param value value to check
+     * @return true if the value can be encoded directly
+     * @throws REXPMismatchException if the value is inconsistent
+     */
+    private static boolean isDirect(REXP value) throws REXPMismatchException {
+        if (value instanceof REXPNull) {
+            return true;
+        }
+        if (value instanceof REXPDouble || value instanceof REXPInteger || value instanceof REXPString) {
+            return value._attr() == null;
+        }
+        if (value instanceof REXPGenericVector) {
+            REXPList attributes = value._attr();
+            if (attributes != null && (attributes.length() != 1 || attributes.asList().at(NAMES) == null)) {
+                return false;
+            }
+            RList list = value.asList();
+            for (int i = 0; i != list.size(); ++i) {
+                if (!isDirect(list.at(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Serializes a value into the scratch array with the REngine serializer
+     * @param value value to serialize
+     * @return the serialized length
+     * @throws REXPMismatchException if the value could not be serialized
+     */
+    private int serialize(REXP value) throws REXPMismatchException {
+        REXPFactory factory = new REXPFactory(value);
+        int length = factory.getBinaryLength();
+        if (scratch.length < length) {
+            scratch = new byte[length];
+        }
+        factory.getBinaryRepresentation(scratch, 0);
+        return length;
+    }
+
+    /**
+     * Computes the encoded length of a directly encodable value, excluding its header
+     * @param value value to encode
+     * @return the length in bytes
+     * @throws REXPMismatchException if the value is inconsistent
+     */
+    private static int sexpLength(REXP value) throws REXPMismatchException {
+        if (value instanceof REXPDouble) {
+            return value.length() * 8;
+        }
+        if (value instanceof REXPInteger) {
+            return value.length() * 4;
+        }
+        if (value instanceof REXPString) {
+            return stringArrayLength(value.asStrings(), null);
+        }
+        if (value instanceof REXPGenericVector) {
+            RList list = value.asList();
+            int length = 0;
+            for (int i = 0; i != list.size(); ++i) {
+                int element = sexpLength(list.at(i));
+                length += headerLength(element) + element;
+            }
+            if (list.isNamed()) {
+                int attribute = namesAttributeLength(list);
+                length += headerLength(attribute) + attribute;
+            }
+            return length;
+        }
+        return 0;
+    }
+
+    /**
+     * Encodes a directly encodable value, with its header
+     * @param value value to encode
+     * @throws REXPMismatchException if the value is inconsistent
+     */
+    private void putSexp(REXP value) throws REXPMismatchException {
+        int length = sexpLength(value);
+        if (value instanceof REXPDouble) {
+            putHeader(XT_ARRAY_DOUBLE, XT_LARGE, length);
+            for (double d : value.asDoubles()) {
+                request.putDouble(d);
+            }
+        } else if (value instanceof REXPInteger) {
+            putHeader(XT_ARRAY_INT, XT_LARGE, length);
+            for (int i : value.asIntegers()) {
+                request.putInt(i);
+            }
+        } else if (value instanceof REXPString) {
+            putHeader(XT_ARRAY_STR, XT_LARGE, length);
+            putStringArray(value.asStrings(), null);
+        } else if (value instanceof REXPGenericVector) {
+            RList list = value.asList();
+            if (list.isNamed()) {
+                putHeader(XT_VECTOR | XT_HAS_ATTR, XT_LARGE, length);
+                int attribute = namesAttributeLength(list);
+                putHeader(XT_LIST_TAG, XT_LARGE, attribute);
+                int names = stringArrayLength(null, list);
+                putHeader(XT_ARRAY_STR, XT_LARGE, names);
+                putStringArray(null, list);
+                putHeader(XT_SYMNAME, XT_LARGE, paddedLength(NAMES));
+                putPadded(NAMES, (byte) 0);
+            } else {
+                putHeader(XT_VECTOR, XT_LARGE, length);
+            }
+            for (int i = 0; i != list.size(); ++i) {
+                putSexp(list.at(i));
+            }
+        } else {
+            putHeader(XT_NULL, XT_LARGE, 0);
+        }
+    }
+
+    /**
+     * Computes the length of the names attribute of a list: a tagged pair list with the names and their tag
+     * @param list named list
+     * @return the length in bytes, excluding the header
+     */
+    private static int namesAttributeLength(RList list) {
+        int names = stringArrayLength(null, list);
+        return headerLength(names) + names + 4 + paddedLength(NAMES);
+    }
+
+    /**
+     * Computes the encoded length of a string vector: each string null terminated, padded to a multiple of 4
+     * @param strings strings to encode (or null to encode the keys of the list)
+     * @param keys list whose keys are encoded, if strings is null
+     * @return the length in bytes
+     */
+    private static int stringArrayLength(String[] strings, RList keys) {
+        int count = strings != null ? strings.length : keys.size();
+        int length = 0;
+        for (int i = 0; i != count; ++i) {
+            String s = strings != null ? strings[i] : keys.keyAt(i);
+            // NA is encoded as a single 0xff byte
+            length += (s == null ? 1 : utf8Length(s)) + 1;
+        }
+        return (length + 3) & ~3;
+    }
+
+    /**
+     * Encodes a string vector
+     * @param strings strings to encode (or null to encode the keys of the list)
+     * @param keys list whose keys are encoded, if strings is null
+     */
+    private void putStringArray(String[] strings, RList keys) {
+        int start = request.position();
+        int count = strings != null ? strings.length : keys.size();
+        for (int i = 0; i != count; ++i) {
+            String s = strings != null ? strings[i] : keys.keyAt(i);
+            if (s == null) {
+                request.put((byte) 0xff);
+            } else {
+                putUtf8(s);
+            }
+            request.put((byte) 0);
+        }
+        while (((request.position() - start) & 3) != 0) {
+            request.put((byte) 1);
+        }
+    }
+
+    /**
+     * Computes the length of a string parameter, including its header
+     * @param s string
+     * @return the length in bytes
+     */
+    private static int stringParameterLength(String s) {
+        int length = paddedLength(s);
+        return headerLength(length) + length;
+    }
+
+    /**
+     * Encodes a string parameter, with its header
+     * @param s string
+     */
+    private void putStringParameter(String s) {
+        putHeader(DT_STRING, DT_LARGE, paddedLength(s));
+        putPadded(s, (byte) 0);
+    }
+
+    /**
+     * Computes the length of a null terminated string padded to a multiple of 4
+     * @param s string
+     * @return the length in bytes
+     */
+    private static int paddedLength(String s) {
+        return (utf8Length(s) + 1 + 3) & ~3;
+    }
+
+    /**
+     * Encodes a null terminated string padded to a multiple of 4
+     * @param s string
+     * @param padding padding byte
+     */
+    private void putPadded(String s, byte padding) {
+        int start = request.position();
+        putUtf8(s);
+        request.put((byte) 0);
+        while (((request.position() - start) & 3) != 0) {
+            request.put(padding);
+        }
+    }
+
+    /**
+     * Computes the UTF-8 length of a string without encoding it
+     * @param s string
+     * @return the length in bytes
+     */
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i != s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                ++i;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Encodes a string as UTF-8 into the request buffer
+     * @param s string
+     */
+    private void putUtf8(String s) {
+        for (int i = 0; i != s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                request.put((byte) c);
+            } else if (c < 0x800) {
+                request.put((byte) (0xc0 | (c >> 6)));
+                request.put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                request.put((byte) (0xf0 | (codePoint >> 18)));
+                request.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                request.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                request.put((byte) (0x80 | (codePoint & 0x3f)));
+            } else {
+                request.put((byte) (0xe0 | (c >> 12)));
+                request.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                request.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    /**
+     * Computes the length of a parameter or expression header
+     * @param length length of the content
+     * @return 4, or 8 for large contents
+     */
+    private static int headerLength(int length) {
+        return length > MAX_SHORT_LENGTH ? 8 : 4;
+    }
+
+    /**
+     * Encodes a parameter or expression header
+     * @param type parameter or expression type
+     * @param large flag of large contents for this kind of header
+     * @param length length of the content
+     */
+    private void putHeader(int type, int large, int length) {
+        if (length > MAX_SHORT_LENGTH) {
+            request.putInt(type | large | ((length & 0xffffff) << 8));
+            request.putInt(length >>> 24);
+        } else {
+            request.putInt(type | (length << 8));
+        }
+    }
+
+    /**
+     * Encodes a message header
+     * @param command command
+     * @param length length of the message content
+     */
+    private void putMessage(int command, int length) {
+        request.putInt(command);
+        request.putInt(length);
+        request.putInt(0);
+        request.putInt(0);
+    }
+
+    /**
+     * Makes room in the request buffer, keeping its contents
+     * @param bytes number of bytes that will be appended
+     */
+    private void ensureRequest(int bytes) {
+        if (request.remaining() < bytes) {
+            ByteBuffer grown = allocate(Math.max(request.capacity() * 2, request.position() + bytes));
+            request.flip();
+            grown.put(request);
+            request = grown;
+        }
+    }
+
+    /**
+     * Writes the request buffer to the socket
+     * @throws IOException if the write failed
+     */
+    private void send() throws IOException {
+        request.flip();
+        while (request.hasRemaining()) {
+            channel.write(request);
+        }
+    }
+
+    /**
+     * Reads a response, keeping its content in the response buffer
+     * @throws IOException if the read failed or the response is an error
+     */
+    private void readResponse() throws IOException {
+        response.clear().limit(MESSAGE_HEADER);
+        readFully(response);
+        int status = response.getInt(0);
+        long length = (response.getInt(4) & 0xffffffffL) | ((long) response.getInt(12) << 32);
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("RServe response too large: " + length + " bytes");
+        }
+
+        if (response.capacity() < length) {
+            response = allocate(Math.max(response.capacity() * 2, (int) length));
+        }
+        response.clear().limit((int) length);
+        readFully(response);
+        response.flip();
+
+        if ((status & 0xffffff) != RESP_OK) {
+            throw new Qap1Exception((status >>> 24) & 0x7f);
+        }
+    }
+
+    /**
+     * Reads until the buffer is full
+     * @param buffer buffer to fill
+     * @throws IOException if the read failed or the connection was closed
+     */
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                connected = false;
+                throw new EOFException("RServe closed the connection");
+            }
+        }
+    }
+
+    /**
+     * Gets the position of the expression in the last response, skipping its parameter header
+     * @return the position
+     */
+    private int sexpPosition() {
+        return (response.getInt(0) & DT_LARGE) != 0 ? 8 : 4;
+    }
+
+    /**
+     * Allocates a little endian direct buffer, the QAP1 byte order
+     * @param capacity buffer capacity
+     * @return the buffer
+     */
+    private static ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Error response of the server
+     */
+    static final class Qap1Exception extends IOException {
+        private final int status;
+
+        private Qap1Exception(int status) {
+            super("RServe request failed with status " + status);
+            this.status = status;
+        }
+
+        /**
+         * Gets the status reported by the server
+         * @return the status
+         */
+        int getStatus() {
+            return status;
+        }
+    }
+}
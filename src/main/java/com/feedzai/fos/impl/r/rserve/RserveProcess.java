@@ -0,0 +1,279 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.rserve;
+
+import com.feedzai.fos.api.FOSException;
+import com.google.common.base.Objects;
+import org.rosuda.REngine.Rserve.RConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A local RServe process owned by FOS.
+ * <p/>
+ * The process runs RServe in the foreground (using {@code run.Rserve}) so that it can be monitored and
+ * restarted. Each (re)start increments the process generation, which allows connections established to a previous
+ * incarnation of the process to be detected as stale.
+ * <p/>
+ * Each start defines a random owner token in the R workspace before RServe is run, which the sessions inherit. The
+ * liveness probe checks the token, so a foreign RServe listening on the same port is never taken for this process.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class RserveProcess {
+    /**
+     * Process logger
+     */
+    private static final Logger logger = LoggerFactory.getLogger(RserveProcess.class);
+
+    /**
+     * Interval between connection attempts while waiting for the process to start
+     */
+    private static final long STARTUP_POLL_MILLIS = 100;
+
+    /**
+     * Maximum time the liveness probe waits for the connection to be accepted
+     */
+    private static final int PROBE_CONNECT_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * R variable with the owner token of the process
+     */
+    private static final String OWNER_VARIABLE = ".fos.owner";
+
+    /**
+     * R executable
+     */
+    private final String executable;
+
+    /**
+     * RServe host
+     */
+    private final String host;
+
+    /**
+     * RServe port
+     */
+    private final int port;
+
+    /**
+     * Running process (null if not started)
+     */
+    private volatile Process process;
+
+    /**
+     * Owner token of the running process (null if not started)
+     */
+    private volatile String owner;
+
+    /**
+     * Number of times this process was started
+     */
+    private volatile int generation = 0;
+
+    /**
+     * Creates a new (not started) RServe process
+     *
+     * @param executable R executable
+     * @param host host where RServe accepts connections
+     * @param port port where RServe accepts connections
+     */
+    public RserveProcess(String executable, String host, int port) {
+        checkNotNull(executable, "R executable cannot be null");
+        checkNotNull(host, "Host cannot be null");
+
+        this.executable = executable;
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Starts the RServe process and waits until it accepts connections
+     *
+     * @param timeoutMillis maximum time to wait for the process to accept connections
+     * @throws FOSException if the process could not be started
+     */
+    public synchronized void start(long timeoutMillis) throws FOSException {
+        stop();
+
+        String token = UUID.randomUUID().toString();
+        ProcessBuilder builder = new ProcessBuilder(
+                executable, "--no-save", "--slave", "-e",
+                String.format("library(Rserve);%s <- '%s';run.Rserve(port=%d, args='--no-save --slave')",
+                              OWNER_VARIABLE, token, port));
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+
+        try {
+            logger.info("Starting RServe process on port {}", port);
+            process = builder.start();
+            owner = token;
+        } catch (IOException e) {
+            throw new FOSException("Unable to start RServe process on port " + port, e);
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (!probe()) {
+            if (!isAlive()) {
+                throw new FOSException("RServe process on port " + port + " exited during startup");
+            }
+            if (System.nanoTime() > deadline) {
+                stop();
+                throw new FOSException("Timeout waiting for RServe process on port " + port);
+            }
+            try {
+                Thread.sleep(STARTUP_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stop();
+                throw new FOSException("Interrupted while starting RServe process on port " + port, e);
+            }
+        }
+        generation++;
+    }
+
+    /**
+     * Stops the RServe process, if running, and waits for it to exit so that its port is released
+     */
+    public synchronized void stop() {
+        Process current = process;
+        if (current == null) {
+            return;
+        }
+
+        logger.info("Stopping RServe process on port {}", port);
+        process = null;
+        owner = null;
+        current.destroy();
+        try {
+            current.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while waiting for RServe process on port {} to exit", port);
+        }
+    }
+
+    /**
+     * Checks if the operating system process is still running
+     * @return true if running
+     */
+    public boolean isAlive() {
+        Process current = process;
+        if (current == null) {
+            return false;
+        }
+        try {
+            current.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Liveness probe: checks that the process is running, connects to it and checks its owner token
+     * @return true if this process answered
+     */
+    public boolean probe() {
+        String token = owner;
+        if (token == null || !isAlive()) {
+            return false;
+        }
+
+        // RConnection has no connect timeout, so check first that the connection is accepted at all
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), PROBE_CONNECT_TIMEOUT_MILLIS);
+        } catch (IOException e) {
+            return false;
+        }
+
+        RConnection connection = null;
+        try {
+            connection = new RConnection(host, port);
+            String answer = connection.eval(String.format("if (exists('%1$s')) %1$s else ''", OWNER_VARIABLE)).asString();
+            if (!token.equals(answer)) {
+                logger.warn("RServe on port {} is not owned by this process", port);
+                return false;
+            }
+            return true;
+        } catch (Exception e) {
+            return false;
+        } finally {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Checks if the process is running the given generation
+     * @param generation generation to check
+     * @return true if the process was not restarted since the given generation and is still running
+     */
+    public boolean isCurrent(int generation) {
+        return this.generation == generation && isAlive();
+    }
+
+    /**
+     * Gets the current process generation
+     * @return the number of times the process was started
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Gets the host where RServe accepts connections
+     * @return the host
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Gets the port where RServe accepts connections
+     * @return the port
+     */
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("host", host)
+                .add("port", port)
+                .add("generation", generation)
+                .toString();
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.rserve;
+
+import com.feedzai.fos.api.FOSException;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Spawns and owns a set of local RServe processes listening on consecutive ports.
+ * <p/>
+ * Processes are periodically liveness-probed and restarted when they crash or stop answering. Sessions are
+ * distributed round-robin across the live processes. A session established to a process that was restarted is
+ * reported as disconnected by {@link FosRserve#isConnected()}, which makes the {@link FosRservePool} discard it and
+ * replay every registered initializer on its replacement.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class RserveSupervisor implements FosRserveConnector {
+    /**
+     * Supervisor logger
+     */
+    private static final Logger logger = LoggerFactory.getLogger(RserveSupervisor.class);
+
+    /**
+     * Maximum time to wait for a RServe process to accept connections
+     */
+    private static final long STARTUP_TIMEOUT_MILLIS = 30000;
+
+    /**
+     * Managed processes
+     */
+    private final List<RserveProcess> processes;
+
+    /**
+     * Runs the periodic health checks
+     */
+    private final ScheduledExecutorService healthChecker;
+
+    /**
+     * Round-robin index of the next process to connect to
+     */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Whether sessions speak the QAP1 protocol directly
+     */
+    private final boolean directProtocol;
+
+    /**
+     * Starts the given number of RServe processes
+     *
+     * @param executable R executable
+     * @param host host where the processes accept connections
+     * @param basePort port of the first process; the remaining use consecutive ports
+     * @param count number of processes to start
+     * @param healthCheckIntervalMillis interval between liveness probes
+     * @throws FOSException if a process could not be started
+     */
+    public RserveSupervisor(String executable, String host, int basePort, int count, long healthCheckIntervalMillis) throws FOSException {
+        this(executable, host, basePort, count, healthCheckIntervalMillis, false);
+    }
+
+    /**
+     * Starts the given number of RServe processes
+     *
+     * @param executable R executable
+     * @param host host where the processes accept connections
+     * @param basePort port of the first process; the remaining use consecutive ports
+     * @param count number of processes to start
+     * @param healthCheckIntervalMillis interval between liveness probes
+     * @param directProtocol whether sessions speak the QAP1 protocol directly, see {@link FosRserve}
+     * @throws FOSException if a process could not be started
+     */
+    public RserveSupervisor(String executable, String host, int basePort, int count, long healthCheckIntervalMillis,
+                            boolean directProtocol) throws FOSException {
+        checkArgument(count > 0, "Number of processes must be positive");
+        checkArgument(healthCheckIntervalMillis > 0, "Health check interval must be positive");
+
+        this.directProtocol = directProtocol;
+
+        ImmutableList.Builder<RserveProcess> builder = ImmutableList.builder();
+        for (int i = 0; i != count; ++i) {
+            builder.add(new RserveProcess(executable, host, basePort + i));
+        }
+        this.processes = builder.build();
+
+        try {
+            for (RserveProcess process : processes) {
+                process.start(STARTUP_TIMEOUT_MILLIS);
+            }
+        } catch (FOSException e) {
+            for (RserveProcess process : processes) {
+                process.stop();
+            }
+            throw e;
+        }
+
+        this.healthChecker = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("fos-r-supervisor-%d").build());
+        this.healthChecker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkHealth();
+            }
+        }, healthCheckIntervalMillis, healthCheckIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens a session on the next live process
+     *
+     * @return a connected R session
+     * @throws FOSException if no process accepted the connection
+     */
+    @Override
+    public FosRserve connect() throws FOSException {
+        return connect(processes, next);
+    }
+
+    /**
+     * Gets a connector that only opens sessions on a shard of the processes: the processes whose index modulo
+     * the number of shards is the shard index.
+     *
+     * @param shard index of the shard
+     * @param shards number of shards
+     * @return the connector of the shard
+     */
+    public FosRserveConnector shard(int shard, int shards) {
+        checkArgument(shards > 0 && shards <= processes.size(), "Number of shards must be between 1 and the number of processes");
+        checkArgument(shard >= 0 && shard < shards, "Shard index must be between 0 and the number of shards");
+
+        ImmutableList.Builder<RserveProcess> builder = ImmutableList.builder();
+        for (int i = shard; i < processes.size(); i += shards) {
+            builder.add(processes.get(i));
+        }
+        final List<RserveProcess> candidates = builder.build();
+        final AtomicInteger candidate = new AtomicInteger();
+
+        return new FosRserveConnector() {
+            @Override
+            public FosRserve connect() throws FOSException {
+                return RserveSupervisor.this.connect(candidates, candidate);
+            }
+
+            @Override
+            public String toString() {
+                return "RserveSupervisor shard of " + candidates;
+            }
+        };
+    }
+
+    /**
+     * Opens a session on the next live process of the given ones
+     *
+     * @param candidates processes where the session may be opened
+     * @param next round-robin index of the next process to connect to
+     * @return a connected R session
+     * @throws FOSException if no process accepted the connection
+     */
+    private FosRserve connect(List<RserveProcess> candidates, AtomicInteger next) throws FOSException {
+        FOSException failure = null;
+
+        for (int i = 0; i != candidates.size(); ++i) {
+            RserveProcess process = candidates.get((next.getAndIncrement() & Integer.MAX_VALUE) % candidates.size());
+            if (!process.isAlive()) {
+                continue;
+            }
+            try {
+                return new FosRserve(process, directProtocol);
+            } catch (FOSException e) {
+                failure = e;
+            }
+        }
+
+        throw new FOSException("No RServe process available.", failure);
+    }
+
+    /**
+     * Probes every process and restarts the ones that are not answering
+     */
+    void checkHealth() {
+        for (RserveProcess process : processes) {
+            if (process.probe()) {
+                continue;
+            }
+
+            logger.warn("RServe process {} is not responding, restarting it", process);
+            try {
+                process.start(STARTUP_TIMEOUT_MILLIS);
+            } catch (FOSException e) {
+                logger.error("Unable to restart RServe process " + process, e);
+            }
+        }
+    }
+
+    /**
+     * Gets the managed processes
+     * @return the managed processes
+     */
+    public List<RserveProcess> getProcesses() {
+        return processes;
+    }
+
+    /**
+     * Stops the health checks and all the managed processes
+     */
+    public void close() {
+        healthChecker.shutdownNow();
+        for (RserveProcess process : processes) {
+            process.stop();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r;
+
+import com.feedzai.fos.api.Attribute;
+import com.feedzai.fos.api.ModelConfig;
+import com.feedzai.fos.api.config.FosConfig;
+import com.feedzai.fos.impl.r.config.RManagerConfig;
+import com.feedzai.fos.impl.r.config.RModelConfig;
+import com.feedzai.fos.impl.r.rserve.FosRserve;
+import org.apache.commons.configuration.BaseConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.Rserve.RConnection;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the per call latency of the previous two round trip eval (assign the command to a variable, then parse
+ * and eval it) against the single round trip eval used by {@link FosRserve}, scoring a random forest trained with
+ * the credit-a dataset. {@link #fosRserveEval} measures {@link FosRserve#eval(String)} itself, including the
+ * decoding of the result.
+ * <p/>
+ * Needs a RServe daemon on the default port with the randomForest and foreign libraries.
+ * Run with {@code mvn -Pbenchmark verify -Djmh.includes=REvalRoundTripBenchmark}.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class REvalRoundTripBenchmark {
+
+    /**
+     * Scoring command evaluated by every benchmark
+     */
+    private static final String SCORE = "predict(model, instance, type = 'prob')";
+
+    private RConnection connection;
+    private FosRserve rserve;
+
+    @Setup
+    public void setup() throws Exception {
+        String cwd = new File(".").getCanonicalPath();
+
+        List<Attribute> attributes = RIntegrationTest.getAttributes();
+        ModelConfig modelConfig = new ModelConfig(attributes, new HashMap<String, String>());
+        modelConfig.setProperty(RModelConfig.LIBRARIES, "randomForest, foreign");
+        modelConfig.setProperty(RModelConfig.MODEL_SAVE_PATH, cwd);
+        modelConfig.setProperty(RModelConfig.CLASS_INDEX, Integer.valueOf(attributes.size() - 1).toString());
+        modelConfig.setProperty(RModelConfig.TRAIN_FUNCTION, "randomForest");
+        modelConfig.setProperty(RModelConfig.TRAIN_FUNCTION_ARGUMENTS, "na.action = na.roughfix");
+
+        BaseConfiguration configuration = new BaseConfiguration();
+        configuration.setProperty(FosConfig.FACTORY_NAME, RManagerFactory.class.getName());
+        RManager rManager = new RManager(new RManagerConfig(new FosConfig(configuration)));
+        try {
+            rManager.trainFile(modelConfig, cwd + "/credit-a.arff");
+        } finally {
+            rManager.close();
+        }
+
+        connection = new RConnection(FosRserve.DEFAULT_HOST, FosRserve.DEFAULT_PORT);
+        connection.voidEval("library(randomForest); library(foreign)");
+        connection.voidEval(String.format("load(file = '%s/credit-a.arff.model')", cwd));
+        connection.voidEval(String.format("instance <- read.arff('%s/credit-a.arff')[1, ]", cwd));
+
+        rserve = new FosRserve();
+        rserve.eval("library(randomForest); library(foreign)");
+        rserve.eval(String.format("load(file = '%s/credit-a.arff.model')", cwd));
+        rserve.eval(String.format("instance <- read.arff('%s/credit-a.arff')[1, ]", cwd));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        connection.close();
+        rserve.close();
+    }
+
+    @Benchmark
+    public REXP assignThenEval() throws Exception {
+        connection.assign("trycodeblock", SCORE);
+        return connection.parseAndEval("try(eval(parse(text=trycodeblock)),silent=TRUE)");
+    }
+
+    @Benchmark
+    public REXP inlineEval() throws Exception {
+        return connection.parseAndEval("try({\n" + SCORE + "\n}, silent=TRUE)");
+    }
+
+    @Benchmark
+    public double[] fosRserveEval() throws Exception {
+        return rserve.eval(SCORE);
+    }
+}
@@ -27,6 +27,9 @@ import com.feedzai.fos.api.*;
 import com.feedzai.fos.api.config.FosConfig;
 import com.feedzai.fos.impl.r.config.RManagerConfig;
 import com.feedzai.fos.impl.r.config.RModelConfig;
+import com.feedzai.fos.impl.r.metrics.MetricsReporter;
+import com.feedzai.fos.impl.r.metrics.ModelMetrics;
+import com.feedzai.fos.impl.r.metrics.ScoreStage;
 import com.feedzai.fos.impl.r.rserve.FosRserve;
 import com.google.common.collect.ImmutableList;
 import org.apache.commons.configuration.BaseConfiguration;
@@ -36,8 +39,12 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * This test uses a R manager to train a R model using a random Forest and persist it.
@@ -96,6 +103,51 @@ public class RIntegrationTest {
         assertEquals("2 probabilities (not fraud, fraud)", 2, result.get(0).length);
 
 
+    }
+
+    @Test
+    public void addModelWithoutLibraries() throws Exception {
+
+        BaseConfiguration configuration = new BaseConfiguration();
+        List<Attribute> attributes = getAttributes();
+
+        // only the training needs a library, to read the training data
+        ModelConfig trainConfig = new ModelConfig(attributes, new HashMap<String, String>());
+        trainConfig.setProperty(RModelConfig.LIBRARIES, "foreign");
+        trainConfig.setProperty(RModelConfig.MODEL_SAVE_PATH, getCwd());
+        trainConfig.setProperty(RModelConfig.CLASS_INDEX, Integer.valueOf(attributes.size() - 1).toString());
+        trainConfig.setProperty(RModelConfig.TRAIN_FUNCTION, "glm");
+        trainConfig.setProperty(RModelConfig.TRAIN_FUNCTION_ARGUMENTS, "family = binomial");
+
+        String suuid = "4b3f7a52-0d1e-4c5a-9f0b-2c6e8d7a1b90";
+        UUID uuid = UUID.fromString(suuid);
+
+        ModelConfig modelConfig = new ModelConfig(attributes, new HashMap<String, String>());
+        modelConfig.setProperty("UUID", suuid);
+        modelConfig.setProperty(RModelConfig.CLASS_INDEX, Integer.valueOf(attributes.size() - 1).toString());
+        modelConfig.setProperty(RModelConfig.PREDICT_FUNCTION_ARGUMENTS, "type = 'response'");
+        modelConfig.setProperty(RModelConfig.PREDICT_RESULT_TRANSFORM, "r <- cbind(1 - r, r)");
+
+        configuration.setProperty(FosConfig.FACTORY_NAME, RManagerFactory.class.getName());
+
+        FosConfig config = new FosConfig(configuration);
+
+        RManagerConfig rManagerConfig = new RManagerConfig(config);
+
+        RManager rManager = new RManager(rManagerConfig);
+        rManager.trainFile(trainConfig, getCwd() + "/credit-a.arff");
+        rManager.addModel(modelConfig, new ModelDescriptor(ModelDescriptor.Format.BINARY, getCwd() + "/credit-a.arff.model"));
+
+
+        Scorer scorer = rManager.getScorer();
+
+        Object[] instance = {"b",30.83,0,"u","g","w","v",1.25,"t","t",1,"f","g",202,0};
+
+        List<double[]> result =  scorer.score(ImmutableList.of(uuid), instance);
+        assertEquals("Only 1 score expected", 1, result.size());
+        assertEquals("2 probabilities (not fraud, fraud)", 2, result.get(0).length);
+
+
     }
 
     @Test
@@ -176,6 +228,148 @@ public class RIntegrationTest {
     }
 
 
+    @Test
+    public void scoreBatch() throws Exception {
+
+        BaseConfiguration configuration = new BaseConfiguration();
+        Map<String, String> properties = new HashMap<>();
+        List<Attribute> attributes = getAttributes();
+
+
+        ModelConfig modelConfig = new ModelConfig(attributes, properties);
+        modelConfig.setProperty(RModelConfig.LIBRARIES, "e1071, foreign");
+        modelConfig.setProperty(RModelConfig.MODEL_SAVE_PATH, getCwd());
+        modelConfig.setProperty(RModelConfig.CLASS_INDEX, Integer.valueOf(attributes.size() - 1).toString());
+        modelConfig.setProperty(RModelConfig.TRAIN_FUNCTION, "naiveBayes");
+        modelConfig.setProperty(RModelConfig.PREDICT_FUNCTION_ARGUMENTS, "type = 'raw'");
+
+        configuration.setProperty(FosConfig.FACTORY_NAME, RManagerFactory.class.getName());
+
+        FosConfig config = new FosConfig(configuration);
+
+        RManagerConfig rManagerConfig = new RManagerConfig(config);
+
+        RManager rManager = new RManager(rManagerConfig);
+
+        UUID uuid  = rManager.trainAndAdd(modelConfig, getTrainingInstances());
+
+
+
+        Scorer scorer = rManager.getScorer();
+
+        List<Object[]> instances = new ArrayList<>();
+        for (Object[] instance : getTrainingInstances().subList(0, 10)) {
+            instances.add(Arrays.copyOf(instance, instance.length - 1));
+        }
+
+        List<double[]> result = scorer.score(uuid, instances);
+        assertEquals("One score per instance expected", instances.size(), result.size());
+        for (int i = 0; i != instances.size(); ++i) {
+            assertArrayEquals("Batch and single scores must match", scorer.score(uuid, instances.get(i)), result.get(i), 1e-9);
+        }
+
+        // a single instance batch keeps the score of each class
+        List<double[]> single = scorer.score(uuid, instances.subList(0, 1));
+        assertEquals("One score per instance expected", 1, single.size());
+        assertEquals("One score per class expected", 2, single.get(0).length);
+        assertArrayEquals("Batch and single scores must match", scorer.score(uuid, instances.get(0)), single.get(0), 1e-9);
+
+    }
+
+
+    @Test
+    public void closeStopsBatcher() throws Exception {
+
+        BaseConfiguration configuration = new BaseConfiguration();
+        List<Attribute> attributes = getAttributes();
+
+        ModelConfig modelConfig = new ModelConfig(attributes, new HashMap<String, String>());
+        modelConfig.setProperty(RModelConfig.LIBRARIES, "e1071, foreign");
+        modelConfig.setProperty(RModelConfig.MODEL_SAVE_PATH, getCwd());
+        modelConfig.setProperty(RModelConfig.CLASS_INDEX, Integer.valueOf(attributes.size() - 1).toString());
+        modelConfig.setProperty(RModelConfig.TRAIN_FUNCTION, "naiveBayes");
+        modelConfig.setProperty(RModelConfig.PREDICT_FUNCTION_ARGUMENTS, "type = 'raw'");
+
+        configuration.setProperty(FosConfig.FACTORY_NAME, RManagerFactory.class.getName());
+        configuration.setProperty(RManagerConfig.BATCH_SIZE, 4);
+
+        RManager rManager = new RManager(new RManagerConfig(new FosConfig(configuration)));
+        UUID uuid = rManager.trainAndAdd(modelConfig, getTrainingInstances());
+
+        Object[] instance = {"b",30.83,0,"u","g","w","v",1.25,"t","t",1,"f","g",202,0};
+        assertEquals("2 probabilities (not fraud, fraud)", 2, rManager.getScorer().score(uuid, instance).length);
+
+        rManager.close();
+
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("fos-r-batch")) {
+                thread.join(5000);
+                assertFalse("Batcher thread " + thread.getName() + " still running", thread.isAlive());
+            }
+        }
+    }
+
+
+    @Test
+    public void scoreModelsMetrics() throws Exception {
+
+        BaseConfiguration configuration = new BaseConfiguration();
+        List<Attribute> attributes = getAttributes();
+
+        ModelConfig modelConfig = new ModelConfig(attributes, new HashMap<String, String>());
+        modelConfig.setProperty(RModelConfig.LIBRARIES, "e1071, foreign");
+        modelConfig.setProperty(RModelConfig.MODEL_SAVE_PATH, getCwd());
+        modelConfig.setProperty(RModelConfig.CLASS_INDEX, Integer.valueOf(attributes.size() - 1).toString());
+        modelConfig.setProperty(RModelConfig.TRAIN_FUNCTION, "naiveBayes");
+        modelConfig.setProperty(RModelConfig.PREDICT_FUNCTION_ARGUMENTS, "type = 'raw'");
+
+        configuration.setProperty(FosConfig.FACTORY_NAME, RManagerFactory.class.getName());
+        configuration.setProperty(RManagerConfig.METRICS_REPORTER, RecordingReporter.class.getName());
+
+        RManager rManager = new RManager(new RManagerConfig(new FosConfig(configuration)));
+        modelConfig.setProperty("UUID", "6f1c2a3e-5b7d-4e9f-8a0b-1c2d3e4f5a6b");
+        UUID first = rManager.trainAndAdd(modelConfig, getTrainingInstances());
+        modelConfig.setProperty("UUID", "7a2d3b4f-6c8e-4f0a-9b1c-2d3e4f5a6b7c");
+        UUID second = rManager.trainAndAdd(modelConfig, getTrainingInstances());
+        assertTrue(RecordingReporter.registered.contains("Model/" + first));
+        assertTrue(RecordingReporter.registered.contains("Model/" + second));
+
+        Object[] instance = {"b",30.83,0,"u","g","w","v",1.25,"t","t",1,"f","g",202,0};
+        RScorer scorer = (RScorer) rManager.getScorer();
+        assertEquals("One score per model expected", 2, scorer.score(ImmutableList.of(first, second), instance).size());
+
+        for (UUID uuid : ImmutableList.of(first, second)) {
+            ModelMetrics metrics = scorer.getModelMetrics(uuid);
+            assertEquals(1, metrics.getRequests());
+            assertEquals(1, metrics.getLatency(ScoreStage.ENCODE).getCount());
+            assertEquals(1, metrics.getLatency(ScoreStage.ROUND_TRIP).getCount());
+            assertEquals(1, metrics.getLatency(ScoreStage.DECODE).getCount());
+        }
+
+        // closing the manager withdraws the model metrics
+        rManager.close();
+        assertFalse(RecordingReporter.registered.contains("Model/" + first));
+        assertFalse(RecordingReporter.registered.contains("Model/" + second));
+    }
+
+    /**
+     * Keeps the names of the metrics that are currently registered
+     */
+    public static class RecordingReporter implements MetricsReporter {
+        static final Set<String> registered = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        @Override
+        public <T> void register(String type, String name, T metrics, Class<T> view) {
+            registered.add(type + "/" + name);
+        }
+
+        @Override
+        public void unregister(String type, String name) {
+            registered.remove(type + "/" + name);
+        }
+    }
+
+
     private String getCwd() throws IOException {
         return (new File(".")).getCanonicalPath();
     }
@@ -0,0 +1,153 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r;
+
+import com.feedzai.fos.api.ModelConfig;
+import com.feedzai.fos.api.ModelDescriptor;
+import com.feedzai.fos.impl.r.config.RModelConfig;
+import com.feedzai.fos.impl.r.rserve.Qap1StandInServer;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rosuda.REngine.REXP;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that trainings run in the training sessions of the {@link RManager}, against the {@link Qap1StandInServer}
+ * without R: scores and the manager keep answering while a training is running.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class RManagerTrainingTest {
+    private static final long WAIT_MILLIS = 5000;
+
+    /**
+     * Fit of the model by the training script
+     */
+    private static final Pattern FIT = Pattern.compile("model <- randomForest[(]");
+
+    /**
+     * Save of the trained model by the training script
+     */
+    private static final Pattern SAVE = Pattern.compile("save[(]model, file = '([^']*)'[)]");
+
+    private final UUID modelId = UUID.randomUUID();
+    private final CountDownLatch fitting = new CountDownLatch(1);
+    private final CountDownLatch fitted = new CountDownLatch(1);
+
+    private Qap1StandInServer server;
+    private RManager manager;
+    private ExecutorService threads;
+    private File trained;
+
+    @Before
+    public void setUp() throws Exception {
+        final RStandInScript models = new RStandInScript();
+        server = new Qap1StandInServer(new Qap1StandInServer.Script() {
+            @Override
+            public REXP eval(String expression, Map<String, REXP> variables) throws Exception {
+                if (FIT.matcher(expression).find()) {
+                    // a slow training, until the test lets it finish
+                    fitting.countDown();
+                    fitted.await();
+                }
+                Matcher save = SAVE.matcher(expression);
+                if (save.find()) {
+                    Files.write(new byte[] {1}, new File(save.group(1)));
+                }
+                return models.eval(expression, variables);
+            }
+        });
+        manager = new RManager(RStandInScript.managerConfig(server.getPort()));
+        manager.addModel(RStandInScript.modelConfig(modelId), new ModelDescriptor(ModelDescriptor.Format.BINARY, modelId + ".model"));
+        threads = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        fitted.countDown();
+        threads.shutdownNow();
+        manager.close();
+        server.close();
+        if (trained != null) {
+            trained.delete();
+            new File(trained.getPath().substring(0, trained.getPath().lastIndexOf('.'))).delete();
+        }
+    }
+
+    @Test
+    public void scoresAndManagerAnswerWhileTraining() throws Exception {
+        final ModelConfig config = RStandInScript.modelConfig(UUID.randomUUID());
+        config.setProperty(RModelConfig.LIBRARIES, "randomForest");
+        Future<UUID> training = threads.submit(new Callable<UUID>() {
+            @Override
+            public UUID call() throws Exception {
+                return manager.trainAndAdd(config, Arrays.asList(new Object[] {0.25, "no"}, new Object[] {0.75, "yes"}));
+            }
+        });
+        assertTrue("Training not started", fitting.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+
+        Future<double[]> score = threads.submit(new Callable<double[]>() {
+            @Override
+            public double[] call() throws Exception {
+                return manager.getScorer().score(modelId, new Object[] {0.25, "no"});
+            }
+        });
+        Future<Map<UUID, ModelConfig>> models = threads.submit(new Callable<Map<UUID, ModelConfig>>() {
+            @Override
+            public Map<UUID, ModelConfig> call() throws Exception {
+                return manager.listModels();
+            }
+        });
+        assertArrayEquals(new double[] {0.25, 0.75}, score.get(WAIT_MILLIS, TimeUnit.MILLISECONDS), 0);
+        assertEquals(Collections.singleton(modelId), models.get(WAIT_MILLIS, TimeUnit.MILLISECONDS).keySet());
+        assertFalse("Training finished early", training.isDone());
+
+        fitted.countDown();
+        UUID trainedId = training.get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        trained = new File(config.getProperty(RModelConfig.MODEL_FILE));
+        assertTrue(manager.listModels().containsKey(trainedId));
+        assertArrayEquals(new double[] {0.5, 0.5}, manager.getScorer().score(trainedId, new Object[] {0.5, "yes"}), 0);
+    }
+}
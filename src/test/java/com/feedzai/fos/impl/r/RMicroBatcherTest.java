@@ -0,0 +1,202 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r;
+
+import com.feedzai.fos.impl.r.rserve.FosRSessionLostException;
+import com.feedzai.fos.impl.r.rserve.FosRserve;
+import com.feedzai.fos.impl.r.rserve.FosRserveEndpoint;
+import com.feedzai.fos.impl.r.rserve.FosRservePool;
+import com.feedzai.fos.impl.r.rserve.Qap1StandInServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Scores micro batches against the {@link Qap1StandInServer}, without R, checking how failed batches are handled.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class RMicroBatcherTest {
+    /**
+     * Score timeout of the model, in milliseconds
+     */
+    private static final long TIMEOUT = 200;
+
+    /**
+     * Number of concurrent callers
+     */
+    private static final int CALLERS = 8;
+
+    private final UUID modelId = UUID.randomUUID();
+    private final RStandInScript script = new RStandInScript();
+
+    private Qap1StandInServer server;
+    private ExecutorService callers;
+    private FosRservePool pool;
+    private RScorer scorer;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new Qap1StandInServer(script);
+        callers = Executors.newFixedThreadPool(CALLERS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        close();
+        callers.shutdownNow();
+        server.close();
+    }
+
+    @Test
+    public void stalledModelFailsTheWholeBatch() throws Exception {
+        for (boolean direct : new boolean[] {false, true}) {
+            open(direct);
+            assertArrayEquals(new double[] {0.25, 0.75}, scorer.score(modelId, new Object[] {0.25, "no"}), 0);
+
+            // only the scores stall, not the sessions
+            server.setDelayed(RStandInScript.PREPARED_CALL);
+            server.setLatency(10 * TIMEOUT, 0);
+            int scores = script.getScores();
+            List<Future<Long>> failures = scoreConcurrently(new Object[] {0.5, "yes"});
+            for (Future<Long> failure : failures) {
+                long elapsed = failure.get();
+                // the batch queued behind the first one fails with it, instead of each instance waiting a timeout
+                assertTrue("Caller failed after " + elapsed + " ms", elapsed < 2 * TIMEOUT);
+            }
+
+            // the abandoned evaluations are answered by the stand-in once their latency elapses
+            Thread.sleep(10 * TIMEOUT + TIMEOUT);
+            assertTrue("Instances of a stalled batch scored again", script.getScores() - scores < CALLERS);
+            server.setLatency(0, 0);
+            server.setDelayed(null);
+            close();
+        }
+    }
+
+    @Test
+    public void batchWithARErrorIsScoredRowByRow() throws Exception {
+        open(false);
+
+        // a slow first score makes the next ones queue into a single batch
+        server.setLatency(TIMEOUT / 4, 0);
+        List<Future<double[]>> scores = new ArrayList<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        for (int i = 0; i != CALLERS; ++i) {
+            final double amount = i == CALLERS / 2 ? -1 : i / 10.0;
+            scores.add(callers.submit(new Callable<double[]>() {
+                @Override
+                public double[] call() throws Exception {
+                    start.await();
+                    return scorer.score(modelId, new Object[] {amount, "no"});
+                }
+            }));
+        }
+        start.countDown();
+
+        for (int i = 0; i != CALLERS; ++i) {
+            try {
+                double[] score = scores.get(i).get();
+                assertTrue("Bad instance scored", i != CALLERS / 2);
+                assertArrayEquals(new double[] {i / 10.0, 1 - i / 10.0}, score, 1e-9);
+            } catch (ExecutionException e) {
+                assertTrue("Good instance failed: " + e.getCause(), i == CALLERS / 2);
+            }
+        }
+    }
+
+    /**
+     * Scores the same instance from every caller at the same time, expecting every score to fail with a lost
+     * session
+     * @param scorable instance to score
+     * @return the time each caller waited for its failure, in milliseconds
+     */
+    private List<Future<Long>> scoreConcurrently(final Object[] scorable) {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Long>> failures = new ArrayList<>();
+        for (int i = 0; i != CALLERS; ++i) {
+            failures.add(callers.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    start.await();
+                    long started = System.currentTimeMillis();
+                    try {
+                        scorer.score(modelId, scorable);
+                        fail("Stalled score not reported");
+                    } catch (FosRSessionLostException e) {
+                        // expected
+                    }
+                    return System.currentTimeMillis() - started;
+                }
+            }));
+        }
+        start.countDown();
+        return failures;
+    }
+
+    /**
+     * Opens a scorer with micro batching and the stand-in model, with a session ready for each caller
+     * @param direct whether the direct protocol is used
+     */
+    private void open(boolean direct) throws Exception {
+        pool = new FosRservePool(new FosRserveEndpoint("localhost", server.getPort(), direct), CALLERS);
+        scorer = new RScorer(pool);
+        scorer.enableMicroBatching(CALLERS, 50000);
+        scorer.addOrUpdate(RStandInScript.rModelConfig(modelId, TIMEOUT));
+
+        List<FosRserve> sessions = new ArrayList<>();
+        for (int i = 0; i != CALLERS; ++i) {
+            sessions.add(pool.borrow());
+        }
+        for (FosRserve session : sessions) {
+            pool.release(session);
+        }
+    }
+
+    private void close() throws Exception {
+        if (scorer != null) {
+            scorer.close();
+            scorer = null;
+        }
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r;
+
+import com.feedzai.fos.api.Attribute;
+import com.feedzai.fos.api.ModelConfig;
+import com.feedzai.fos.api.ModelDescriptor;
+import com.feedzai.fos.api.config.FosConfig;
+import com.feedzai.fos.impl.r.config.RManagerConfig;
+import com.feedzai.fos.impl.r.config.RModelConfig;
+import com.google.common.io.Files;
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Scores random forests with a memory budget that only fits one of them, checking that models are evicted,
+ * reloaded on their next score and never evicted while pinned.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class RModelLoaderTest {
+    /**
+     * Memory budget in MB, smaller than any of the random forests
+     */
+    private static final int MEMORY_BUDGET = 1;
+
+    private static final Object[] INSTANCE = {"b",30.83,0,"u","g","w","v",1.25,"t","t",1,"f","g",202,0};
+
+    private static File modelDir;
+
+    private RManager rManager;
+    private RScorer scorer;
+    private RModelLoader loader;
+    private final List<UUID> models = new ArrayList<>();
+
+    @BeforeClass
+    public static void train() throws Exception {
+        modelDir = Files.createTempDir();
+
+        ModelConfig modelConfig = modelConfig();
+        modelConfig.setProperty(RModelConfig.TRAIN_FUNCTION, "randomForest");
+        modelConfig.setProperty(RModelConfig.TRAIN_FUNCTION_ARGUMENTS, "na.action = na.roughfix");
+        modelConfig.setProperty(RModelConfig.MODEL_SAVE_PATH, modelDir.getAbsolutePath());
+
+        RManager trainer = manager(0);
+        try {
+            trainer.trainFile(modelConfig, new File("credit-a.arff").getCanonicalPath());
+        } finally {
+            trainer.close();
+        }
+    }
+
+    @AfterClass
+    public static void deleteModel() throws Exception {
+        FileUtils.deleteDirectory(modelDir);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        rManager = manager(MEMORY_BUDGET);
+        scorer = (RScorer) rManager.getScorer();
+        loader = scorer.getLoader();
+
+        for (int i = 0; i != 3; ++i) {
+            models.add(add(UUID.randomUUID()));
+        }
+        for (UUID model : models) {
+            assertFalse("Model loaded before its first score", loader.isLoaded(model));
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        rManager.close();
+    }
+
+    @Test
+    public void evictedModelsAreReloadedOnTheirNextScore() throws Exception {
+        UUID first = models.get(0);
+        UUID second = models.get(1);
+
+        double[] expected = scorer.score(first, INSTANCE);
+        assertTrue(loader.isLoaded(first));
+        assertTrue("Model fits in the memory budget", scorer.memoryUsed(first) > MEMORY_BUDGET * 1024 * 1024);
+
+        assertArrayEquals(expected, scorer.score(second, INSTANCE), 1e-9);
+        assertTrue(loader.isLoaded(second));
+        assertFalse("Least recently scored model not evicted", loader.isLoaded(first));
+
+        assertArrayEquals(expected, scorer.score(first, INSTANCE), 1e-9);
+        assertTrue(loader.isLoaded(first));
+        assertFalse(loader.isLoaded(second));
+    }
+
+    @Test
+    public void pinnedModelsAreNotEvicted() throws Exception {
+        UUID pinned = models.get(0);
+
+        loader.acquire(pinned);
+        try {
+            scorer.score(models.get(1), INSTANCE);
+            scorer.score(models.get(2), INSTANCE);
+            assertTrue("Pinned model evicted", loader.isLoaded(pinned));
+        } finally {
+            loader.release(pinned);
+        }
+
+        scorer.score(models.get(1), INSTANCE);
+        assertFalse("Released model not evicted", loader.isLoaded(pinned));
+    }
+
+    @Test
+    public void updatedModelsAreOnlyReloadedIfLoaded() throws Exception {
+        UUID loaded = models.get(0);
+        UUID unloaded = models.get(1);
+        double[] expected = scorer.score(loaded, INSTANCE);
+
+        add(loaded);
+        assertTrue("Loaded model not reloaded on update", loader.isLoaded(loaded));
+        assertArrayEquals(expected, scorer.score(loaded, INSTANCE), 1e-9);
+
+        add(unloaded);
+        assertFalse("Model loaded on update before its first score", loader.isLoaded(unloaded));
+        assertArrayEquals(expected, scorer.score(unloaded, INSTANCE), 1e-9);
+    }
+
+    @Test
+    public void concurrentScoresAndEvictions() throws Exception {
+        final double[] expected = scorer.score(models.get(0), INSTANCE);
+        final List<Throwable> failures = new CopyOnWriteArrayList<>();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i != 8; ++i) {
+            final Random random = new Random(i);
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j != 20; ++j) {
+                            UUID model = models.get(random.nextInt(models.size()));
+                            assertArrayEquals(expected, scorer.score(model, INSTANCE), 1e-9);
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals("Failed scores: " + failures, 0, failures.size());
+    }
+
+    /**
+     * Adds (or updates) a model with the trained random forest
+     * @param modelId UUID of the model
+     * @return the UUID of the model
+     */
+    private UUID add(UUID modelId) throws Exception {
+        ModelConfig modelConfig = modelConfig();
+        modelConfig.setProperty("UUID", modelId.toString());
+        modelConfig.setProperty(RModelConfig.PREDICT_FUNCTION_ARGUMENTS, "type = 'prob'");
+        return rManager.addModel(modelConfig, new ModelDescriptor(ModelDescriptor.Format.BINARY,
+                new File(modelDir, "credit-a.arff." + RModelConfig.MODEL_FILE_EXTENSION).getAbsolutePath()));
+    }
+
+    private static ModelConfig modelConfig() {
+        List<Attribute> attributes = RIntegrationTest.getAttributes();
+        ModelConfig modelConfig = new ModelConfig(attributes, new HashMap<String, String>());
+        modelConfig.setProperty(RModelConfig.LIBRARIES, "randomForest, foreign");
+        modelConfig.setProperty(RModelConfig.CLASS_INDEX, Integer.valueOf(attributes.size() - 1).toString());
+        return modelConfig;
+    }
+
+    private static RManager manager(int memoryBudget) throws Exception {
+        BaseConfiguration configuration = new BaseConfiguration();
+        configuration.setProperty(FosConfig.FACTORY_NAME, RManagerFactory.class.getName());
+        configuration.setProperty(RManagerConfig.MEMORY_BUDGET, memoryBudget);
+        return new RManager(new RManagerConfig(new FosConfig(configuration)));
+    }
+}
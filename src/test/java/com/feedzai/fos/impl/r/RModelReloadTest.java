@@ -0,0 +1,164 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r;
+
+import com.feedzai.fos.api.FOSException;
+import com.feedzai.fos.impl.r.config.RModelConfig;
+import com.feedzai.fos.impl.r.rserve.FosRserveEndpoint;
+import com.feedzai.fos.impl.r.rserve.FosRservePool;
+import com.feedzai.fos.impl.r.rserve.Qap1StandInServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rosuda.REngine.REXP;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Reloads models while they are scored, against the {@link Qap1StandInServer} without R.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class RModelReloadTest {
+    private static final int CALLERS = 4;
+    private static final int RELOADS = 20;
+
+    /**
+     * Model file that the stand-in fails to load
+     */
+    private static final String BROKEN = "broken.model";
+
+    private final UUID modelId = UUID.randomUUID();
+    private final RStandInScript script = new RStandInScript();
+
+    private Qap1StandInServer server;
+    private FosRservePool pool;
+    private RScorer scorer;
+    private ExecutorService callers;
+    private volatile boolean scoring = true;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new Qap1StandInServer(new Qap1StandInServer.Script() {
+            @Override
+            public REXP eval(String expression, Map<String, REXP> variables) throws Exception {
+                if (expression.contains("load (") && expression.contains(BROKEN)) {
+                    return RStandInScript.error("cannot open file '" + BROKEN + "'");
+                }
+                return script.eval(expression, variables);
+            }
+        });
+        pool = new FosRservePool(new FosRserveEndpoint("localhost", server.getPort(), false), CALLERS);
+        scorer = new RScorer(pool);
+        scorer.addOrUpdate(RStandInScript.rModelConfig(modelId, 0));
+        callers = Executors.newFixedThreadPool(CALLERS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        scoring = false;
+        callers.shutdownNow();
+        scorer.close();
+        pool.close();
+        server.close();
+    }
+
+    @Test
+    public void scoresNeverFailDuringReloads() throws Exception {
+        List<Future<Integer>> scores = score();
+
+        for (int i = 0; i != RELOADS; ++i) {
+            scorer.addOrUpdate(RStandInScript.rModelConfig(modelId, 0));
+        }
+
+        assertScored(scores);
+    }
+
+    @Test
+    public void failedVersionLeavesThePreviousOneScoring() throws Exception {
+        List<Future<Integer>> scores = score();
+
+        RModelConfig broken = RStandInScript.rModelConfig(modelId, 0);
+        broken.setModel(new File(BROKEN));
+        try {
+            scorer.addOrUpdate(broken);
+            fail("Version that failed to load not reported");
+        } catch (FOSException e) {
+            // expected
+        }
+        assertArrayEquals(new double[] {0.25, 0.75}, scorer.score(modelId, new Object[] {0.25, "no"}), 0);
+
+        assertScored(scores);
+    }
+
+    /**
+     * Scores the model in every caller until the test stops
+     * @return the number of scores of each caller
+     */
+    private List<Future<Integer>> score() {
+        List<Future<Integer>> scores = new ArrayList<>();
+        for (int i = 0; i != CALLERS; ++i) {
+            final double amount = i / 10.0;
+            scores.add(callers.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int count = 0;
+                    while (scoring) {
+                        assertArrayEquals(new double[] {amount, 1 - amount},
+                                          scorer.score(modelId, new Object[] {amount, "no"}), 1e-9);
+                        count++;
+                    }
+                    return count;
+                }
+            }));
+        }
+        return scores;
+    }
+
+    /**
+     * Stops the callers and checks that every score of each one succeeded
+     * @param scores the number of scores of each caller
+     */
+    private void assertScored(List<Future<Integer>> scores) throws Exception {
+        scoring = false;
+        for (Future<Integer> caller : scores) {
+            // a failed score fails the caller
+            assertTrue("Caller never scored", caller.get(5, TimeUnit.SECONDS) > 0);
+        }
+    }
+}
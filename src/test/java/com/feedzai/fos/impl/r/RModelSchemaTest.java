@@ -0,0 +1,99 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r;
+
+import com.feedzai.fos.api.Attribute;
+import com.feedzai.fos.api.CategoricalAttribute;
+import com.feedzai.fos.api.NumericAttribute;
+import org.junit.Test;
+import org.rosuda.REngine.REXPInteger;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks how {@link RModelSchema} encodes categorical values of each Java type.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class RModelSchemaTest {
+    private final RModelSchema schema;
+
+    public RModelSchemaTest() throws Exception {
+        schema = new RModelSchema("x", Arrays.<Attribute>asList(
+                new CategoricalAttribute("code", Arrays.asList("1", "2", "0.5", "a")),
+                new NumericAttribute("amount")));
+    }
+
+    @Test
+    public void stringsAreLevels() throws Exception {
+        assertLevel(0, "1");
+        assertLevel(2, "0.5");
+        assertLevel(3, "a");
+    }
+
+    @Test
+    public void integersAreLevels() throws Exception {
+        assertLevel(0, 1);
+        assertLevel(1, 2L);
+    }
+
+    @Test
+    public void doublesAreLevelsAsInR() throws Exception {
+        // as.character(1.0) is "1", not "1.0"
+        assertLevel(0, 1.0);
+        assertLevel(1, 2f);
+        assertLevel(2, 0.5);
+        assertEquals("0", RModelSchema.levelName(-0.0));
+        assertEquals("0.333333333333333", RModelSchema.levelName(1 / 3.0));
+        assertEquals("-1.5", RModelSchema.levelName(-1.5));
+        assertEquals("NaN", RModelSchema.levelName(Double.NaN));
+        assertEquals("-Inf", RModelSchema.levelName(Double.NEGATIVE_INFINITY));
+        assertEquals("TRUE", RModelSchema.levelName(true));
+    }
+
+    @Test
+    public void unknownLevelsAreMissing() throws Exception {
+        assertLevel(-1, "b");
+        assertLevel(-1, "1.0");
+        assertLevel(-1, 3);
+        assertLevel(-1, 1.5);
+        assertLevel(-1, null);
+    }
+
+    /**
+     * Checks the level of a value when encoded for R and for the JVM
+     * @param level expected 0 based level index, -1 if missing
+     * @param value categorical value
+     */
+    private void assertLevel(int level, Object value) throws Exception {
+        Object[] scorable = new Object[] {value, 0.25};
+        int[] codes = schema.encode(scorable).asList().at("code").asIntegers();
+        assertArrayEquals(new int[] {level < 0 ? REXPInteger.NA : level + 1}, codes);
+        assertEquals(level < 0 ? Double.NaN : level, schema.encodeRow(scorable)[0], 0);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r;
+
+import com.feedzai.fos.api.ModelConfig;
+import com.feedzai.fos.api.ModelDescriptor;
+import com.feedzai.fos.impl.r.rserve.Qap1StandInServer;
+import com.google.common.cache.CacheStats;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the score cache of the {@link RScorer} against the {@link Qap1StandInServer}, without R: repeated
+ * scores are hits and every change of a model discards its cached scores, and only its own.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class RScoreCacheTest {
+    private static final Object[] SCORABLE = new Object[] {0.25, "no"};
+    private static final double[] SCORES = new double[] {0.25, 0.75};
+
+    private final UUID modelId = UUID.randomUUID();
+    private final UUID otherId = UUID.randomUUID();
+    private final RStandInScript script = new RStandInScript();
+
+    private Qap1StandInServer server;
+    private RManager manager;
+    private RScorer scorer;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new Qap1StandInServer(script);
+        manager = new RManager(RStandInScript.managerConfig(server.getPort()));
+        scorer = manager.getScorer();
+        scorer.enableScoreCache(100, 60000);
+        add(modelId);
+        add(otherId);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        manager.close();
+        server.close();
+    }
+
+    @Test
+    public void repeatedScoreIsAHit() throws Exception {
+        int scores = script.getScores();
+        assertArrayEquals(SCORES, scorer.score(modelId, SCORABLE), 0);
+        assertStats(0, 1);
+        assertArrayEquals(SCORES, scorer.score(modelId, SCORABLE), 0);
+        assertStats(1, 1);
+        assertEquals("Hit scored in R", 1, script.getScores() - scores);
+
+        // another instance is not the same entry
+        assertArrayEquals(new double[] {0.5, 0.5}, scorer.score(modelId, new Object[] {0.5, "no"}), 0);
+        assertStats(1, 2);
+    }
+
+    @Test
+    public void updateDiscardsOnlyTheModelScores() throws Exception {
+        cacheBoth();
+        scorer.addOrUpdate(RStandInScript.rModelConfig(modelId, 0));
+        assertDiscarded();
+    }
+
+    @Test
+    public void reconfigurationDiscardsOnlyTheModelScores() throws Exception {
+        cacheBoth();
+        ModelConfig config = RStandInScript.modelConfig(modelId);
+        config.setProperty("description", "reconfigured");
+        manager.reconfigureModel(modelId, config);
+        assertDiscarded();
+    }
+
+    @Test
+    public void removalDiscardsOnlyTheModelScores() throws Exception {
+        cacheBoth();
+        manager.removeModel(modelId);
+        add(modelId);
+        assertDiscarded();
+    }
+
+    /**
+     * Adds a stand-in model to the manager
+     * @param id UUID of the model
+     */
+    private void add(UUID id) throws Exception {
+        manager.addModel(RStandInScript.modelConfig(id), new ModelDescriptor(ModelDescriptor.Format.BINARY, id + ".model"));
+    }
+
+    /**
+     * Caches a score of each model
+     */
+    private void cacheBoth() throws Exception {
+        scorer.score(modelId, SCORABLE);
+        scorer.score(otherId, SCORABLE);
+        assertArrayEquals(SCORES, scorer.score(modelId, SCORABLE), 0);
+        assertArrayEquals(SCORES, scorer.score(otherId, SCORABLE), 0);
+        assertStats(2, 2);
+    }
+
+    /**
+     * Checks that the score of the changed model is computed again and the one of the other model is still cached
+     */
+    private void assertDiscarded() throws Exception {
+        assertArrayEquals(SCORES, scorer.score(modelId, SCORABLE), 0);
+        assertStats(2, 3);
+        assertArrayEquals(SCORES, scorer.score(otherId, SCORABLE), 0);
+        assertStats(3, 3);
+    }
+
+    /**
+     * Checks the cache counters
+     * @param hits expected hits
+     * @param misses expected misses
+     */
+    private void assertStats(long hits, long misses) {
+        CacheStats stats = scorer.getCacheStats();
+        assertEquals("Hits", hits, stats.hitCount());
+        assertEquals("Misses", misses, stats.missCount());
+    }
+}
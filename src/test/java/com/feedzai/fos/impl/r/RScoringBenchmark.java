@@ -0,0 +1,219 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r;
+
+import com.feedzai.fos.api.Attribute;
+import com.feedzai.fos.api.FOSException;
+import com.feedzai.fos.api.ModelConfig;
+import com.feedzai.fos.api.config.FosConfig;
+import com.feedzai.fos.impl.r.config.RManagerConfig;
+import com.feedzai.fos.impl.r.config.RModelConfig;
+import com.feedzai.fos.impl.r.rserve.FosRPreparedCall;
+import com.feedzai.fos.impl.r.rserve.FosRserve;
+import com.feedzai.fos.impl.r.rserve.FosRserveEndpoint;
+import com.feedzai.fos.impl.r.rserve.FosRservePool;
+import com.feedzai.fos.impl.r.rserve.Qap1StandInServer;
+import org.apache.commons.configuration.BaseConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rosuda.REngine.REXP;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH microbenchmarks of the Java side of a score: encoding instances, generating the per model R code and
+ * exchanging a prepared call with both RServe clients.
+ * <p/>
+ * R is not needed: the calls are answered by a {@link Qap1StandInServer}, so the figures measure the client
+ * (serialization, protocol and decoding) and not the model. {@link #scorePooled} loads a session pool from several
+ * threads against a stand-in with injected latency, to show its throughput and tail latency.
+ * Run with {@code mvn -Pbenchmark verify}, which skips the unit tests.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class RScoringBenchmark {
+    /**
+     * Environment name used by the generated code
+     */
+    private static final String ENVIRONMENT = "x81b495fdc00944dab01afcf03c85a04e";
+
+    /**
+     * Instances per batch
+     */
+    private static final int BATCH_SIZE = 100;
+
+    private List<Attribute> attributes;
+    private RModelSchema schema;
+    private RModelConfig modelConfig;
+    private Object[] instance;
+    private List<Object[]> batch;
+    private List<String> names;
+
+    private Qap1StandInServer server;
+    private FosRserve rengine;
+    private FosRserve direct;
+    private FosRPreparedCall rengineCall;
+    private FosRPreparedCall directCall;
+    private double[] buffer;
+
+    @Setup
+    public void setup() throws Exception {
+        List<Attribute> all = RIntegrationTest.getAttributes();
+        attributes = new ArrayList<>(all.subList(0, all.size() - 1));
+        schema = new RModelSchema(ENVIRONMENT, attributes);
+
+        ModelConfig config = new ModelConfig(all, new HashMap<String, String>());
+        config.setProperty(RModelConfig.LIBRARIES, "randomForest, foreign");
+        config.setProperty(RModelConfig.CLASS_INDEX, Integer.valueOf(all.size() - 1).toString());
+        config.setProperty(RModelConfig.TRAIN_FUNCTION, "randomForest");
+        config.setProperty(RModelConfig.PREDICT_FUNCTION_ARGUMENTS, "type = 'prob'");
+        BaseConfiguration configuration = new BaseConfiguration();
+        configuration.setProperty(FosConfig.FACTORY_NAME, RManagerFactory.class.getName());
+        modelConfig = new RModelConfig(config, new RManagerConfig(new FosConfig(configuration)));
+
+        // first credit-a instance
+        instance = new Object[] {"b", 30.83, 0.0, "u", "g", "w", "v", 1.25, "t", "t", 1.0, "f", "g", 202.0, 0.0};
+        batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i != BATCH_SIZE; ++i) {
+            batch.add(instance);
+        }
+        names = Arrays.asList(schema.getNames());
+
+        server = new Qap1StandInServer(new double[] {0.25, 0.75});
+        rengine = new FosRserve("localhost", server.getPort(), false);
+        direct = new FosRserve("localhost", server.getPort(), true);
+        rengineCall = rengine.prepare(ENVIRONMENT + "$score(.fos.scorable)", ".fos.scorable");
+        directCall = direct.prepare(ENVIRONMENT + "$score(.fos.scorable)", ".fos.scorable");
+        buffer = new double[2];
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        rengine.close();
+        direct.close();
+        server.close();
+    }
+
+    @Benchmark
+    public REXP encodeInstance() throws FOSException {
+        return schema.encode(instance);
+    }
+
+    @Benchmark
+    public REXP encodeBatch() throws FOSException {
+        return schema.encode(batch);
+    }
+
+    @Benchmark
+    public double[] encodeRow() throws FOSException {
+        return schema.encodeRow(instance);
+    }
+
+    @Benchmark
+    public int generateScoringFunction() throws FOSException {
+        return RScorer.generateTemplate(ENVIRONMENT, attributes).length()
+             + RScorer.generateScoringFunction(ENVIRONMENT, modelConfig).length();
+    }
+
+    @Benchmark
+    public double[] scoreREngine() throws FOSException {
+        return rengine.invokeDoubles(rengineCall, buffer, schema.encode(instance));
+    }
+
+    @Benchmark
+    public double[] scoreDirect() throws FOSException {
+        return direct.invokeDoubles(directCall, buffer, schema.encode(instance));
+    }
+
+    @Benchmark
+    public void assignStringList() throws FOSException {
+        direct.assignStringList("names", ENVIRONMENT, names);
+    }
+
+    @Benchmark
+    @Threads(16)
+    @BenchmarkMode(Mode.SampleTime)
+    public double[] scorePooled(PooledSessions sessions) throws FOSException {
+        FosRserve session = sessions.pool.borrow();
+        try {
+            FosRPreparedCall call = session.prepare(ENVIRONMENT + "$score(.fos.scorable)", ".fos.scorable");
+            return session.invokeDoubles(call, null, schema.encode(instance));
+        } finally {
+            sessions.pool.release(session);
+        }
+    }
+
+    /**
+     * Session pool shared by all benchmark threads, served by a stand-in that delays every evaluation
+     */
+    @State(Scope.Benchmark)
+    public static class PooledSessions {
+        /**
+         * Evaluation latency injected by the stand-in, in milliseconds
+         */
+        @Param({"0", "1"})
+        public long latency;
+
+        @Param({"4", "8"})
+        public int size;
+
+        private Qap1StandInServer server;
+        private FosRservePool pool;
+
+        @Setup
+        public void setup() throws Exception {
+            server = new Qap1StandInServer(new double[] {0.25, 0.75});
+            server.setLatency(latency, latency);
+            pool = new FosRservePool(new FosRserveEndpoint("localhost", server.getPort(), true), size);
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            pool.close();
+            server.close();
+        }
+    }
+}
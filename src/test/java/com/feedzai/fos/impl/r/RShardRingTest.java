@@ -0,0 +1,134 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r;
+
+import com.feedzai.fos.api.FOSException;
+import com.feedzai.fos.impl.r.rserve.FosRservePool;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the placement of models by the {@link RShardRing}.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class RShardRingTest {
+    private static final int MODELS = 10000;
+
+    private final List<FosRservePool> pools = new ArrayList<>();
+
+    @After
+    public void close() throws FOSException {
+        for (FosRservePool pool : pools) {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void modelsAreSpreadOverEveryShard() {
+        RShardRing ring = ring(4);
+
+        Map<FosRservePool, Integer> owned = new HashMap<>();
+        for (UUID modelId : models()) {
+            FosRservePool pool = ring.pool(modelId);
+            assertSame(pool, ring.pool(modelId));
+            owned.put(pool, owned.containsKey(pool) ? owned.get(pool) + 1 : 1);
+        }
+
+        assertEquals(4, owned.size());
+        for (int count : owned.values()) {
+            assertTrue("unbalanced shard with " + count + " models", count > MODELS / 8 && count < MODELS * 3 / 8);
+        }
+    }
+
+    @Test
+    public void addingAShardOnlyMovesModelsToIt() {
+        RShardRing ring = ring(3);
+        FosRservePool added = pool();
+        RShardRing grown = ring.with("shard-3", added);
+
+        int moved = 0;
+        for (UUID modelId : models()) {
+            if (ring.pool(modelId) != grown.pool(modelId)) {
+                assertSame(added, grown.pool(modelId));
+                ++moved;
+            }
+        }
+        assertTrue("moved " + moved + " models", moved > MODELS / 8 && moved < MODELS * 3 / 8);
+    }
+
+    @Test
+    public void removingAShardOnlyMovesItsModels() {
+        RShardRing ring = ring(4);
+        FosRservePool removed = ring.get("shard-1");
+        RShardRing shrunk = ring.without("shard-1");
+
+        for (UUID modelId : models()) {
+            if (ring.pool(modelId) != removed) {
+                assertSame(ring.pool(modelId), shrunk.pool(modelId));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void lastShardCannotBeRemoved() {
+        ring(1).without("shard-0");
+    }
+
+    private RShardRing ring(int shards) {
+        Map<String, FosRservePool> shardPools = new LinkedHashMap<>();
+        for (int i = 0; i != shards; ++i) {
+            shardPools.put("shard-" + i, pool());
+        }
+        return new RShardRing(shardPools);
+    }
+
+    private FosRservePool pool() {
+        FosRservePool pool = new FosRservePool(1);
+        pools.add(pool);
+        return pool;
+    }
+
+    private static UUID[] models() {
+        Random random = new Random(0);
+        UUID[] models = new UUID[MODELS];
+        for (int i = 0; i != MODELS; ++i) {
+            models[i] = new UUID(random.nextLong(), random.nextLong());
+        }
+        return models;
+    }
+}
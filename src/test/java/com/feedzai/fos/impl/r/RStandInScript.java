@@ -0,0 +1,185 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r;
+
+import com.feedzai.fos.api.Attribute;
+import com.feedzai.fos.api.CategoricalAttribute;
+import com.feedzai.fos.api.FOSException;
+import com.feedzai.fos.api.ModelConfig;
+import com.feedzai.fos.api.NumericAttribute;
+import com.feedzai.fos.api.config.FosConfig;
+import com.feedzai.fos.impl.r.config.RManagerConfig;
+import com.feedzai.fos.impl.r.config.RModelConfig;
+import com.feedzai.fos.impl.r.rserve.Qap1StandInServer;
+import org.apache.commons.configuration.BaseConfiguration;
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPInteger;
+import org.rosuda.REngine.REXPList;
+import org.rosuda.REngine.REXPString;
+import org.rosuda.REngine.RList;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Script of the {@link Qap1StandInServer} that answers like a R session where every model is loaded, so the
+ * scorer can be exercised without R.
+ * <p/>
+ * Models have a numeric {@code amount} and a categorical {@code class}. Every prepared call is a score: each
+ * instance gets the scores {@code (amount, 1 - amount)}, as a matrix with one row per instance. A batch with a
+ * negative amount answers a R error, as a model that rejects the instance would. Every other evaluation
+ * succeeds and answers R {@code NULL}.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class RStandInScript implements Qap1StandInServer.Script {
+    /**
+     * Invocation of a prepared call, i.e. a score
+     */
+    public static final Pattern PREPARED_CALL = Pattern.compile("\\s*[.]fos[.]call[.][0-9]+[(][)]\\s*");
+
+    /**
+     * Global variable where the scorer assigns the instances
+     */
+    private static final String SCORABLE = ".fos.scorable";
+
+    private final AtomicInteger pids = new AtomicInteger(100);
+    private final AtomicInteger scores = new AtomicInteger();
+
+    @Override
+    public REXP eval(String expression, Map<String, REXP> variables) throws Exception {
+        if (expression.contains("pskill")) {
+            return null;
+        }
+        if (expression.contains("Sys.getpid()")) {
+            return new REXPInteger(pids.incrementAndGet());
+        }
+        REXP scorable = variables.get(SCORABLE);
+        if (scorable == null || !PREPARED_CALL.matcher(expression).matches()) {
+            return null;
+        }
+
+        scores.incrementAndGet();
+        double[] amounts = scorable.asList().at(0).asDoubles();
+        double[] values = new double[2 * amounts.length];
+        for (int i = 0; i != amounts.length; ++i) {
+            if (amounts[i] < 0) {
+                return error("negative amount");
+            }
+            // column major, as R matrices
+            values[i] = amounts[i];
+            values[amounts.length + i] = 1 - amounts[i];
+        }
+        return new REXPDouble(values, attributes("dim", new REXPInteger(new int[] {amounts.length, 2})));
+    }
+
+    /**
+     * @return the number of prepared calls answered with scores
+     */
+    public int getScores() {
+        return scores.get();
+    }
+
+    /**
+     * Builds the try-error answered by R when an evaluation fails
+     * @param message error message
+     * @return the try-error
+     */
+    public static REXP error(String message) {
+        return new REXPString(new String[] {"Error : " + message}, attributes("class", new REXPString("try-error")));
+    }
+
+    /**
+     * Builds an attribute list with a single attribute
+     * @param name attribute name
+     * @param value attribute value
+     * @return the attribute list
+     */
+    private static REXPList attributes(String name, REXP value) {
+        return new REXPList(new RList(new REXP[] {value}, new String[] {name}));
+    }
+
+    /**
+     * Gets the attributes of the stand-in models: the numeric amount and the class
+     * @return the attributes
+     */
+    public static List<Attribute> getAttributes() {
+        List<Attribute> attributes = new ArrayList<>();
+        attributes.add(new NumericAttribute("amount"));
+        attributes.add(new CategoricalAttribute("class", Arrays.asList("no", "yes")));
+        return attributes;
+    }
+
+    /**
+     * Creates the configuration of a stand-in model
+     * @param modelId UUID of the model
+     * @return the model configuration
+     */
+    public static ModelConfig modelConfig(UUID modelId) {
+        ModelConfig modelConfig = new ModelConfig(getAttributes(), new HashMap<String, String>());
+        modelConfig.setProperty("UUID", modelId.toString());
+        modelConfig.setProperty(RModelConfig.CLASS_INDEX, "1");
+        return modelConfig;
+    }
+
+    /**
+     * Creates the configuration of a manager of externally managed sessions on a stand-in, without metrics
+     * @param port port of the stand-in
+     * @return the manager configuration
+     */
+    public static RManagerConfig managerConfig(int port) {
+        BaseConfiguration configuration = new BaseConfiguration();
+        configuration.setProperty(RManagerConfig.PORT, port);
+        configuration.setProperty(RManagerConfig.METRICS_REPORTER, "");
+        return new RManagerConfig(new FosConfig(configuration));
+    }
+
+    /**
+     * Creates the R configuration of a stand-in model, whose model file is never read
+     * @param modelId UUID of the model
+     * @param scoreTimeout maximum time in milliseconds to wait for a score (0 for no timeout)
+     * @return the R model configuration
+     * @throws FOSException if the configuration is invalid
+     */
+    public static RModelConfig rModelConfig(UUID modelId, long scoreTimeout) throws FOSException {
+        ModelConfig modelConfig = modelConfig(modelId);
+        if (scoreTimeout > 0) {
+            modelConfig.setProperty(RModelConfig.SCORE_TIMEOUT, Long.toString(scoreTimeout));
+        }
+
+        RModelConfig rModelConfig = new RModelConfig(modelConfig, new RManagerConfig(new FosConfig(new BaseConfiguration())));
+        rModelConfig.setId(modelId);
+        rModelConfig.setModel(new File(modelId + "." + RModelConfig.MODEL_FILE_EXTENSION));
+        return rModelConfig;
+    }
+}
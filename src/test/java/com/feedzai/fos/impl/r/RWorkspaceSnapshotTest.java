@@ -0,0 +1,288 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r;
+
+import com.feedzai.fos.api.Attribute;
+import com.feedzai.fos.api.ModelConfig;
+import com.feedzai.fos.api.ModelDescriptor;
+import com.feedzai.fos.api.config.FosConfig;
+import com.feedzai.fos.impl.r.config.RManagerConfig;
+import com.feedzai.fos.impl.r.config.RModelConfig;
+import com.feedzai.fos.impl.r.rserve.FosRserve;
+import com.google.common.io.Files;
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.rosuda.REngine.Rserve.RConnection;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Restarts managers with an R workspace snapshot, checking which models are set up again.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class RWorkspaceSnapshotTest {
+    private static final UUID FIRST = UUID.fromString("6b1c0a8e-2f43-4d1a-9c55-3e2d7f0b9a11");
+    private static final UUID SECOND = UUID.fromString("c4e7a912-58b0-4f6e-8d21-0a9f3b6c7d22");
+
+    private static final Object[] INSTANCE = {"b",30.83,0,"u","g","w","v",1.25,"t","t",1,"f","g",202,0};
+
+    private static File trainedDir;
+
+    private File dir;
+    private File snapshotFile;
+    private File manifestFile;
+    private File firstModel;
+    private File secondModel;
+
+    @BeforeClass
+    public static void train() throws Exception {
+        trainedDir = Files.createTempDir();
+
+        ModelConfig modelConfig = modelConfig();
+        modelConfig.setProperty(RModelConfig.TRAIN_FUNCTION, "naiveBayes");
+        modelConfig.setProperty(RModelConfig.MODEL_SAVE_PATH, trainedDir.getAbsolutePath());
+
+        RManager trainer = new RManager(new RManagerConfig(new FosConfig(configuration(null))));
+        try {
+            trainer.trainFile(modelConfig, new File("credit-a.arff").getCanonicalPath());
+        } finally {
+            trainer.close();
+        }
+    }
+
+    @AfterClass
+    public static void deleteModel() throws Exception {
+        FileUtils.deleteDirectory(trainedDir);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDir();
+        snapshotFile = new File(dir, "workspace.RData");
+        manifestFile = new File(snapshotFile.getAbsolutePath() + "." + RWorkspaceSnapshot.MANIFEST_EXTENSION);
+
+        File trained = new File(trainedDir, "credit-a.arff." + RModelConfig.MODEL_FILE_EXTENSION);
+        firstModel = new File(dir, "first." + RModelConfig.MODEL_FILE_EXTENSION);
+        secondModel = new File(dir, "second." + RModelConfig.MODEL_FILE_EXTENSION);
+        Files.copy(trained, firstModel);
+        Files.copy(trained, secondModel);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void unchangedModelsSkipTheirSetup() throws Exception {
+        double[] expected;
+        RManager rManager = manager();
+        try {
+            add(rManager, FIRST, firstModel);
+            add(rManager, SECOND, secondModel);
+            assertFalse("Model reused without a snapshot", snapshot(rManager).isReused(environment(FIRST)));
+            expected = rManager.getScorer().score(Arrays.asList(FIRST), INSTANCE).get(0);
+        } finally {
+            rManager.close();
+        }
+        assertTrue("Snapshot not saved on close", snapshotFile.exists() && manifestFile.exists());
+
+        rManager = manager();
+        try {
+            add(rManager, FIRST, firstModel);
+            add(rManager, SECOND, secondModel);
+            assertTrue("Unchanged model set up again", snapshot(rManager).isReused(environment(FIRST)));
+            assertTrue("Unchanged model set up again", snapshot(rManager).isReused(environment(SECOND)));
+            assertArrayEquals(expected, rManager.getScorer().score(Arrays.asList(FIRST), INSTANCE).get(0), 1e-9);
+        } finally {
+            rManager.close();
+        }
+    }
+
+    @Test
+    public void changedModelsAreSetUpAgain() throws Exception {
+        RManager rManager = manager();
+        try {
+            add(rManager, FIRST, firstModel);
+            add(rManager, SECOND, secondModel);
+        } finally {
+            rManager.close();
+        }
+
+        assertTrue(firstModel.setLastModified(firstModel.lastModified() + 60000));
+
+        rManager = manager();
+        try {
+            add(rManager, FIRST, firstModel);
+            add(rManager, SECOND, secondModel);
+            assertFalse("Changed model reused", snapshot(rManager).isReused(environment(FIRST)));
+            assertTrue("Unchanged model set up again", snapshot(rManager).isReused(environment(SECOND)));
+            assertArrayEquals(rManager.getScorer().score(Arrays.asList(SECOND), INSTANCE).get(0),
+                              rManager.getScorer().score(Arrays.asList(FIRST), INSTANCE).get(0), 1e-9);
+        } finally {
+            rManager.close();
+        }
+    }
+
+    @Test
+    public void restoredModelsNoLongerConfiguredAreRemoved() throws Exception {
+        RManager rManager = manager();
+        try {
+            add(rManager, FIRST, firstModel);
+            add(rManager, SECOND, secondModel);
+        } finally {
+            rManager.close();
+        }
+
+        rManager = manager();
+        try {
+            add(rManager, FIRST, firstModel);
+            rManager.saveSnapshot();
+
+            Properties manifest = manifest();
+            assertTrue(manifest.containsKey(environment(FIRST)));
+            assertFalse("Removed model kept in the manifest", manifest.containsKey(environment(SECOND)));
+
+            List<String> saved = savedObjects();
+            assertTrue(saved.contains(environment(FIRST)));
+            assertFalse("Removed model kept in the snapshot", saved.contains(environment(SECOND)));
+        } finally {
+            rManager.close();
+        }
+
+        rManager = manager();
+        try {
+            add(rManager, FIRST, firstModel);
+            assertTrue(snapshot(rManager).isReused(environment(FIRST)));
+        } finally {
+            rManager.close();
+        }
+    }
+
+    @Test
+    public void snapshotIsMovedIntoPlace() throws Exception {
+        File tmpFile = new File(snapshotFile.getAbsolutePath() + ".tmp");
+        File tmpManifest = new File(manifestFile.getAbsolutePath() + ".tmp");
+
+        RManager rManager = manager();
+        try {
+            add(rManager, FIRST, firstModel);
+            rManager.saveSnapshot();
+            assertTrue(snapshotFile.exists() && manifestFile.exists());
+            assertFalse("Temporary snapshot left behind", tmpFile.exists() || tmpManifest.exists());
+            assertFalse(manifest().containsKey(environment(SECOND)));
+
+            // the previous snapshot is replaced
+            add(rManager, SECOND, secondModel);
+            rManager.saveSnapshot();
+            assertFalse("Temporary snapshot left behind", tmpFile.exists() || tmpManifest.exists());
+            assertTrue(manifest().containsKey(environment(SECOND)));
+            assertTrue(savedObjects().contains(environment(SECOND)));
+        } finally {
+            rManager.close();
+        }
+    }
+
+    /**
+     * Adds a model with the trained naive bayes
+     * @param rManager manager where the model is added
+     * @param modelId UUID of the model
+     * @param model model file
+     */
+    private static void add(RManager rManager, UUID modelId, File model) throws Exception {
+        ModelConfig modelConfig = modelConfig();
+        modelConfig.setProperty("UUID", modelId.toString());
+        modelConfig.setProperty(RModelConfig.PREDICT_FUNCTION_ARGUMENTS, "type = 'raw'");
+        rManager.addModel(modelConfig, new ModelDescriptor(ModelDescriptor.Format.BINARY, model.getAbsolutePath()));
+    }
+
+    /**
+     * Lists the objects of the snapshot file, loaded in a session of its own
+     * @return the names of the saved objects
+     */
+    private List<String> savedObjects() throws Exception {
+        RConnection connection = new RConnection(FosRserve.DEFAULT_HOST, FosRserve.DEFAULT_PORT);
+        try {
+            return Arrays.asList(connection.eval(
+                    String.format("load(file = '%s')", snapshotFile.getAbsolutePath())).asStrings());
+        } finally {
+            connection.close();
+        }
+    }
+
+    private Properties manifest() throws Exception {
+        Properties properties = new Properties();
+        try (InputStream is = new FileInputStream(manifestFile)) {
+            properties.load(is);
+        }
+        return properties;
+    }
+
+    private RManager manager() throws Exception {
+        return new RManager(new RManagerConfig(new FosConfig(configuration(snapshotFile))));
+    }
+
+    private static RWorkspaceSnapshot snapshot(RManager rManager) {
+        return rManager.getScorer().getSnapshot();
+    }
+
+    private static String environment(UUID modelId) {
+        return "x" + modelId.toString().replace("-", "");
+    }
+
+    private static ModelConfig modelConfig() {
+        List<Attribute> attributes = RIntegrationTest.getAttributes();
+        ModelConfig modelConfig = new ModelConfig(attributes, new HashMap<String, String>());
+        modelConfig.setProperty(RModelConfig.LIBRARIES, "e1071, foreign");
+        modelConfig.setProperty(RModelConfig.CLASS_INDEX, Integer.valueOf(attributes.size() - 1).toString());
+        return modelConfig;
+    }
+
+    private static BaseConfiguration configuration(File snapshot) {
+        BaseConfiguration configuration = new BaseConfiguration();
+        configuration.setProperty(FosConfig.FACTORY_NAME, RManagerFactory.class.getName());
+        if (snapshot != null) {
+            configuration.setProperty(RManagerConfig.SNAPSHOT, snapshot.getAbsolutePath());
+        }
+        return configuration;
+    }
+}
@@ -25,10 +25,12 @@ package com.feedzai.fos.impl.r;
 import com.feedzai.fos.api.Attribute;
 import com.feedzai.fos.api.FOSException;
 import com.feedzai.fos.api.ModelConfig;
+import com.feedzai.fos.api.ModelDescriptor;
 import com.feedzai.fos.api.config.FosConfig;
 import com.feedzai.fos.impl.r.config.RManagerConfig;
 import com.feedzai.fos.impl.r.config.RModelConfig;
 import com.feedzai.fos.impl.r.rserve.FosRserve;
+import com.google.common.collect.ImmutableList;
 import org.apache.commons.configuration.BaseConfiguration;
 import org.jpmml.model.JAXBUtil;
 import org.junit.BeforeClass;
@@ -38,12 +40,18 @@ import javax.xml.transform.stream.StreamSource;
 import java.io.File;
 import java.io.FileInputStream;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.zip.GZIPInputStream;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 /**
  * @author Ricardo Ferreira (ricardo.ferreira@feedzai.com)
  */
@@ -122,5 +130,98 @@ public class RandomForestPMMLProducerConsumerTest {
     }
 
 
+    @Test
+    public void testJvmScoring() throws Exception {
+        ModelConfig modelConfig = setupConfig();
+        modelConfig.setProperty(RModelConfig.PREDICT_FUNCTION_ARGUMENTS, "type = 'prob'");
+        modelConfig.setProperty(RModelConfig.JVM_SCORING, "true");
+        RManager rManager = setupManager();
+        try {
+            UUID uuid  = rManager.trainAndAdd(modelConfig, RIntegrationTest.getTrainingInstances());
+
+            Object[] instance = {"b",30.83,0,"u","g","w","v",1.25,"t","t",1,"f","g",202,0};
+            double[] scores = rManager.getScorer().score(uuid, instance);
+
+            assertEquals("2 probabilities (not fraud, fraud)", 2, scores.length);
+            assertEquals("Probabilities must add up to 1", 1, scores[0] + scores[1], 1e-9);
+            assertEquals("The instance must be scored in the JVM", 1, rManager.getScorer().getModelMetrics(uuid).getJvmScores());
+
+            rManager.getScorer().score(ImmutableList.of(uuid), instance);
+            assertEquals("Several models must be scored in the JVM", 2, rManager.getScorer().getModelMetrics(uuid).getJvmScores());
+
+            rManager.getScorer().score(uuid, ImmutableList.of(instance, instance));
+            assertEquals("Batches must be scored in the JVM", 4, rManager.getScorer().getModelMetrics(uuid).getJvmScores());
+        } finally {
+            rManager.close();
+        }
+    }
+
+    @Test
+    public void testJvmScoringMatchesR() throws Exception {
+        ModelConfig modelConfig = setupConfig();
+        modelConfig.setProperty(RModelConfig.PREDICT_FUNCTION_ARGUMENTS, "type = 'prob'");
+        modelConfig.setProperty(RModelConfig.JVM_SCORING, "true");
+        RManager rManager = setupManager();
+        try {
+            UUID jvm = rManager.trainAndAdd(modelConfig, RIntegrationTest.getTrainingInstances());
+
+            // the same model file, scored in R
+            ModelConfig rConfig = setupConfig();
+            rConfig.setProperty(RModelConfig.PREDICT_FUNCTION_ARGUMENTS, "type = 'prob'");
+            UUID r = rManager.addModel(rConfig, new ModelDescriptor(ModelDescriptor.Format.BINARY,
+                                                                    modelConfig.getProperty(RModelConfig.MODEL_FILE)));
+
+            RScorer scorer = rManager.getScorer();
+            List<Object[]> scorables = new ArrayList<>();
+            for (Object[] instance : RIntegrationTest.getTrainingInstances()) {
+                Object[] scorable = Arrays.copyOf(instance, instance.length - 1);
+                scorables.add(scorable);
+                assertArrayEquals("JVM and R scores must match", scorer.score(r, scorable), scorer.score(jvm, scorable), 1e-9);
+
+                List<double[]> both = scorer.score(ImmutableList.of(jvm, r), scorable);
+                assertArrayEquals("JVM and R scores must match", both.get(1), both.get(0), 1e-9);
+            }
+
+            List<double[]> jvmBatch = scorer.score(jvm, scorables);
+            List<double[]> rBatch = scorer.score(r, scorables);
+            for (int i = 0; i != scorables.size(); ++i) {
+                assertArrayEquals("JVM and R batch scores must match", rBatch.get(i), jvmBatch.get(i), 1e-9);
+            }
+
+            assertTrue("The forest must score the instances", scorer.getModelMetrics(jvm).getJvmScores() > 0);
+            assertEquals("Models scored in R are not scored in the JVM", 0, scorer.getModelMetrics(r).getJvmScores());
+        } finally {
+            rManager.close();
+        }
+    }
+
+    @Test
+    public void testJvmScoringRefusesDifferentScores() throws Exception {
+        Object[] instance = {"b",30.83,0,"u","g","w","v",1.25,"t","t",1,"f","g",202,0};
+
+        // predict returns the class, not the probabilities of the forest
+        ModelConfig modelConfig = setupConfig();
+        modelConfig.setProperty(RModelConfig.JVM_SCORING, "true");
+
+        // the probabilities are transformed
+        ModelConfig transformConfig = setupConfig();
+        transformConfig.setProperty(RModelConfig.PREDICT_FUNCTION_ARGUMENTS, "type = 'prob'");
+        transformConfig.setProperty(RModelConfig.PREDICT_RESULT_TRANSFORM, "r <- r[, 2, drop = FALSE]");
+        transformConfig.setProperty(RModelConfig.JVM_SCORING, "true");
 
+        RManager rManager = setupManager();
+        try {
+            UUID uuid = rManager.trainAndAdd(modelConfig, RIntegrationTest.getTrainingInstances());
+            UUID transformed = rManager.addModel(transformConfig, new ModelDescriptor(ModelDescriptor.Format.BINARY,
+                                                                                      modelConfig.getProperty(RModelConfig.MODEL_FILE)));
+
+            RScorer scorer = rManager.getScorer();
+            assertEquals("The class is scored", 1, scorer.score(uuid, instance).length);
+            assertEquals("The transformed probability is scored", 1, scorer.score(transformed, instance).length);
+            assertEquals("The model must be scored in R", 0, scorer.getModelMetrics(uuid).getJvmScores());
+            assertEquals("The model must be scored in R", 0, scorer.getModelMetrics(transformed).getJvmScores());
+        } finally {
+            rManager.close();
+        }
+    }
 }
@@ -0,0 +1,154 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.forest;
+
+import com.feedzai.fos.api.FOSException;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks the scores of a {@link BinaryForest} and the validation of its file.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class BinaryForestTest {
+    private static final List<String> NAMES = Arrays.asList("x", "color");
+
+    private static final List<Map<String, Integer>> LEVELS =
+            Arrays.<Map<String, Integer>>asList(null, ImmutableMap.of("red", 0, "green", 1, "blue", 2));
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("fos", ".forest");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void forestVotesAsItsTrees() throws Exception {
+        write(new int[] {1, 4}, new int[] {2, 5});
+        BinaryForest forest = BinaryForest.map(file, NAMES, LEVELS);
+
+        assertEquals(2, forest.getTrees());
+        assertArrayEquals(new String[] {"no", "yes"}, forest.getClasses());
+        assertArrayEquals(new double[] {0.5, 0.5}, forest.score(new double[] {0, 1}), 0);
+        assertArrayEquals(new double[] {0, 1}, forest.score(new double[] {3, 1}), 0);
+        assertArrayEquals(new double[] {1, 0}, forest.score(new double[] {0, 2}), 0);
+        assertNull(forest.score(new double[] {Double.NaN, 0}));
+    }
+
+    @Test(expected = FOSException.class)
+    public void childBeforeItsParentIsRejected() throws Exception {
+        // the left child of the root of the second tree is the root itself: scores would never end
+        write(new int[] {1, 3}, new int[] {2, 5});
+        BinaryForest.map(file, NAMES, LEVELS);
+    }
+
+    @Test(expected = FOSException.class)
+    public void childInAnotherTreeIsRejected() throws Exception {
+        // the right child of the root of the first tree is in the second tree
+        write(new int[] {1, 4}, new int[] {4, 5});
+        BinaryForest.map(file, NAMES, LEVELS);
+    }
+
+    @Test(expected = FOSException.class)
+    public void truncatedFileIsRejected() throws Exception {
+        write(new int[] {1, 4}, new int[] {2, 5});
+        new FileOutputStream(file, true).getChannel().truncate(file.length() - 8).close();
+        BinaryForest.map(file, NAMES, LEVELS);
+    }
+
+    /**
+     * Writes a forest of two trees with three nodes each: the first one splits x at 2 and the second one sends the
+     * red and blue colors left. The left leaves vote "no" and the right ones "yes".
+     *
+     * @param left left child of the root of each tree
+     * @param right right child of the root of each tree
+     * @throws IOException if the file could not be written
+     */
+    private void write(int[] left, int[] right) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.write(BinaryForest.MAGIC.getBytes(Charsets.US_ASCII));
+            out.writeInt(BinaryForest.VERSION);
+            out.writeInt(2);
+            out.writeInt(2);
+            out.writeInt(2);
+            writeString(out, "no");
+            writeString(out, "yes");
+            writeString(out, "x");
+            out.writeInt(0);
+            writeString(out, "color");
+            out.writeInt(3);
+            writeString(out, "red");
+            writeString(out, "green");
+            writeString(out, "blue");
+
+            for (int offset : new int[] {0, 3, 6}) {
+                out.writeInt(offset);
+            }
+            for (int variable : new int[] {0, -1, -1, 1, -1, -1}) {
+                out.writeInt(variable);
+            }
+            for (int child : new int[] {left[0], -1, -1, left[1], -1, -1}) {
+                out.writeInt(child);
+            }
+            for (int child : new int[] {right[0], -1, -1, right[1], -1, -1}) {
+                out.writeInt(child);
+            }
+            for (double split : new double[] {2, 0, 0, 5, 0, 0}) {
+                out.writeDouble(split);
+            }
+            for (double value : new double[] {0, 0, 1, 0, 0, 1}) {
+                out.writeDouble(value);
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
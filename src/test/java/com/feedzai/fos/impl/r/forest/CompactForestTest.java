@@ -0,0 +1,80 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.forest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks the scores of a {@link CompactForest}.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class CompactForestTest {
+
+    @Test
+    public void classificationScoresTheVotes() {
+        // tree 0: x <= 1 ? class 0 : class 1; tree 1: level in {0, 2} ? class 1 : class 0
+        CompactForest forest = new CompactForest(
+                new int[] {0, 3},
+                new byte[] {CompactForest.LESS_OR_EQUAL, CompactForest.LEAF, CompactForest.LEAF,
+                             CompactForest.IN, CompactForest.LEAF, CompactForest.LEAF},
+                new int[] {0, 0, 0, 1, 0, 0},
+                new double[] {1, 0, 0, 0, 0, 0},
+                new long[] {0, 0, 0, 5, 0, 0},
+                new int[] {1, -1, -1, 4, -1, -1},
+                new int[] {2, -1, -1, 5, -1, -1},
+                new double[] {0, 0, 1, 0, 1, 0},
+                2, 2);
+
+        assertEquals(2, forest.getTrees());
+        assertEquals(6, forest.getNodes());
+        assertArrayEquals(new double[] {0.5, 0.5}, forest.score(new double[] {1, 0}), 0);
+        assertArrayEquals(new double[] {0, 1}, forest.score(new double[] {2, 2}), 0);
+        assertArrayEquals(new double[] {1, 0}, forest.score(new double[] {0, 1}), 0);
+        assertNull(forest.score(new double[] {Double.NaN, 1}));
+    }
+
+    @Test
+    public void regressionScoresTheMean() {
+        // tree 0: x > 1 ? 10 : 20; tree 1: always 30
+        CompactForest forest = new CompactForest(
+                new int[] {0, 3},
+                new byte[] {CompactForest.GREATER_THAN, CompactForest.LEAF, CompactForest.LEAF, CompactForest.LEAF},
+                new int[] {0, 0, 0, 0},
+                new double[] {1, 0, 0, 0},
+                new long[] {0, 0, 0, 0},
+                new int[] {1, -1, -1, -1},
+                new int[] {2, -1, -1, -1},
+                new double[] {0, 10, 20, 30},
+                1, 0);
+
+        assertArrayEquals(new double[] {20}, forest.score(new double[] {2}), 1e-12);
+        assertArrayEquals(new double[] {25}, forest.score(new double[] {1}), 1e-12);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.forest;
+
+import com.feedzai.fos.api.FOSException;
+import com.google.common.collect.ImmutableMap;
+import org.dmg.pmml.Array;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks the conversion of a PMML tree ensemble by the {@link PMMLForestConverter}.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class PMMLForestConverterTest {
+    private static final double RED = 0;
+    private static final double GREEN = 1;
+    private static final double BLUE = 2;
+
+    @Test
+    public void forestVotesAsItsTrees() throws Exception {
+        CompactForest forest = convert(Arrays.asList("x", "color"));
+
+        assertEquals(3, forest.getTrees());
+        assertEquals(2, forest.getClasses());
+        assertArrayEquals(new double[] {2 / 3d, 1 / 3d}, forest.score(new double[] {0, RED}), 1e-12);
+        assertArrayEquals(new double[] {1 / 3d, 2 / 3d}, forest.score(new double[] {3, GREEN}), 1e-12);
+        assertArrayEquals(new double[] {2 / 3d, 1 / 3d}, forest.score(new double[] {2, BLUE}), 1e-12);
+    }
+
+    @Test
+    public void missingValuesAreNotScored() throws Exception {
+        CompactForest forest = convert(Arrays.asList("x", "color"));
+
+        assertNull(forest.score(new double[] {Double.NaN, RED}));
+        assertNull(forest.score(new double[] {0, Double.NaN}));
+    }
+
+    @Test(expected = FOSException.class)
+    public void unknownFieldsAreRejected() throws Exception {
+        convert(Arrays.asList("x", "colour"));
+    }
+
+    @Test
+    public void arrayValuesAreUnquoted() {
+        Array array = new Array();
+        array.setValue(" \"a b\"  c \"d\\\"e\" ");
+
+        assertEquals(Arrays.asList("a b", "c", "d\"e"), PMMLForestConverter.parseArray(array));
+    }
+
+    /**
+     * Converts the forest fixture for rows with the given feature names, the second one being the categorical color
+     * @param names feature names
+     * @return the forest
+     * @throws Exception if the forest could not be converted
+     */
+    private CompactForest convert(List<String> names) throws Exception {
+        Map<String, Integer> colors = ImmutableMap.of("red", 0, "green", 1, "blue", 2);
+        List<Map<String, Integer>> levels = Arrays.asList(null, colors);
+        File file = new File(getClass().getResource("/forest/forest.pmml").toURI());
+
+        return new PMMLForestConverter(names, levels).convert(file);
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.rserve;
+
+import com.feedzai.fos.api.FOSException;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPDouble;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Exercises the {@link FosRserveAsync} against the {@link Qap1StandInServer}, without R.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class FosRserveAsyncTest {
+    /**
+     * Number evaluated by a request, inside the try block added by {@link FosRserve}
+     */
+    private static final Pattern NUMBER = Pattern.compile("(?s).*\\{\\s*([0-9]+)\\s*\\}.*");
+
+    private final List<String> evaluated = new CopyOnWriteArrayList<>();
+
+    private Qap1StandInServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        // every evaluation answers the number it was given, in the order it was received
+        server = new Qap1StandInServer(new Qap1StandInServer.Script() {
+            @Override
+            public REXP eval(String expression, Map<String, REXP> variables) {
+                Matcher number = NUMBER.matcher(expression);
+                if (!number.matches()) {
+                    return null;
+                }
+                evaluated.add(number.group(1));
+                return new REXPDouble(Double.parseDouble(number.group(1)));
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void requestsRunInSubmissionOrder() throws Exception {
+        FosRserveAsync async = new FosRserveAsync(new FosRserve("localhost", server.getPort(), false), 100);
+        try {
+            List<ListenableFuture<double[]>> futures = new ArrayList<>();
+            for (int i = 0; i != 50; ++i) {
+                futures.add(async.evalDoubles(String.valueOf(i)));
+            }
+
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i != futures.size(); ++i) {
+                assertArrayEquals(new double[] {i}, futures.get(i).get(), 0);
+                expected.add(String.valueOf(i));
+            }
+            assertEquals(expected, evaluated);
+        } finally {
+            async.close();
+        }
+    }
+
+    @Test
+    public void fullQueueFailsImmediately() throws Exception {
+        FosRserveAsync async = new FosRserveAsync(new FosRserve("localhost", server.getPort(), false), 1);
+        try {
+            server.setLatency(300, 0);
+            ListenableFuture<double[]> running = async.evalDoubles("1");
+            waitForEmptyQueue(async);
+            ListenableFuture<double[]> queued = async.evalDoubles("2");
+            assertEquals(1, async.getQueueDepth());
+
+            long start = System.currentTimeMillis();
+            ListenableFuture<double[]> rejected = async.evalDoubles("3");
+            assertTrue("Full queue blocked the caller", System.currentTimeMillis() - start < 300);
+            assertTrue(rejected.isDone());
+            assertFailed(rejected);
+
+            assertArrayEquals(new double[] {1}, running.get(), 0);
+            assertArrayEquals(new double[] {2}, queued.get(), 0);
+        } finally {
+            async.close();
+        }
+    }
+
+    @Test
+    public void closeRunsQueuedRequests() throws Exception {
+        FosRserveAsync async = new FosRserveAsync(new FosRserve("localhost", server.getPort(), false), 10);
+        server.setLatency(50, 0);
+        List<ListenableFuture<double[]>> futures = new ArrayList<>();
+        for (int i = 0; i != 5; ++i) {
+            futures.add(async.evalDoubles(String.valueOf(i)));
+        }
+        async.close();
+
+        for (int i = 0; i != futures.size(); ++i) {
+            assertArrayEquals(new double[] {i}, futures.get(i).get(), 0);
+        }
+        assertFailed(async.evalDoubles("5"));
+    }
+
+    @Test
+    public void closeIsBounded() throws Exception {
+        FosRserveAsync async = new FosRserveAsync(new FosRserve("localhost", server.getPort(), false), 10, 100);
+        server.setLatency(2000, 0);
+        ListenableFuture<double[]> running = async.evalDoubles("1");
+        waitForEmptyQueue(async);
+        ListenableFuture<double[]> queued = async.evalDoubles("2");
+
+        long start = System.currentTimeMillis();
+        async.close();
+        assertTrue("Close waited for the slow request", System.currentTimeMillis() - start < 1000);
+
+        // the pending request is cancelled and the one in progress fails when the connection is closed
+        assertTrue(queued.isCancelled());
+        assertFailed(running);
+    }
+
+    @Test
+    public void sessionThreadsHaveDistinctNames() throws Exception {
+        List<FosRserveAsync> sessions = new ArrayList<>();
+        try {
+            for (int i = 0; i != 3; ++i) {
+                FosRserveAsync async = new FosRserveAsync(new FosRserve("localhost", server.getPort(), false), 1);
+                sessions.add(async);
+                async.evalDoubles("1").get();
+            }
+
+            Set<String> names = new HashSet<>();
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().startsWith("fos-r-session-")) {
+                    assertTrue("Duplicate thread name " + thread.getName(), names.add(thread.getName()));
+                }
+            }
+            assertTrue(names.size() >= sessions.size());
+        } finally {
+            for (FosRserveAsync async : sessions) {
+                async.close();
+            }
+        }
+    }
+
+    /**
+     * Waits until the session thread took every queued request
+     * @param async asynchronous session
+     */
+    private static void waitForEmptyQueue(FosRserveAsync async) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (async.getQueueDepth() != 0) {
+            assertTrue("Queued request not taken", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Checks that a request failed with a {@link FOSException}
+     * @param future result of the request
+     */
+    private static void assertFailed(ListenableFuture<?> future) throws InterruptedException {
+        try {
+            future.get();
+            fail("Request did not fail");
+        } catch (ExecutionException e) {
+            assertTrue("Unexpected failure " + e.getCause(), e.getCause() instanceof FOSException);
+        } catch (CancellationException e) {
+            fail("Request was cancelled instead of failing");
+        }
+    }
+}
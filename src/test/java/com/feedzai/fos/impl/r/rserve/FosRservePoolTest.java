@@ -0,0 +1,274 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.rserve;
+
+import com.feedzai.fos.api.FOSException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPInteger;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Exercises the {@link FosRservePool} against the {@link Qap1StandInServer}, without R.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class FosRservePoolTest {
+    private static final long WAIT_MILLIS = 5000;
+
+    private final AtomicInteger pids = new AtomicInteger(100);
+    private final List<String> kills = new CopyOnWriteArrayList<>();
+    private volatile boolean forking = true;
+
+    private Qap1StandInServer server;
+    private FosRservePool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new Qap1StandInServer(new Qap1StandInServer.Script() {
+            @Override
+            public REXP eval(String expression, Map<String, REXP> variables) throws Exception {
+                if (expression.contains("pskill")) {
+                    kills.add(expression);
+                    return null;
+                }
+                if (expression.contains("Sys.getpid()")) {
+                    // a non forking server reports that it is not on unix
+                    return new REXPInteger(forking ? pids.incrementAndGet() : -1);
+                }
+                REXP x = variables.get("x");
+                return x != null ? new REXPDouble(x.asDoubles()) : null;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (pool != null) {
+            pool.close();
+        }
+        server.close();
+    }
+
+    @Test
+    public void abandonedSessionIsKilledAndReplacedFromStandby() throws Exception {
+        for (boolean direct : new boolean[] {false, true}) {
+            pool = new FosRservePool(new FosRserveEndpoint("localhost", server.getPort(), direct), 1, 1);
+            waitForStandby();
+
+            FosRserve abandoned = pool.borrow();
+            waitForStandby();
+            FosRPreparedCall call = abandoned.prepare("sum(x)", "x");
+
+            server.setLatency(500, 0);
+            try {
+                abandoned.invokeDoubles(call, null, 50, new REXPDouble(1));
+                fail("Expired deadline not reported");
+            } catch (FOSException e) {
+                assertFalse(abandoned.isConnected());
+            } finally {
+                server.setLatency(0, 0);
+            }
+            waitForKill(abandoned.getPid());
+            for (String kill : kills) {
+                assertTrue("Kill does not spare the daemon: " + kill, kill.contains("Sys.getpid() != "));
+            }
+
+            // the standby created while the abandoned session was in use replaces it
+            int standby = abandoned.getPid() + 1;
+            pool.release(abandoned);
+            long start = System.currentTimeMillis();
+            FosRserve replacement = pool.borrow();
+            assertEquals(standby, replacement.getPid());
+            assertTrue("Replacement not taken from the standby reserve", System.currentTimeMillis() - start < 500);
+            assertEquals(1.0, replacement.invokeDoubles(replacement.prepare("sum(x)", "x"), null, new REXPDouble(1))[0], 0);
+            pool.release(replacement);
+
+            pool.close();
+            pool = null;
+        }
+    }
+
+    @Test
+    public void abandonedSessionOfANonForkingServerIsNotKilled() throws Exception {
+        forking = false;
+        for (boolean direct : new boolean[] {false, true}) {
+            pool = new FosRservePool(new FosRserveEndpoint("localhost", server.getPort(), direct), 1);
+            FosRserve abandoned = pool.borrow();
+            assertEquals(-1, abandoned.getPid());
+            FosRPreparedCall call = abandoned.prepare("sum(x)", "x");
+
+            server.setLatency(500, 0);
+            try {
+                abandoned.invokeDoubles(call, null, 50, new REXPDouble(1));
+                fail("Expired deadline not reported");
+            } catch (FOSException e) {
+                assertFalse(abandoned.isConnected());
+            } finally {
+                server.setLatency(0, 0);
+            }
+            pool.release(abandoned);
+
+            pool.close();
+            pool = null;
+        }
+        // every session runs in the daemon, killing one would kill them all
+        Thread.sleep(200);
+        assertTrue("Daemon killed: " + kills, kills.isEmpty());
+    }
+
+    @Test
+    public void warmOnlyTakesAvailableSessions() throws Exception {
+        pool = new FosRservePool(new FosRserveEndpoint("localhost", server.getPort(), false), 2);
+        FosRserve first = pool.borrow();
+        FosRserve second = pool.borrow();
+        pool.release(first);
+        pool.release(second);
+
+        final AtomicInteger applied = new AtomicInteger();
+        FosRserveInitializer initializer = new FosRserveInitializer() {
+            @Override
+            public void initialize(FosRserve rserve) {
+                applied.incrementAndGet();
+            }
+        };
+        pool.register("counter", initializer);
+        assertEquals(1, applied.get());
+
+        // both sessions are idle: the one that wasn't validated is synchronized
+        pool.warm();
+        assertEquals(2, applied.get());
+
+        // with every session in use warming returns right away
+        pool.register("counter", initializer);
+        first = pool.borrow();
+        second = pool.borrow();
+        Thread warming = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pool.warm();
+            }
+        });
+        warming.start();
+        warming.join(WAIT_MILLIS);
+        assertFalse("Warming blocked on a busy pool", warming.isAlive());
+        pool.release(first);
+        pool.release(second);
+    }
+
+    @Test
+    public void borrowWaitsForAReleasedSession() throws Exception {
+        pool = new FosRservePool(new FosRserveEndpoint("localhost", server.getPort(), false), 1);
+        FosRserve session = pool.borrow();
+
+        final CountDownLatch borrowed = new CountDownLatch(1);
+        Thread waiting = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pool.release(pool.borrow());
+                    borrowed.countDown();
+                } catch (FOSException e) {
+                    // reported by the latch
+                }
+            }
+        });
+        waiting.start();
+        assertFalse("Borrowed more sessions than the pool size", borrowed.await(200, TimeUnit.MILLISECONDS));
+
+        pool.release(session);
+        assertTrue("Released session not handed to the waiting thread", borrowed.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void closeFailsWaitingBorrowers() throws Exception {
+        pool = new FosRservePool(new FosRserveEndpoint("localhost", server.getPort(), false), 1);
+        pool.borrow();
+
+        final CountDownLatch failed = new CountDownLatch(1);
+        Thread waiting = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pool.borrow();
+                } catch (FOSException e) {
+                    failed.countDown();
+                }
+            }
+        });
+        waiting.start();
+        Thread.sleep(100);
+
+        pool.close();
+        pool = null;
+        assertTrue("Waiting borrower not released by close", failed.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Waits until the standby session of the pool is ready
+     */
+    private void waitForStandby() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (pool.getReserveSize() == 0) {
+            assertTrue("Standby session not created", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Waits until the R process of a session is killed
+     * @param pid PID of the R process
+     */
+    private void waitForKill(int pid) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (!killed(pid)) {
+            assertTrue("R process " + pid + " not killed", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private boolean killed(int pid) {
+        for (String kill : kills) {
+            if (kill.contains("pskill(" + pid + ",")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.rserve;
+
+import com.feedzai.fos.impl.r.RStandInScript;
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPInteger;
+import org.rosuda.REngine.REXPString;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs a {@link Qap1StandInServer} in its own process, in place of the R executable of a {@link RserveProcess},
+ * so that the {@link RserveSupervisor} can be exercised without R.
+ * <p/>
+ * It takes the arguments the supervisor gives to R, answers the liveness probe with the owner token and scores
+ * with the {@link RStandInScript}. {@code Sys.getpid()} answers the PID of this process, and {@link #LOADS} the
+ * number of models loaded since it started. It exits when its standard input is closed, i.e. with the test.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class Qap1StandInProcess {
+    /**
+     * Expression answered with the number of models loaded in this process
+     */
+    public static final String LOADS = "fos.standin.loads";
+
+    private static final Pattern OWNER = Pattern.compile("[.]fos[.]owner <- '([^']*)'");
+    private static final Pattern PORT = Pattern.compile("port=([0-9]+)");
+
+    public static void main(String[] args) throws Exception {
+        String source = args[args.length - 1];
+        Matcher owner = OWNER.matcher(source);
+        Matcher port = PORT.matcher(source);
+        if (!owner.find() || !port.find()) {
+            throw new IllegalArgumentException("Not a RServe startup script: " + source);
+        }
+
+        final String token = owner.group(1);
+        final int pid = Integer.parseInt(ManagementFactory.getRuntimeMXBean().getName().split("@")[0]);
+        final AtomicInteger loads = new AtomicInteger();
+        final RStandInScript models = new RStandInScript();
+        Qap1StandInServer server = new Qap1StandInServer(new Qap1StandInServer.Script() {
+            @Override
+            public REXP eval(String expression, Map<String, REXP> variables) throws Exception {
+                if (expression.contains(".fos.owner")) {
+                    return new REXPString(token);
+                }
+                if (expression.contains("pskill")) {
+                    return null;
+                }
+                if (expression.contains("Sys.getpid()")) {
+                    return new REXPInteger(pid);
+                }
+                if (expression.contains(LOADS)) {
+                    return new REXPInteger(loads.get());
+                }
+                if (expression.contains("$modelname <- load (")) {
+                    loads.incrementAndGet();
+                }
+                return models.eval(expression, variables);
+            }
+        }, Integer.parseInt(port.group(1)));
+
+        while (System.in.read() >= 0) {
+            // the supervisor never writes, the read returns when it exits or stops this process
+        }
+        server.close();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,483 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.rserve;
+
+import com.google.common.base.Charsets;
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPNull;
+import org.rosuda.REngine.Rserve.protocol.REXPFactory;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Stand-in for a RServe daemon that speaks the server side of QAP1 without R.
+ * <p/>
+ * Each connection keeps its own global variables: assignments always succeed and store the decoded value, and
+ * evaluations are answered by a {@link Script} that sees the expression and the variables of the connection.
+ * Evaluations can be delayed and made to fail, so the pooling, deadline and throughput behaviour of the clients
+ * can be exercised and benchmarked on machines without R.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class Qap1StandInServer implements Closeable {
+    /**
+     * Identification sent on connect: RServe 0103 speaking QAP1, without authentication
+     */
+    private static final String ID = "Rsrv0103QAP1\r\n\r\n--------------\r\n";
+
+    private static final int CMD_VOID_EVAL = 0x002;
+    private static final int CMD_EVAL = 0x003;
+    private static final int CMD_SHUTDOWN = 0x004;
+    private static final int CMD_SET_SEXP = 0x020;
+    private static final int RESP_OK = 0x10001;
+    private static final int RESP_ERR = 0x10002;
+
+    /**
+     * Error code of a failed evaluation
+     */
+    private static final int ERR_EVALUATION = 127;
+    /**
+     * Error code of an unsupported command
+     */
+    private static final int ERR_UNSUPPORTED = 0x4d;
+
+    private static final int DT_SEXP = 10;
+    private static final int DT_LARGE = 64;
+
+    /**
+     * Answers an evaluation
+     */
+    public interface Script {
+        /**
+         * Evaluates an expression
+         * @param expression R source sent by the client
+         * @param variables global variables assigned in the connection
+         * @return the result (null for R NULL)
+         * @throws Exception answered as an evaluation error
+         */
+        REXP eval(String expression, Map<String, REXP> variables) throws Exception;
+    }
+
+    /**
+     * How an injected failure is reported to the client
+     */
+    public enum Failure {
+        /**
+         * The evaluation is answered with an error status
+         */
+        ERROR,
+        /**
+         * The connection is closed without an answer, as when R crashes
+         */
+        DISCONNECT
+    }
+
+    private final ServerSocket server;
+    private final ExecutorService connections;
+    private final Random random = new Random(0);
+
+    private volatile Script script;
+    private volatile long latencyMillis;
+    private volatile long jitterMillis;
+    private volatile Pattern delayed;
+    private volatile Failure failure = Failure.ERROR;
+    private volatile double failureRate;
+
+    private final AtomicLong connectionCount = new AtomicLong();
+    private final AtomicLong evaluationCount = new AtomicLong();
+    private final AtomicLong assignmentCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+
+    /**
+     * Starts a stand-in that answers every evaluation with the same numeric vector
+     * @param result numeric vector returned by every evaluation
+     * @throws IOException if the server socket could not be opened
+     */
+    public Qap1StandInServer(double[] result) throws IOException {
+        this(constant(new REXPDouble(result)));
+    }
+
+    /**
+     * Starts a stand-in on an ephemeral port of the loopback interface
+     * @param script answers the evaluations
+     * @throws IOException if the server socket could not be opened
+     */
+    public Qap1StandInServer(Script script) throws IOException {
+        this(script, 0);
+    }
+
+    /**
+     * Starts a stand-in on a port of the loopback interface
+     * @param script answers the evaluations
+     * @param port port to listen on (0 for an ephemeral port)
+     * @throws IOException if the server socket could not be opened
+     */
+    public Qap1StandInServer(Script script, int port) throws IOException {
+        this.script = checkNotNull(script, "Script cannot be null");
+        this.server = new ServerSocket(port, 50, InetAddress.getByName("localhost"));
+        this.connections = Executors.newCachedThreadPool();
+        this.connections.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    /**
+     * Creates a script that answers every evaluation with the same value
+     * @param result value returned by every evaluation
+     * @return the script
+     */
+    public static Script constant(final REXP result) {
+        return new Script() {
+            @Override
+            public REXP eval(String expression, Map<String, REXP> variables) {
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Replaces the script that answers the evaluations
+     * @param script answers the evaluations
+     */
+    public void setScript(Script script) {
+        this.script = checkNotNull(script, "Script cannot be null");
+    }
+
+    /**
+     * Delays every evaluation
+     * @param latencyMillis minimum delay, in milliseconds
+     * @param jitterMillis maximum extra delay, uniformly distributed, in milliseconds
+     */
+    public void setLatency(long latencyMillis, long jitterMillis) {
+        checkArgument(latencyMillis >= 0 && jitterMillis >= 0, "Latency cannot be negative");
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    /**
+     * Restricts the latency to some evaluations, e.g. to the calls of a stalled model
+     * @param expressions pattern of the delayed expressions (null to delay every evaluation)
+     */
+    public void setDelayed(Pattern expressions) {
+        this.delayed = expressions;
+    }
+
+    /**
+     * Makes a fraction of the evaluations fail
+     * @param failure how the failures are reported
+     * @param rate fraction of the evaluations that fail, between 0 and 1
+     */
+    public void setFailures(Failure failure, double rate) {
+        checkNotNull(failure, "Failure cannot be null");
+        checkArgument(rate >= 0 && rate <= 1, "Failure rate must be between 0 and 1");
+        this.failure = failure;
+        this.failureRate = rate;
+    }
+
+    /**
+     * @return the port where the stand-in accepts connections
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * @return the number of accepted connections
+     */
+    public long getConnections() {
+        return connectionCount.get();
+    }
+
+    /**
+     * @return the number of evaluations received, including the failed ones
+     */
+    public long getEvaluations() {
+        return evaluationCount.get();
+    }
+
+    /**
+     * @return the number of assignments received
+     */
+    public long getAssignments() {
+        return assignmentCount.get();
+    }
+
+    /**
+     * @return the number of injected failures
+     */
+    public long getFailures() {
+        return failureCount.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        connections.shutdownNow();
+    }
+
+    /**
+     * Accepts connections until the server is closed
+     */
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                final Socket socket = server.accept();
+                connectionCount.incrementAndGet();
+                connections.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    /**
+     * Answers the requests of a connection until it is closed
+     * @param socket client connection
+     */
+    private void serve(Socket socket) {
+        Map<String, REXP> variables = new HashMap<>();
+
+        try (Socket client = socket) {
+            client.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            OutputStream out = client.getOutputStream();
+            out.write(ID.getBytes(Charsets.US_ASCII));
+            out.flush();
+
+            byte[] header = new byte[16];
+            while (true) {
+                in.readFully(header);
+                ByteBuffer message = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+                int command = message.getInt(0);
+                long length = (message.getInt(4) & 0xffffffffL) | ((long) message.getInt(12) << 32);
+                byte[] content = new byte[(int) length];
+                in.readFully(content);
+
+                switch (command) {
+                    case CMD_EVAL:
+                    case CMD_VOID_EVAL:
+                        evaluationCount.incrementAndGet();
+                        String source = string(parameter(content, 0));
+                        delay(source);
+                        if (fails()) {
+                            failureCount.incrementAndGet();
+                            if (failure == Failure.DISCONNECT) {
+                                return;
+                            }
+                            out.write(response(error(ERR_EVALUATION), new byte[0]));
+                            break;
+                        }
+                        out.write(evaluate(command == CMD_EVAL, source, variables));
+                        break;
+                    case CMD_SET_SEXP:
+                        assignmentCount.incrementAndGet();
+                        assign(content, variables);
+                        out.write(response(RESP_OK, new byte[0]));
+                        break;
+                    case CMD_SHUTDOWN:
+                        out.write(response(RESP_OK, new byte[0]));
+                        out.flush();
+                        return;
+                    default:
+                        out.write(response(error(ERR_UNSUPPORTED), new byte[0]));
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // closed by the client or by the stand-in
+        }
+    }
+
+    /**
+     * Evaluates an expression with the current script
+     * @param result whether the result is returned to the client
+     * @param source R source sent by the client
+     * @param variables global variables of the connection
+     * @return the response message
+     */
+    private byte[] evaluate(boolean result, String source, Map<String, REXP> variables) {
+        try {
+            REXP value = script.eval(source, Collections.unmodifiableMap(variables));
+            return response(RESP_OK, result ? encode(value == null ? new REXPNull() : value) : new byte[0]);
+        } catch (Exception e) {
+            return response(error(ERR_EVALUATION), new byte[0]);
+        }
+    }
+
+    /**
+     * Stores an assigned value in the variables of the connection
+     * @param content DT_STRING name followed by a DT_SEXP value
+     * @param variables global variables of the connection
+     */
+    private static void assign(byte[] content, Map<String, REXP> variables) {
+        ByteBuffer name = parameter(content, 0);
+        ByteBuffer value = parameter(content, name.limit());
+        try {
+            REXPFactory factory = new REXPFactory();
+            factory.parseREXP(content, value.position());
+            variables.put(string(name), factory.getREXP());
+        } catch (Exception e) {
+            // kept as R NULL: assignments never fail in the stand-in
+            variables.put(string(name), new REXPNull());
+        }
+    }
+
+    /**
+     * Waits for the configured latency, if the expression is delayed
+     * @param source R source sent by the client
+     */
+    private void delay(String source) {
+        Pattern delayed = this.delayed;
+        if (delayed != null && !delayed.matcher(source).matches()) {
+            return;
+        }
+
+        long jitter = jitterMillis;
+        long delay = latencyMillis + (jitter > 0 ? (long) (random.nextDouble() * jitter) : 0);
+        if (delay > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return true if the current evaluation should fail
+     */
+    private boolean fails() {
+        double rate = failureRate;
+        return rate > 0 && random.nextDouble() < rate;
+    }
+
+    /**
+     * Locates a parameter of a request
+     * @param content request content
+     * @param offset offset of the parameter header
+     * @return a buffer positioned at the parameter value and limited to its end
+     */
+    private static ByteBuffer parameter(byte[] content, int offset) {
+        ByteBuffer buffer = ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN);
+        int header = buffer.getInt(offset);
+        long length = header >>> 8;
+        int position = offset + 4;
+        if ((header & DT_LARGE) != 0) {
+            length |= (buffer.getInt(position) & 0xffffffffL) << 24;
+            position += 4;
+        }
+        buffer.limit(position + (int) length);
+        buffer.position(position);
+        return buffer;
+    }
+
+    /**
+     * Decodes a DT_STRING parameter
+     * @param parameter parameter value
+     * @return the string, up to its terminator
+     */
+    private static String string(ByteBuffer parameter) {
+        int end = parameter.position();
+        while (end < parameter.limit() && parameter.get(end) != 0) {
+            ++end;
+        }
+        return new String(parameter.array(), parameter.position(), end - parameter.position(), Charsets.UTF_8);
+    }
+
+    /**
+     * Encodes a value as a DT_SEXP parameter
+     * @param value value to encode
+     * @return the encoded parameter
+     * @throws IllegalArgumentException if the value could not be encoded
+     */
+    private static byte[] encode(REXP value) {
+        try {
+            REXPFactory factory = new REXPFactory(value);
+            int length = factory.getBinaryLength();
+            boolean large = length > 0xfffff0;
+            int header = large ? 8 : 4;
+
+            byte[] parameter = new byte[header + length];
+            ByteBuffer buffer = ByteBuffer.wrap(parameter).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(DT_SEXP | (large ? DT_LARGE : 0) | (length << 8));
+            if (large) {
+                buffer.putInt(length >>> 24);
+            }
+            factory.getBinaryRepresentation(parameter, header);
+            return parameter;
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Unable to encode " + value, e);
+        }
+    }
+
+    /**
+     * @param code error code
+     * @return the response status that reports the error
+     */
+    private static int error(int code) {
+        return RESP_ERR | (code << 24);
+    }
+
+    /**
+     * Builds a response message
+     * @param status response status
+     * @param content response content
+     * @return the message
+     */
+    private static byte[] response(int status, byte[] content) {
+        ByteBuffer message = ByteBuffer.allocate(16 + content.length).order(ByteOrder.LITTLE_ENDIAN);
+        message.putInt(status).putInt(content.length).putInt(0).putInt(0).put(content);
+        return message.array();
+    }
+}
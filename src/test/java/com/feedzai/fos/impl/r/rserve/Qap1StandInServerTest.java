@@ -0,0 +1,318 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.rserve;
+
+import com.feedzai.fos.api.FOSException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPGenericVector;
+import org.rosuda.REngine.REXPInteger;
+import org.rosuda.REngine.REXPList;
+import org.rosuda.REngine.REXPString;
+import org.rosuda.REngine.RList;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Exercises both RServe clients against the {@link Qap1StandInServer}, without R.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class Qap1StandInServerTest {
+    private Qap1StandInServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new Qap1StandInServer(new Qap1StandInServer.Script() {
+            @Override
+            public REXP eval(String expression, Map<String, REXP> variables) throws Exception {
+                REXP x = variables.get("x");
+                if (x == null) {
+                    return null;
+                }
+                // sum of the assigned vector, so that each answer depends on the request
+                double sum = 0;
+                for (double value : x.asDoubles()) {
+                    sum += value;
+                }
+                return new REXPDouble(new double[] {sum, x.length()});
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void scriptedPreparedCalls() throws Exception {
+        for (boolean direct : new boolean[] {false, true}) {
+            FosRserve rserve = new FosRserve("localhost", server.getPort(), direct);
+            try {
+                FosRPreparedCall call = rserve.prepare("c(sum(x), length(x))", "x");
+                for (int i = 1; i != 10; ++i) {
+                    double[] result = rserve.invokeDoubles(call, null, new REXPInteger(new int[] {i, i, i}));
+                    assertArrayEquals("Protocol direct=" + direct, new double[] {3 * i, 3}, result, 0);
+                }
+            } finally {
+                rserve.close();
+            }
+        }
+        assertEquals(2, server.getConnections());
+        assertEquals(18, server.getAssignments());
+    }
+
+    @Test
+    public void leastRecentlyUsedPreparedCallsAreRemoved() throws Exception {
+        final List<String> removed = new CopyOnWriteArrayList<>();
+        server.setScript(new Qap1StandInServer.Script() {
+            @Override
+            public REXP eval(String expression, Map<String, REXP> variables) {
+                if (expression.contains("rm(.fos.call.")) {
+                    removed.add(expression);
+                }
+                return null;
+            }
+        });
+
+        FosRserve rserve = new FosRserve("localhost", server.getPort(), false);
+        try {
+            FosRPreparedCall first = rserve.prepare("sum(x) + 0", "x");
+            for (int i = 1; i != FosRserve.MAX_PREPARED_CALLS; ++i) {
+                rserve.prepare("sum(x) + " + i, "x");
+            }
+            assertTrue(removed.isEmpty());
+
+            // the first call was used last, so the second one is evicted
+            assertSame(first, rserve.prepare("sum(x) + 0", "x"));
+            rserve.prepare("sum(x) + " + FosRserve.MAX_PREPARED_CALLS, "x");
+            assertEquals(1, removed.size());
+            assertTrue(removed.get(0).contains("rm(.fos.call.1)\n"));
+        } finally {
+            rserve.close();
+        }
+    }
+
+    @Test
+    public void injectedErrors() throws Exception {
+        for (boolean direct : new boolean[] {false, true}) {
+            FosRserve rserve = new FosRserve("localhost", server.getPort(), direct);
+            try {
+                FosRPreparedCall call = rserve.prepare("sum(x)", "x");
+                server.setFailures(Qap1StandInServer.Failure.ERROR, 1);
+                try {
+                    rserve.invokeDoubles(call, null, new REXPDouble(1));
+                    fail("Injected error not reported");
+                } catch (FOSException e) {
+                    // expected
+                }
+
+                // the session survives an evaluation error
+                server.setFailures(Qap1StandInServer.Failure.ERROR, 0);
+                assertArrayEquals(new double[] {1, 1}, rserve.invokeDoubles(call, null, new REXPDouble(1)), 0);
+            } finally {
+                rserve.close();
+            }
+        }
+    }
+
+    @Test
+    public void expiredDeadlineAbandonsSession() throws Exception {
+        server.setLatency(500, 0);
+        for (boolean direct : new boolean[] {false, true}) {
+            FosRserve rserve = new FosRserve("localhost", server.getPort(), direct);
+            FosRPreparedCall call = rserve.prepare("sum(x)", "x");
+
+            long start = System.currentTimeMillis();
+            try {
+                rserve.invokeDoubles(call, null, 50, new REXPDouble(1));
+                fail("Expired deadline not reported");
+            } catch (FOSException e) {
+                assertTrue("Deadline not enforced", System.currentTimeMillis() - start < 500);
+            }
+            assertFalse(rserve.isConnected());
+        }
+    }
+
+    @Test
+    public void disconnectIsReported() throws Exception {
+        server.setFailures(Qap1StandInServer.Failure.DISCONNECT, 1);
+        for (boolean direct : new boolean[] {false, true}) {
+            FosRserve rserve = new FosRserve("localhost", server.getPort(), direct);
+            try {
+                rserve.eval("1");
+                fail("Lost connection not reported");
+            } catch (FOSException e) {
+                // expected
+            } finally {
+                rserve.close();
+            }
+        }
+        assertEquals(2, server.getFailures());
+    }
+
+    @Test
+    public void directAssignmentsAreDecodedByTheServer() throws Exception {
+        final Map<String, REXP> assigned = new HashMap<>();
+        server.setScript(new Qap1StandInServer.Script() {
+            @Override
+            public REXP eval(String expression, Map<String, REXP> variables) {
+                assigned.putAll(variables);
+                return new REXPDouble(1);
+            }
+        });
+
+        // large enough for the 8 byte expression header
+        double[] large = new double[(1 << 21) + 1];
+        for (int i = 0; i != large.length; ++i) {
+            large[i] = i / 2.0;
+        }
+        REXP list = new REXPGenericVector(new RList(
+                new REXP[] {new REXPDouble(new double[] {0.5, 2}), new REXPString(new String[] {"no", "yes"})},
+                new String[] {"amount", "class"}));
+
+        FosRserve rserve = new FosRserve("localhost", server.getPort(), true);
+        try {
+            FosRPreparedCall call = rserve.prepare("f(d, i, s, l, large)", "d", "i", "s", "l", "large");
+            rserve.invokeDoubles(call, null,
+                    new REXPDouble(new double[] {1.5, -2, Double.MAX_VALUE}),
+                    new REXPInteger(new int[] {1, 2, Integer.MAX_VALUE}),
+                    new REXPString(new String[] {"a", "", "fraude \u00e9"}),
+                    list,
+                    new REXPDouble(large));
+        } finally {
+            rserve.close();
+        }
+
+        assertArrayEquals(new double[] {1.5, -2, Double.MAX_VALUE}, assigned.get("d").asDoubles(), 0);
+        assertTrue(assigned.get("i").isInteger());
+        assertArrayEquals(new int[] {1, 2, Integer.MAX_VALUE}, assigned.get("i").asIntegers());
+        assertArrayEquals(new String[] {"a", "", "fraude \u00e9"}, assigned.get("s").asStrings());
+        RList decoded = assigned.get("l").asList();
+        assertEquals(Arrays.asList("amount", "class"), decoded.names);
+        assertArrayEquals(new double[] {0.5, 2}, decoded.at("amount").asDoubles(), 0);
+        assertArrayEquals(new String[] {"no", "yes"}, decoded.at("class").asStrings());
+        assertArrayEquals(large, assigned.get("large").asDoubles(), 0);
+    }
+
+    @Test
+    public void directDoublesAreDecodedIntoTheBuffer() throws Exception {
+        FosRserve rserve = new FosRserve("localhost", server.getPort(), true);
+        try {
+            FosRPreparedCall call = rserve.prepare("f(x)", "x");
+
+            server.setScript(Qap1StandInServer.constant(new REXPDouble(new double[] {1, 2, 3})));
+            double[] buffer = new double[3];
+            assertSame(buffer, rserve.invokeDoubles(call, buffer, new REXPDouble(1)));
+            assertArrayEquals(new double[] {1, 2, 3}, buffer, 0);
+            assertEquals(-1, rserve.getMetrics().getLastEvaluation());
+
+            // the elapsed time and the dimensions are attributes, skipped when decoding the values
+            REXPList attributes = new REXPList(new RList(
+                    new REXP[] {new REXPInteger(new int[] {1, 3}), new REXPDouble(0.25)},
+                    new String[] {"dim", FosRserve.ELAPSED_ATTRIBUTE}));
+            server.setScript(Qap1StandInServer.constant(new REXPDouble(new double[] {4, 5, 6}, attributes)));
+            assertSame(buffer, rserve.invokeDoubles(call, buffer, new REXPDouble(1)));
+            assertArrayEquals(new double[] {4, 5, 6}, buffer, 0);
+            assertEquals(250000000, rserve.getMetrics().getLastEvaluation());
+
+            // a buffer of another length is not used
+            double[] other = new double[2];
+            double[] values = rserve.invokeDoubles(call, other, new REXPDouble(1));
+            assertNotSame(other, values);
+            assertArrayEquals(new double[] {4, 5, 6}, values, 0);
+        } finally {
+            rserve.close();
+        }
+    }
+
+    @Test
+    public void directErrorStatusIsReported() throws Exception {
+        FosRserve rserve = new FosRserve("localhost", server.getPort(), true);
+        try {
+            FosRPreparedCall call = rserve.prepare("f(x)", "x");
+            server.setScript(new Qap1StandInServer.Script() {
+                @Override
+                public REXP eval(String expression, Map<String, REXP> variables) throws Exception {
+                    if (variables.get("x").asDouble() < 0) {
+                        throw new IllegalArgumentException("negative");
+                    }
+                    return variables.get("x");
+                }
+            });
+            try {
+                rserve.invokeDoubles(call, null, new REXPDouble(-1));
+                fail("Error status not reported");
+            } catch (FOSException e) {
+                assertTrue(e.getCause() instanceof Qap1Connection.Qap1Exception);
+                assertEquals(127, ((Qap1Connection.Qap1Exception) e.getCause()).getStatus());
+            }
+
+            // the responses of the assignment and the call were read, so the next call is in sync
+            assertArrayEquals(new double[] {2}, rserve.invokeDoubles(call, null, new REXPDouble(2)), 0);
+            assertEquals(1, rserve.getMetrics().getErrors());
+        } finally {
+            rserve.close();
+        }
+    }
+
+    @Test
+    public void directTryErrorIsReported() throws Exception {
+        FosRserve rserve = new FosRserve("localhost", server.getPort(), true);
+        try {
+            FosRPreparedCall call = rserve.prepare("f(x)", "x");
+            REXPList attributes = new REXPList(new RList(new REXP[] {new REXPString("try-error")}, new String[] {"class"}));
+            server.setScript(Qap1StandInServer.constant(
+                    new REXPString(new String[] {"Error in f(x) : no model\n"}, attributes)));
+            try {
+                rserve.invokeDoubles(call, new double[1], new REXPDouble(1));
+                fail("R error not reported");
+            } catch (FOSException e) {
+                // R errors are not a lost session, the R message is kept in the cause
+                assertFalse(e instanceof FosRSessionLostException);
+                assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("no model"));
+            }
+            assertTrue(rserve.isConnected());
+        } finally {
+            rserve.close();
+        }
+    }
+}
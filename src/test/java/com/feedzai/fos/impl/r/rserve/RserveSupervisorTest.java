@@ -0,0 +1,170 @@
+/*
+ * $#
+ * FOS R implementation
+ *  
+ * Copyright (C) 2013 Feedzai SA
+ *  
+ * This software is licensed under the Apache License, Version 2.0 (the "Apache License") or the GNU
+ * Lesser General Public License version 3 (the "GPL License"). You may choose either license to govern
+ * your use of this software only upon the condition that you accept all of the terms of either the Apache
+ * License or the LGPL License.
+ *
+ * You may obtain a copy of the Apache License and the LGPL License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ * http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Apache License
+ * or the LGPL License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the Apache License and the LGPL License for the specific language governing
+ * permissions and limitations under the Apache License and the LGPL License.
+ * #$
+ */
+
+package com.feedzai.fos.impl.r.rserve;
+
+import com.feedzai.fos.api.FOSException;
+import com.feedzai.fos.api.config.FosConfig;
+import com.feedzai.fos.impl.r.RManager;
+import com.feedzai.fos.impl.r.RScorer;
+import com.feedzai.fos.impl.r.RStandInScript;
+import com.feedzai.fos.impl.r.config.RManagerConfig;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.apache.commons.configuration.BaseConfiguration;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Exercises the {@link RserveSupervisor} with {@link Qap1StandInProcess} processes in place of R.
+ *
+ * @author miguel.duarte
+ * @since 1.0.11
+ */
+public class RserveSupervisorTest {
+    private static final long WAIT_MILLIS = 30000;
+
+    private File executable;
+    private int port;
+    private RserveSupervisor supervisor;
+    private FosRservePool pool;
+    private RScorer scorer;
+
+    @Before
+    public void setUp() throws Exception {
+        // the supervisor runs the executable with the R arguments, the stand-in process takes them instead
+        Assume.assumeTrue(File.separatorChar == '/');
+        executable = File.createTempFile("fos-r-standin", ".sh");
+        executable.deleteOnExit();
+        Files.write(String.format("#!/bin/sh\nexec '%s' -cp '%s' %s \"$@\"\n",
+                                  new File(System.getProperty("java.home"), "bin/java").getAbsolutePath(),
+                                  System.getProperty("java.class.path"),
+                                  Qap1StandInProcess.class.getName()),
+                    executable, Charsets.UTF_8);
+        assertTrue(executable.setExecutable(true));
+
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (scorer != null) {
+            scorer.close();
+        }
+        if (pool != null) {
+            pool.close();
+        }
+        if (supervisor != null) {
+            supervisor.close();
+        }
+    }
+
+    @Test
+    public void killedProcessIsRestartedWithItsModels() throws Exception {
+        supervisor = new RserveSupervisor(executable.getAbsolutePath(), "localhost", port, 1, 100);
+        pool = new FosRservePool(supervisor, 2);
+        scorer = new RScorer(pool);
+        UUID modelId = UUID.randomUUID();
+        scorer.addOrUpdate(RStandInScript.rModelConfig(modelId, 0));
+        assertArrayEquals(new double[] {0.25, 0.75}, scorer.score(modelId, new Object[] {0.25, "no"}), 0);
+
+        RserveProcess process = supervisor.getProcesses().get(0);
+        assertEquals(1, process.getGeneration());
+        int pid = query("Sys.getpid()");
+        assertEquals(0, new ProcessBuilder("kill", "-9", Integer.toString(pid)).start().waitFor());
+
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (process.getGeneration() == 1) {
+            assertTrue("Killed process not restarted", System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+        assertTrue("Process not restarted in place", query("Sys.getpid()") != pid);
+
+        // the sessions of the killed process are replaced by new ones, where the model is loaded again
+        assertArrayEquals(new double[] {0.5, 0.5}, scorer.score(modelId, new Object[] {0.5, "yes"}), 0);
+        assertTrue("Model not loaded in the restarted process", query(Qap1StandInProcess.LOADS) > 0);
+    }
+
+    @Test
+    public void managerThatFailsToStartStopsItsProcesses() throws Exception {
+        BaseConfiguration configuration = new BaseConfiguration();
+        configuration.setProperty(RManagerConfig.PROCESSES, 1);
+        configuration.setProperty(RManagerConfig.EXECUTABLE, executable.getAbsolutePath());
+        configuration.setProperty(RManagerConfig.PORT, port);
+        // fails once the process is started
+        configuration.setProperty(RManagerConfig.METRICS_REPORTER, "com.feedzai.fos.impl.r.metrics.NoSuchReporter");
+
+        try {
+            new RManager(new RManagerConfig(new FosConfig(configuration)));
+            fail("Unknown metrics reporter not reported");
+        } catch (FOSException e) {
+            // expected
+        }
+        assertFalse("RServe process left running", accepts(port));
+    }
+
+    /**
+     * Evaluates an expression that answers an integer in a new session
+     * @param expression R expression
+     * @return the answer
+     */
+    private int query(String expression) throws FOSException {
+        FosRserve rserve = new FosRserve("localhost", port);
+        try {
+            return rserve.evalInts(expression)[0];
+        } finally {
+            rserve.close();
+        }
+    }
+
+    /**
+     * Checks if a port of the loopback interface accepts connections
+     * @param port port to check
+     * @return true if a connection was accepted
+     */
+    private static boolean accepts(int port) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress("localhost", port), 1000);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}